@@ -0,0 +1,42 @@
+package xflag.plugins.bleSock;
+
+import android.bluetooth.BluetoothGatt;
+
+// 通信量に合わせて切り替える既定の方針
+// 送受信が詰まっている間は遅延を優先し、ロビーのような閑散時はバランス、長く無通信なら省電力にする
+// 上げる閾値と下げる閾値をずらして、境目で行ったり来たりしないようにしている
+final class AdaptiveLinkPolicy implements LinkPolicy {
+
+    private static final int BURST_PACKETS = 8;
+    private static final int BURST_BYTES = 1000;
+    private static final int IDLE_TIME = 10000;
+    private static final int PHY_2M_BYTES = 2000;
+
+    @Override
+    public int selectConnectionPriority(Traffic traffic, int current) {
+
+        if ((traffic.packetsPerSecond >= BURST_PACKETS) || (traffic.bytesPerSecond >= BURST_BYTES)) {
+            return BluetoothGatt.CONNECTION_PRIORITY_HIGH;
+        }
+
+        if ((current == BluetoothGatt.CONNECTION_PRIORITY_HIGH) &&
+                ((traffic.packetsPerSecond >= BURST_PACKETS / 2) || (traffic.averageBytesPerSecond >= BURST_BYTES / 2))) {
+            return BluetoothGatt.CONNECTION_PRIORITY_HIGH;
+        }
+
+        if (traffic.idleTime >= IDLE_TIME) {
+            return BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER;
+        }
+
+        return BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
+    }
+
+    // 2Mは同じ量を短い時間で送れるが届く距離は短くなるので、量が多い間だけ使う
+    @Override
+    public int selectPhy(Traffic traffic, int current) {
+
+        int threshold = (current == LinkTuner.PHY_2M) ? PHY_2M_BYTES / 2 : PHY_2M_BYTES;
+
+        return (traffic.averageBytesPerSecond >= threshold) ? LinkTuner.PHY_2M : LinkTuner.PHY_1M;
+    }
+}
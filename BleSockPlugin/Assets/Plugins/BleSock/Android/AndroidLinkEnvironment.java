@@ -0,0 +1,40 @@
+package xflag.plugins.bleSock;
+
+import android.bluetooth.BluetoothAdapter;
+import android.os.Build;
+
+// 端末で使うLinkTuner.Environment
+final class AndroidLinkEnvironment implements LinkTuner.Environment {
+
+    public static final AndroidLinkEnvironment INSTANCE = new AndroidLinkEnvironment();
+
+    private AndroidLinkEnvironment() {
+    }
+
+    @Override
+    public boolean isPhy2MSupported() {
+
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O) {
+            return false;
+        }
+
+        BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+        if (adapter == null) {
+            return false;
+        }
+
+        return adapter.isLe2MPhySupported();
+    }
+
+    @Override
+    public void info(String format, Object... args) {
+
+        Utils.info(format, args);
+    }
+
+    @Override
+    public void error(String format, Object... args) {
+
+        Utils.error(format, args);
+    }
+}
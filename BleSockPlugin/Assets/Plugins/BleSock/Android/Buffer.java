@@ -1,16 +1,117 @@
 package xflag.plugins.bleSock;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 public final class Buffer {
 
     private byte[] mBytes;
+    private int mOffset;
+    private int mLength;
+    private BufferPool mPool = null;
+    private final AtomicInteger mReferences = new AtomicInteger(1); // 0ならプールに戻っている
 
     public byte[] getBytes() {
 
         return mBytes;
     }
 
+    public int getOffset() {
+
+        return mOffset;
+    }
+
+    public int getLength() {
+
+        return mLength;
+    }
+
+    // Unityへ渡すためのメッセージの長さちょうどの配列（JNIの呼び出しを一回で済ませる）
+    public byte[] toByteArray() {
+
+        if ((mOffset == 0) && (mLength == mBytes.length)) {
+            return mBytes;
+        }
+
+        byte[] bytes = new byte[mLength];
+        System.arraycopy(mBytes, mOffset, bytes, 0, mLength);
+        return bytes;
+    }
+
     public Buffer(byte[] bytes) {
 
+        this(bytes, 0, bytes.length);
+    }
+
+    public Buffer(byte[] bytes, int offset, int length) {
+
         mBytes = bytes;
+        mOffset = offset;
+        mLength = length;
+    }
+
+    Buffer(BufferPool pool, byte[] bytes) {
+
+        this(bytes, 0, 0);
+        mPool = pool;
+        mReferences.set(0);
+    }
+
+    void reset(int offset, int length) {
+
+        mOffset = offset;
+        mLength = length;
+        mReferences.set(1);
+    }
+
+    // 中継しながら書き込んでいるバッファは、書き込み済みの長さを更新していく
+    void setLength(int length) {
+
+        mLength = length;
+    }
+
+    // 送信キューやコールバックのキューが共有する間はrecycleされてもプールに戻さない
+    // コールバックを届けるスレッドからもrecycleされるので参照の増減はアトミックに行う
+    void retain() {
+
+        if (mPool == null) {
+            return;
+        }
+
+        while (true) {
+
+            int references = mReferences.get();
+            if (references <= 0) {
+                return;
+            }
+
+            if (mReferences.compareAndSet(references, references + 1)) {
+                return;
+            }
+        }
+    }
+
+    // プールから取得したバッファはコールバックから戻った時点で再利用される
+    public void recycle() {
+
+        if (mPool == null) {
+            return;
+        }
+
+        while (true) {
+
+            int references = mReferences.get();
+            if (references <= 0) {
+                return;
+            }
+
+            if (mReferences.compareAndSet(references, references - 1)) {
+
+                if (references == 1) {
+                    mPool.release(this);
+                }
+
+                return;
+            }
+        }
     }
 }
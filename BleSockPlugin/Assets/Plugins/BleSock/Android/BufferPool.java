@@ -0,0 +1,71 @@
+package xflag.plugins.bleSock;
+
+final class BufferPool {
+
+    private static final int MIN_SIZE_SHIFT = 4; // 16 bytes
+    private static final int MAX_SIZE_SHIFT = 12; // 4096 bytes
+    private static final int BUFFERS_PER_CLASS = 16;
+
+    private final Buffer[][] mFreeBuffers = new Buffer[MAX_SIZE_SHIFT - MIN_SIZE_SHIFT + 1][BUFFERS_PER_CLASS];
+    private final int[] mFreeCounts = new int[MAX_SIZE_SHIFT - MIN_SIZE_SHIFT + 1];
+
+    public synchronized Buffer obtain(int length) {
+
+        int sizeClass = sizeClassOf(length);
+        if (sizeClass < 0) {
+            return new Buffer(new byte[length]);
+        }
+
+        Buffer buffer;
+
+        if (mFreeCounts[sizeClass] > 0) {
+
+            int index = --mFreeCounts[sizeClass];
+            buffer = mFreeBuffers[sizeClass][index];
+            mFreeBuffers[sizeClass][index] = null;
+        }
+        else {
+
+            buffer = new Buffer(this, new byte[1 << (sizeClass + MIN_SIZE_SHIFT)]);
+        }
+
+        buffer.reset(0, length);
+        return buffer;
+    }
+
+    synchronized void release(Buffer buffer) {
+
+        int sizeClass = sizeClassOf(buffer.getBytes().length);
+        if ((sizeClass < 0) || (mFreeCounts[sizeClass] == BUFFERS_PER_CLASS)) {
+            return;
+        }
+
+        mFreeBuffers[sizeClass][mFreeCounts[sizeClass]++] = buffer;
+    }
+
+    public synchronized void clear() {
+
+        for (int i = 0; i < mFreeBuffers.length; i++) {
+
+            for (int j = 0; j < mFreeCounts[i]; j++) {
+                mFreeBuffers[i][j] = null;
+            }
+
+            mFreeCounts[i] = 0;
+        }
+    }
+
+    private static int sizeClassOf(int length) {
+
+        if (length > (1 << MAX_SIZE_SHIFT)) {
+            return -1;
+        }
+
+        int shift = MIN_SIZE_SHIFT;
+        while ((1 << shift) < length) {
+            shift++;
+        }
+
+        return shift - MIN_SIZE_SHIFT;
+    }
+}
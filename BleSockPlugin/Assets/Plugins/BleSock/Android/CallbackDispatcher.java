@@ -0,0 +1,246 @@
+package xflag.plugins.bleSock;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// Unityへのコールバックを専用のスレッドから届けるキュー
+// AndroidJavaProxyの呼び出しは数ミリ秒かかることもあるので、EventLoopはイベントを積むだけで先に進む
+// EventLoopのスレッドだけが積み、届けるスレッドだけが取り出すのでリングはロックを取らない
+// リングが一杯の間は積む側だけが触るキューに溜め、空いたら順番を崩さずにリングへ移す
+// 溜められるのはOVERFLOW_MAX個まで。超えたら後から来たイベントを捨ててエラーを出す
+abstract class CallbackDispatcher {
+
+    private static final int CAPACITY = 256;
+    private static final int OVERFLOW_MAX = CAPACITY * 4;
+
+    static final class Event {
+
+        public int type;
+        public Buffer buffer;
+        public String text;
+        public int value;
+        public boolean flag;
+
+        void clear() {
+
+            buffer = null;
+            text = null;
+        }
+    }
+
+    private final EventLoop mLoop;
+    private final Event[] mRing = new Event[CAPACITY];
+    private final AtomicLong mHead = new AtomicLong(0); // 届けるスレッドだけが進める
+    private final AtomicLong mTail = new AtomicLong(0); // EventLoopだけが進める
+    private ArrayDeque<Event> mOverflow = new ArrayDeque<>();
+    private ArrayDeque<Event> mRemaining = null; // close後は届けるスレッドが直接取り出す
+    private volatile boolean mOverflowPending = false;
+    private int mDropped = 0;
+    private volatile boolean mWaiting = false;
+    private volatile boolean mRunning = true;
+    private final Thread mThread;
+
+    private Runnable mOverflowTask = new Runnable() {
+
+        @Override
+        public void run() {
+
+            flushOverflow();
+        }
+    };
+
+    protected CallbackDispatcher(EventLoop loop, String name) {
+
+        mLoop = loop;
+
+        for (int i = 0; i < CAPACITY; i++) {
+            mRing[i] = new Event();
+        }
+
+        mThread = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+
+                dispatch();
+            }
+        }, name);
+
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    // 積まれているイベントを届けてからスレッドを終える
+    // EventLoopは直後に止まるので、リングに移せなかった分は届けるスレッドに渡す（mRunningのvolatile書き込みで見える）
+    public void close() {
+
+        flushOverflow();
+
+        mRemaining = mOverflow;
+        mOverflow = new ArrayDeque<>();
+        mOverflowPending = false;
+
+        mRunning = false;
+        LockSupport.unpark(mThread);
+    }
+
+    // 届けるスレッドで呼ばれる
+    protected abstract void deliver(Event event);
+
+    // 後から同じイベントがまた届くもの。溢れた時はエラーを出さずに捨てる
+    protected boolean isDroppable(int type) {
+
+        return false;
+    }
+
+    // Producer（EventLoopのスレッド）
+
+    // bufferは届け終わるまでretainしておく
+    protected void publish(int type, Buffer buffer, String text, int value, boolean flag) {
+
+        if (!mRunning) {
+            return;
+        }
+
+        flushOverflow();
+
+        long tail = mTail.get();
+
+        if (!mOverflow.isEmpty() || (tail - mHead.get() == CAPACITY)) {
+
+            if (mOverflow.size() >= OVERFLOW_MAX) {
+
+                if (!isDroppable(type) && (mDropped++ == 0)) {
+                    Utils.error("callback queue is full, dropping events");
+                }
+
+                return;
+            }
+
+            if (buffer != null) {
+                buffer.retain();
+            }
+
+            Event event = new Event();
+            set(event, type, buffer, text, value, flag);
+            mOverflow.add(event);
+            mOverflowPending = true;
+            return;
+        }
+
+        if (buffer != null) {
+            buffer.retain();
+        }
+
+        set(mRing[(int)tail & (CAPACITY - 1)], type, buffer, text, value, flag);
+        commit(tail + 1);
+    }
+
+    private void flushOverflow() {
+
+        if (mOverflow.isEmpty()) {
+            return;
+        }
+
+        long tail = mTail.get();
+        long head = mHead.get();
+
+        while (!mOverflow.isEmpty() && (tail - head < CAPACITY)) {
+
+            Event event = mOverflow.remove();
+            set(mRing[(int)tail & (CAPACITY - 1)], event.type, event.buffer, event.text, event.value, event.flag);
+            tail++;
+        }
+
+        mOverflowPending = !mOverflow.isEmpty();
+        commit(tail);
+
+        if (!mOverflowPending && (mDropped > 0)) {
+
+            Utils.error("dropped %d callback events", mDropped);
+            mDropped = 0;
+        }
+    }
+
+    private static void set(Event event, int type, Buffer buffer, String text, int value, boolean flag) {
+
+        event.type = type;
+        event.buffer = buffer;
+        event.text = text;
+        event.value = value;
+        event.flag = flag;
+    }
+
+    // 位置の書き込みと待っているかの読み出しの順番が入れ替わらないようにvolatileで書く
+    private void commit(long tail) {
+
+        mTail.set(tail);
+
+        if (mWaiting) {
+            LockSupport.unpark(mThread);
+        }
+    }
+
+    // Consumer（届けるスレッド）
+
+    private void dispatch() {
+
+        while (true) {
+
+            long head = mHead.get();
+
+            if (head == mTail.get()) {
+
+                if (mOverflowPending) {
+                    mLoop.post(mOverflowTask);
+                }
+
+                if (!mRunning) {
+
+                    // リングを届け終えたので、close時に渡された残りを順に届ける
+                    ArrayDeque<Event> remaining = mRemaining;
+
+                    if (remaining != null) {
+
+                        while (!remaining.isEmpty()) {
+                            deliverAndRecycle(remaining.remove());
+                        }
+                    }
+
+                    return;
+                }
+
+                mWaiting = true;
+
+                if ((head == mTail.get()) && mRunning) {
+                    LockSupport.park(this);
+                }
+
+                mWaiting = false;
+                continue;
+            }
+
+            deliverAndRecycle(mRing[(int)head & (CAPACITY - 1)]);
+            mHead.lazySet(head + 1);
+        }
+    }
+
+    private void deliverAndRecycle(Event event) {
+
+        try {
+
+            deliver(event);
+        }
+        catch (Exception e) {
+
+            Utils.error("%s", e);
+        }
+
+        if (event.buffer != null) {
+            event.buffer.recycle();
+        }
+
+        event.clear();
+    }
+}
@@ -11,4 +11,7 @@ public interface CentralCallback {
     public void onDisconnect();
 
     public void onReceive(Buffer message, int from);
+    public void onReceiveChunk(Buffer chunk, int from, boolean last);
+
+    public void onWritable();
 }
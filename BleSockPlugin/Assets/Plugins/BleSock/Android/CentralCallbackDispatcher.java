@@ -0,0 +1,127 @@
+package xflag.plugins.bleSock;
+
+// CentralCallbackの呼び出しを積んで、CallbackDispatcherのスレッドから順番通りに届ける
+final class CentralCallbackDispatcher extends CallbackDispatcher implements CentralCallback {
+
+    private static final int BLUETOOTH_REQUIRE = 0;
+    private static final int READY = 1;
+    private static final int FAIL = 2;
+    private static final int DISCOVER = 3;
+    private static final int CONNECT = 4;
+    private static final int DISCONNECT = 5;
+    private static final int RECEIVE = 6;
+    private static final int RECEIVE_CHUNK = 7;
+    private static final int WRITABLE = 8;
+
+    private final CentralCallback mCallback;
+
+    public CentralCallbackDispatcher(CentralCallback callback, EventLoop loop) {
+
+        super(loop, "BleSockCentralCallback");
+        mCallback = callback;
+    }
+
+    @Override
+    public void onBluetoothRequire() {
+
+        publish(BLUETOOTH_REQUIRE, null, null, 0, false);
+    }
+
+    @Override
+    public void onReady() {
+
+        publish(READY, null, null, 0, false);
+    }
+
+    @Override
+    public void onFail() {
+
+        publish(FAIL, null, null, 0, false);
+    }
+
+    @Override
+    public void onDiscover(String deviceName, int deviceId) {
+
+        publish(DISCOVER, null, deviceName, deviceId, false);
+    }
+
+    @Override
+    public void onConnect() {
+
+        publish(CONNECT, null, null, 0, false);
+    }
+
+    @Override
+    public void onDisconnect() {
+
+        publish(DISCONNECT, null, null, 0, false);
+    }
+
+    @Override
+    public void onReceive(Buffer message, int from) {
+
+        publish(RECEIVE, message, null, from, false);
+    }
+
+    @Override
+    public void onReceiveChunk(Buffer chunk, int from, boolean last) {
+
+        publish(RECEIVE_CHUNK, chunk, null, from, last);
+    }
+
+    @Override
+    public void onWritable() {
+
+        publish(WRITABLE, null, null, 0, false);
+    }
+
+    // スキャンを続けていれば同じデバイスはまた見つかる
+    @Override
+    protected boolean isDroppable(int type) {
+
+        return type == DISCOVER;
+    }
+
+    @Override
+    protected void deliver(Event event) {
+
+        switch (event.type) {
+
+            case BLUETOOTH_REQUIRE:
+                mCallback.onBluetoothRequire();
+                break;
+
+            case READY:
+                mCallback.onReady();
+                break;
+
+            case FAIL:
+                mCallback.onFail();
+                break;
+
+            case DISCOVER:
+                mCallback.onDiscover(event.text, event.value);
+                break;
+
+            case CONNECT:
+                mCallback.onConnect();
+                break;
+
+            case DISCONNECT:
+                mCallback.onDisconnect();
+                break;
+
+            case RECEIVE:
+                mCallback.onReceive(event.buffer, event.value);
+                break;
+
+            case RECEIVE_CHUNK:
+                mCallback.onReceiveChunk(event.buffer, event.value, event.flag);
+                break;
+
+            case WRITABLE:
+                mCallback.onWritable();
+                break;
+        }
+    }
+}
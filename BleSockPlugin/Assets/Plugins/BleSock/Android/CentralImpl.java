@@ -35,22 +35,29 @@ import android.widget.TextView;
 import com.unity3d.player.UnityPlayer;
 
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.LinkedList;
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public final class CentralImpl {
 
+    public static final int SEND_FAILED = -1;
+    public static final int SEND_WOULD_BLOCK = -2;
+
     private static final String NOTIFICATION_DESCRIPTOR_UUID = "00002902-0000-1000-8000-00805F9B34FB";
     private static final int UPDATE_INTERVAL = 1000;
-    private static final int REQUEST_MTU_SIZE = 512;
+    private static final int[] MTU_CANDIDATES = { 512, 247, 185 };
+    private static final int DEFAULT_MTU = 23;
+    private static final int MTU_TIMEOUT = 3000;
     private static final int MESSAGE_SIZE_MAX = 4096;
     private static final int BUFFER_SIZE = 8192;
+    private static final int DEFAULT_HIGH_WATERMARK = BUFFER_SIZE * 3 / 4;
+    private static final int DEFAULT_LOW_WATERMARK = BUFFER_SIZE / 4;
     private static final int ACCEPTANCE_TIMEOUT = 20000;
+    private static final int OPERATION_TIMEOUT = 10000;
 
     private enum Status {
     	
@@ -64,54 +71,60 @@ public final class CentralImpl {
         Disconnect;
     }
 
-    private Object mLockObject = new Object();
-    private Status mStatus = Status.Invalid;
+    private EventLoop mLoop = new EventLoop("BleSockCentral");
+    private volatile Status mStatus = Status.Invalid; // sendだけはループの外から読む
 
     // Initialization
 
     private UUID mServiceUUID = null;
     private UUID mUploadUUID = null;
     private UUID mDownloadUUID = null;
-    private CentralCallback mCentralCallback = null;
+    private CentralCallbackDispatcher mCentralCallback = null;
 
 
     public boolean initialize(String serviceUUID, String uploadUUID, String downloadUUID, CentralCallback callback) {
 
-        synchronized (mLockObject) {
+        mLoop.start();
 
-            if (mStatus != Status.Invalid) {
-                Utils.error("invalid status: %s", mStatus.toString());
-                return false;
-            }
+        return mLoop.call(new Callable<Boolean>() {
 
-            BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
-            if (adapter == null) {
-                Utils.error("bluetooth is not available on this device");
-                return false;
-            }
+            @Override
+            public Boolean call() {
 
-            try {
+                if (mStatus != Status.Invalid) {
+                    Utils.error("invalid status: %s", mStatus.toString());
+                    return false;
+                }
 
-                mServiceUUID = UUID.fromString(serviceUUID);
-                mUploadUUID = UUID.fromString(uploadUUID);
-                mDownloadUUID = UUID.fromString(downloadUUID);
-            }
-            catch (Exception e) {
+                BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+                if (adapter == null) {
+                    Utils.error("bluetooth is not available on this device");
+                    return false;
+                }
 
-                Utils.error(e.toString());
-                cleanup();
-                return false;
-            }
+                try {
 
-            mCentralCallback = callback;
+                    mServiceUUID = UUID.fromString(serviceUUID);
+                    mUploadUUID = UUID.fromString(uploadUUID);
+                    mDownloadUUID = UUID.fromString(downloadUUID);
+                }
+                catch (Exception e) {
 
-            Utils.info("ready");
-            mStatus = Status.Ready;
+                    Utils.error("%s", e);
+                    cleanup();
+                    return false;
+                }
 
-            mCentralCallback.onReady();
-        }
+                mCentralCallback = new CentralCallbackDispatcher(callback, mLoop);
 
-        return true;
+                Utils.info("ready");
+                mStatus = Status.Ready;
+
+                mCentralCallback.onReady();
+
+                return true;
+            }
+        }, false);
     }
 
     // Scan peripherals
@@ -124,39 +137,43 @@ public final class CentralImpl {
 
             Utils.info("onScanResult callbackType: %d result:%s", callbackType, result.toString());
 
-            synchronized (mLockObject) {
-
-                if (mStatus != Status.Scan) {
-                    Utils.error("invalid status: %s", mStatus.toString());
-                    return;
-                }
+            mLoop.execute(new Runnable() {
 
-                if (callbackType != ScanSettings.CALLBACK_TYPE_ALL_MATCHES) {
-                    Utils.error("invalid callbackType");
-                    return;
-                }
+                @Override
+                public void run() {
 
-                String deviceName = result.getScanRecord().getDeviceName();
-                if (deviceName == null) {
-                    Utils.error("device name is null");
-                    return;
-                }
+                    if (mStatus != Status.Scan) {
+                        Utils.error("invalid status: %s", mStatus.toString());
+                        return;
+                    }
 
-                String address = result.getDevice().getAddress();
+                    if (callbackType != ScanSettings.CALLBACK_TYPE_ALL_MATCHES) {
+                        Utils.error("invalid callbackType");
+                        return;
+                    }
 
-                for (PeripheralContext context : mDiscoveredPeripherals) {
-                    if (context.device.getAddress().equalsIgnoreCase(address)) {
+                    String deviceName = result.getScanRecord().getDeviceName();
+                    if (deviceName == null) {
+                        Utils.error("device name is null");
                         return;
                     }
-                }
 
-                final PeripheralContext context = new PeripheralContext(result.getDevice(), mNextPeripheralId++, deviceName);
-                mDiscoveredPeripherals.add(context);
+                    String address = result.getDevice().getAddress();
+
+                    for (PeripheralContext context : mDiscoveredPeripherals) {
+                        if (context.device.getAddress().equalsIgnoreCase(address)) {
+                            return;
+                        }
+                    }
+
+                    final PeripheralContext context = new PeripheralContext(result.getDevice(), mNextPeripheralId++, deviceName);
+                    mDiscoveredPeripherals.add(context);
 
-                Utils.info("peripheral discovered: %s", result.getDevice().toString());
+                    Utils.info("peripheral discovered: %s", result.getDevice().toString());
 
-                mCentralCallback.onDiscover(context.name, context.id);
-            }
+                    mCentralCallback.onDiscover(context.name, context.id);
+                }
+            });
         }
 
         @Override
@@ -164,9 +181,16 @@ public final class CentralImpl {
 
             Utils.error("onScanFailed: %d", errorCode);
 
-            stopScan();
+            mLoop.execute(new Runnable() {
 
-            mCentralCallback.onFail();
+                @Override
+                public void run() {
+
+                    stopScan();
+
+                    mCentralCallback.onFail();
+                }
+            });
         }
     };
 
@@ -182,33 +206,34 @@ public final class CentralImpl {
         }
     }
 
-    private Timer mScanTimer = null;
+    private EventLoop.Timeout mScanTimer = null;
     private ArrayList<PeripheralContext> mDiscoveredPeripherals = new ArrayList<>();
     private int mNextPeripheralId = 1;
 
     public boolean startScan() {
 
-        synchronized (mLockObject) {
+        return mLoop.call(new Callable<Boolean>() {
 
-            if (mStatus == Status.Scan) {
-                Utils.error("already scanning");
-                return true;
-            }
+            @Override
+            public Boolean call() {
 
-            if (mStatus != Status.Ready) {
-                Utils.error("invalid status: %d", mStatus.toString());
-                return false;
-            }
+                if (mStatus == Status.Scan) {
+                    Utils.error("already scanning");
+                    return true;
+                }
 
-            mStatus = Status.Scan;
-            mDiscoveredPeripherals.clear();
+                if (mStatus != Status.Ready) {
+                    Utils.error("invalid status: %d", mStatus.toString());
+                    return false;
+                }
 
-            TimerTask timerTask = new TimerTask() {
+                mStatus = Status.Scan;
+                mDiscoveredPeripherals.clear();
 
-                @Override
-                public void run() {
+                mScanTimer = mLoop.schedule(new Runnable() {
 
-                    synchronized (mLockObject) {
+                    @Override
+                    public void run() {
 
                         if (mStatus != Status.Scan) {
                             Utils.error("invalid status: %s", mStatus.toString());
@@ -224,28 +249,25 @@ public final class CentralImpl {
                             stopScanInternal();
                         }
                     }
-                }
-            };
+                }, 0, UPDATE_INTERVAL);
 
-            mScanTimer = new Timer();
-            mScanTimer.schedule(timerTask, 0, UPDATE_INTERVAL);
+                /*
+                if (Build.VERSION.SDK_INT >= 23) {
+                    if (checkSelfPermission(Manifest.permission.ACCESS_COARSE_LOCATION) != PackageManager.PERMISSION_GRANTED) {
+                        requestPermissions(new String[] {Manifest.permission.ACCESS_COARSE_LOCATION}, PERMISSION_REQUEST_CODE);
+                        return true;
+                    }
+                }
+                */
 
-            /*
-            if (Build.VERSION.SDK_INT >= 23) {
-                if (checkSelfPermission(Manifest.permission.ACCESS_COARSE_LOCATION) != PackageManager.PERMISSION_GRANTED) {
-                    requestPermissions(new String[] {Manifest.permission.ACCESS_COARSE_LOCATION}, PERMISSION_REQUEST_CODE);
-                    return true;
+                if (!Utils.isBluetoothEnabled()) {
+                    Utils.info("bluetooth required..");
+                    mCentralCallback.onBluetoothRequire();
                 }
-            }
-            */
 
-            if (!Utils.isBluetoothEnabled()) {
-                Utils.info("bluetooth required..");
-                mCentralCallback.onBluetoothRequire();
+                return true;
             }
-        }
-
-        return true;
+        }, false);
     }
 
     private boolean startScanInternal() {
@@ -278,22 +300,26 @@ public final class CentralImpl {
 
     public void stopScan() {
 
-        synchronized (mLockObject) {
+        mLoop.execute(new Runnable() {
 
-            if (mStatus != Status.Scan) {
-                Utils.error("invalid status: %s", mStatus.toString());
-                return;
-            }
+            @Override
+            public void run() {
 
-            mStatus = Status.Ready;
+                if (mStatus != Status.Scan) {
+                    Utils.error("invalid status: %s", mStatus.toString());
+                    return;
+                }
 
-            if (mScanner != null) {
-                stopScanInternal();
-            }
+                mStatus = Status.Ready;
 
-            mScanTimer.cancel();
-            mScanTimer = null;
-        }
+                if (mScanner != null) {
+                    stopScanInternal();
+                }
+
+                mScanTimer.cancel();
+                mScanTimer = null;
+            }
+        });
     }
 
     private void stopScanInternal() {
@@ -310,7 +336,7 @@ public final class CentralImpl {
         }
         catch (Exception e) {
 
-            Utils.error(e.toString());
+            Utils.error("%s", e);
         }
 
         mScanner = null;
@@ -319,10 +345,13 @@ public final class CentralImpl {
     // Connection
 
     private BluetoothGatt mGatt = null;
-    private Timer mAcceptanceTimer = null;
-    private int mMaximumWriteLength = 20;
+    private EventLoop.Timeout mAcceptanceTimer = null;
+    private int mMaximumWriteLength = DEFAULT_MTU - 3;
+    private int mMtuIndex = 0;
+    private FragmentCache mFragments = new FragmentCache(mMaximumWriteLength);
 
-    private Timer mDiscoverTimer = null;
+    private EventLoop.Timeout mDiscoverTimer = null;
+    private EventLoop.Timeout mLinkTimer = null;
     private BluetoothGattCharacteristic mUploadCharacteristic = null;
     private BluetoothGattCharacteristic mDownloadCharacteristic = null;
     private BluetoothGattDescriptor mNotificationDescriptor = null;
@@ -333,12 +362,39 @@ public final class CentralImpl {
         public void onPhyUpdate(BluetoothGatt gatt, int txPhy, int rxPhy, int status) {
 
             Utils.info("onPhyUpdate gatt: %s txPhy: %d rxPhy: %d status: %d", gatt.toString(), txPhy, rxPhy, status);
+
+            mLoop.execute(new Runnable() {
+
+                @Override
+                public void run() {
+
+                    if (gatt != mGatt) {
+                        Utils.error("invalid gatt");
+                        return;
+                    }
+
+                    // ペリフェラルから変更された場合は発行中の操作がない
+                    mLinkTuner.onPhyUpdate(txPhy, status == BluetoothGatt.GATT_SUCCESS);
+                    mPipeline.complete(mPhyOperation);
+                }
+            });
         }
 
         @Override
         public void onPhyRead(BluetoothGatt gatt, int txPhy, int rxPhy, int status) {
 
             Utils.info("onPhyRead gatt: %s txPhy: %d rxPhy: %d status: %d", gatt.toString(), txPhy, rxPhy, status);
+
+            mLoop.execute(new Runnable() {
+
+                @Override
+                public void run() {
+
+                    if ((gatt == mGatt) && (status == BluetoothGatt.GATT_SUCCESS)) {
+                        mLinkTuner.onPhyUpdate(txPhy, true);
+                    }
+                }
+            });
         }
 
         @Override
@@ -346,76 +402,77 @@ public final class CentralImpl {
 
             Utils.info("onConnectionStateChange gatt: %s status: %d, newState: %d", gatt.toString(), status, newState);
 
-            synchronized (mLockObject) {
-
-                if (gatt != mGatt) {
-                    Utils.error("invalid gatt");
-                    return;
-                }
-
-                if (newState == BluetoothProfile.STATE_CONNECTED) {
+            mLoop.execute(new Runnable() {
 
-                    Utils.info("connected to peripheral");
+                @Override
+                public void run() {
 
-                    if (mStatus != Status.Connect) {
-                        Utils.error("invalid status: %s", mStatus.toString());
-                        handleError();
+                    if (gatt != mGatt) {
+                        Utils.error("invalid gatt");
                         return;
                     }
 
-                    Utils.info("requestMtu: %d", REQUEST_MTU_SIZE);
-                    if (!mGatt.requestMtu(REQUEST_MTU_SIZE)) {
-                        Utils.error("failed");
-                        handleError();
-                        return;
-                    }
+                    if (newState == BluetoothProfile.STATE_CONNECTED) {
 
-                    startDiscoverServices();
-                }
-                else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+                        Utils.info("connected to peripheral");
 
-                    Utils.info("disconnected from peripheral");
+                        if (mStatus != Status.Connect) {
+                            Utils.error("invalid status: %s", mStatus.toString());
+                            handleError();
+                            return;
+                        }
 
-                    if ((mStatus != Status.Connect) && (mStatus != Status.Discover) && (mStatus != Status.Online) && (mStatus != mStatus.Disconnect)) {
+                        // MTUが決まるまで後続の書き込みはパイプラインで待たされる
+                        mMtuIndex = 0;
+                        mPipeline.submit(mMtuOperation);
 
-                        Utils.error("invalid status: %s", mStatus.toString());
-                        return;
+                        startDiscoverServices();
                     }
+                    else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
 
-                    if ((mStatus == Status.Connect) && (status == 133)) // Busy
-                    {
-                        BluetoothDevice bluetoothDevice = mGatt.getDevice();
-                        Context context = UnityPlayer.currentActivity.getApplicationContext();
+                        Utils.info("disconnected from peripheral");
 
-                        Utils.info("connectGatt: %s", bluetoothDevice.getAddress());
+                        if ((mStatus != Status.Connect) && (mStatus != Status.Discover) && (mStatus != Status.Online) && (mStatus != mStatus.Disconnect)) {
 
-                        mGatt = bluetoothDevice.connectGatt(context, false, mGattCallback);
-                        if (mGatt != null) {
+                            Utils.error("invalid status: %s", mStatus.toString());
                             return;
                         }
 
-                        Utils.error("failed");
-                    }
+                        if ((mStatus == Status.Connect) && (status == 133)) // Busy
+                        {
+                            BluetoothDevice bluetoothDevice = mGatt.getDevice();
+                            Context context = UnityPlayer.currentActivity.getApplicationContext();
 
-                    final boolean disconnected = (mStatus == Status.Online) || (mStatus == Status.Disconnect);
+                            Utils.info("connectGatt: %s", bluetoothDevice.getAddress());
 
-                    mStatus = Status.Ready;
+                            mGatt = bluetoothDevice.connectGatt(context, false, mGattCallback);
+                            if (mGatt != null) {
+                                return;
+                            }
 
-                    cleanupConnection();
+                            Utils.error("failed");
+                        }
 
-                    if (disconnected) {
-                        mCentralCallback.onDisconnect();
-                    }
-                    else {
-                        mCentralCallback.onFail();
+                        final boolean disconnected = (mStatus == Status.Online) || (mStatus == Status.Disconnect);
+
+                        mStatus = Status.Ready;
+
+                        cleanupConnection();
+
+                        if (disconnected) {
+                            mCentralCallback.onDisconnect();
+                        }
+                        else {
+                            mCentralCallback.onFail();
+                        }
                     }
-                }
-                else  {
+                    else  {
 
-                    Utils.error("invalid newState");
-                    handleError();
+                        Utils.error("invalid newState");
+                        handleError();
+                    }
                 }
-            }
+            });
         }
 
         @Override
@@ -423,85 +480,86 @@ public final class CentralImpl {
 
             Utils.info("onServicesDiscovered gatt: %s status: %d", gatt.toString(), status);
 
-            synchronized (mLockObject) {
+            mLoop.execute(new Runnable() {
 
-                if (gatt != mGatt) {
-                    Utils.error("invalid gatt");
-                    return;
-                }
+                @Override
+                public void run() {
 
-                if (mStatus != Status.Discover) {
-                    Utils.error("invalid status: %s", mStatus.toString());
-                    handleError();
-                    return;
-                }
+                    if (gatt != mGatt) {
+                        Utils.error("invalid gatt");
+                        return;
+                    }
 
-                if (status != BluetoothGatt.GATT_SUCCESS) {
-                    Utils.error("failed");
-                    handleError();
-                    return;
-                }
+                    if (mStatus != Status.Discover) {
+                        Utils.error("invalid status: %s", mStatus.toString());
+                        handleError();
+                        return;
+                    }
 
-                Utils.info("services discovered");
-                mDiscoverTimer.cancel();
-                mDiscoverTimer = null;
+                    if (status != BluetoothGatt.GATT_SUCCESS) {
+                        Utils.error("failed");
+                        handleError();
+                        return;
+                    }
 
-                // Communication characteristic
+                    Utils.info("services discovered");
+                    mDiscoverTimer.cancel();
+                    mDiscoverTimer = null;
 
-                BluetoothGattService service = mGatt.getService(mServiceUUID);
-                if (service == null) {
-                    Utils.error("communication service not found");
-                    handleError();
-                    return;
-                }
+                    // Communication characteristic
 
-                mUploadCharacteristic = service.getCharacteristic(mUploadUUID);
-                if (mUploadCharacteristic == null) {
-                    Utils.error("upload characteristic not found");
-                    handleError();
-                    return;
-                }
+                    BluetoothGattService service = mGatt.getService(mServiceUUID);
+                    if (service == null) {
+                        Utils.error("communication service not found");
+                        handleError();
+                        return;
+                    }
 
-                mDownloadCharacteristic = service.getCharacteristic(mDownloadUUID);
-                if (mDownloadCharacteristic == null) {
-                    Utils.error("download characteristic not found");
-                    handleError();
-                    return;
-                }
+                    mUploadCharacteristic = service.getCharacteristic(mUploadUUID);
+                    if (mUploadCharacteristic == null) {
+                        Utils.error("upload characteristic not found");
+                        handleError();
+                        return;
+                    }
 
-                // Enable notification
+                    mDownloadCharacteristic = service.getCharacteristic(mDownloadUUID);
+                    if (mDownloadCharacteristic == null) {
+                        Utils.error("download characteristic not found");
+                        handleError();
+                        return;
+                    }
 
-                if (!mGatt.setCharacteristicNotification(mDownloadCharacteristic, true)) {
-                    Utils.error("set characteristic notification failed");
-                    handleError();
-                    return;
-                }
+                    // Enable notification
 
-                mNotificationDescriptor = mDownloadCharacteristic.getDescriptor(UUID.fromString(NOTIFICATION_DESCRIPTOR_UUID));
-                if (mNotificationDescriptor == null) {
-                    Utils.error("notification descriptor not found");
-                    handleError();
-                    return;
-                }
+                    if (!mGatt.setCharacteristicNotification(mDownloadCharacteristic, true)) {
+                        Utils.error("set characteristic notification failed");
+                        handleError();
+                        return;
+                    }
 
-                mNotificationDescriptor.setValue(BluetoothGattDescriptor.ENABLE_INDICATION_VALUE);
+                    mNotificationDescriptor = mDownloadCharacteristic.getDescriptor(UUID.fromString(NOTIFICATION_DESCRIPTOR_UUID));
+                    if (mNotificationDescriptor == null) {
+                        Utils.error("notification descriptor not found");
+                        handleError();
+                        return;
+                    }
 
-                Utils.info("writeDescriptor: ENABLE_INDICATION_VALUE");
-                if (!mGatt.writeDescriptor(mNotificationDescriptor)) {
-                    Utils.error("failed");
-                    handleError();
-                    return;
-                }
+                    mNotificationDescriptor.setValue(BluetoothGattDescriptor.ENABLE_INDICATION_VALUE);
 
-                // Etc
+                    Utils.info("writeDescriptor: ENABLE_INDICATION_VALUE");
+                    if (!mGatt.writeDescriptor(mNotificationDescriptor)) {
+                        Utils.error("failed");
+                        handleError();
+                        return;
+                    }
 
-                Utils.info("requestConnectionPriority");
-                if (!mGatt.requestConnectionPriority(BluetoothGatt.CONNECTION_PRIORITY_HIGH)) {
-                    Utils.error("failed");
-                    handleError();
-                    return;
+                    // Etc
+
+                    // ハンドシェイクが済むまでは遅延を優先し、以後は方針に従って切り替える
+                    mLinkTuner.start(BluetoothGatt.CONNECTION_PRIORITY_HIGH, System.currentTimeMillis());
+                    startLinkTimer();
                 }
-            }
+            });
         }
 
         @Override
@@ -513,46 +571,50 @@ public final class CentralImpl {
             Utils.info("onCharacteristicRead gatt: %s characteristic: %s status: %d",
                     gatt.toString(), characteristic.toString(), status); // readCharacteristicのレスポンスが帰ってきた
 
-            synchronized (mLockObject) {
+            // 値は次の読み出しや通知で上書きされるのでBinderのスレッドで取り出しておく
+            final byte[] value = characteristic.getValue();
 
-                if (gatt != mGatt) {
-                    Utils.error("invalid gatt");
-                    return;
-                }
+            mLoop.execute(new Runnable() {
 
-                if (characteristic != mDownloadCharacteristic) {
-                    Utils.error("invalid characteristic");
-                    return;
-                }
+                @Override
+                public void run() {
 
-                if (mStatus != Status.Online) {
-                    Utils.error("invalid status: %s", mStatus.toString());
-                    handleError();
-                    return;
-                }
+                    if (gatt != mGatt) {
+                        Utils.error("invalid gatt");
+                        return;
+                    }
 
-                if (status != BluetoothGatt.GATT_SUCCESS) {
-                    Utils.error("failed");
-                    handleError();
-                    return;
-                }
+                    if (characteristic != mDownloadCharacteristic) {
+                        Utils.error("invalid characteristic");
+                        return;
+                    }
 
-                mReadWriteLock = false;
+                    if (mStatus != Status.Online) {
+                        Utils.error("invalid status: %s", mStatus.toString());
+                        handleError();
+                        return;
+                    }
 
-                byte[] value = characteristic.getValue();
-                if ((value != null) && (value.length > 1)) {
+                    if (status != BluetoothGatt.GATT_SUCCESS) {
+                        Utils.error("failed");
+                        handleError();
+                        return;
+                    }
 
-                    if (processReceiveBuffer(value)) {
+                    if ((value != null) && (value.length > 0)) {
 
-                        if (!mOperations.contains(Operation.Read)) {
+                        mLinkTuner.record(value.length, System.currentTimeMillis());
 
-                            mOperations.add(Operation.Read);
+                        if (processReceiveBuffer(value)) {
+                            mPipeline.submit(mReadOperation);
                         }
                     }
-                }
 
-                processOperation();
-            }
+                    if (!mPipeline.complete(mReadOperation)) {
+                        Utils.error("unexpected read");
+                    }
+                }
+            });
         }
 
         @Override
@@ -564,34 +626,38 @@ public final class CentralImpl {
             Utils.info("onCharacteristicWrite gatt: %s characteristic: %s status: %d",
                     gatt.toString(), characteristic.toString(), status); // writeCharacteristicのレスポンスが帰ってきた
 
-            synchronized (mLockObject) {
-
-                if (gatt != mGatt) {
-                    Utils.error("invalid gatt");
-                    return;
-                }
+            mLoop.execute(new Runnable() {
 
-                if (characteristic != mUploadCharacteristic) {
-                    Utils.error("invalid characteristic");
-                    return;
-                }
+                @Override
+                public void run() {
 
-                if (mStatus != Status.Online) {
-                    Utils.error("invalid status: %s", mStatus.toString());
-                    handleError();
-                    return;
-                }
+                    if (gatt != mGatt) {
+                        Utils.error("invalid gatt");
+                        return;
+                    }
 
-                if (status != BluetoothGatt.GATT_SUCCESS) {
-                    Utils.error("failed");
-                    handleError();
-                    return;
-                }
+                    if (characteristic != mUploadCharacteristic) {
+                        Utils.error("invalid characteristic");
+                        return;
+                    }
+
+                    if (mStatus != Status.Online) {
+                        Utils.error("invalid status: %s", mStatus.toString());
+                        handleError();
+                        return;
+                    }
 
-                mReadWriteLock = false;
+                    if (status != BluetoothGatt.GATT_SUCCESS) {
+                        Utils.error("failed");
+                        handleError();
+                        return;
+                    }
 
-                processOperation();
-            }
+                    if (!mPipeline.complete(mWriteOperation) && !mPipeline.complete(mHelloOperation)) {
+                        Utils.error("unexpected write");
+                    }
+                }
+            });
         }
 
         @Override
@@ -602,113 +668,210 @@ public final class CentralImpl {
             Utils.info("onCharacteristicChanged gatt: %s characteristic: %s",
                     gatt.toString(), characteristic.toString()); // Notificationが送られてきた
 
-            synchronized (mLockObject) {
+            // 値は次の読み出しや通知で上書きされるのでBinderのスレッドで取り出しておく
+            final byte[] value = characteristic.getValue();
 
-                if (gatt != mGatt) {
-                    Utils.error("invalid gatt");
-                    return;
-                }
+            mLoop.execute(new Runnable() {
 
-                if (characteristic != mDownloadCharacteristic) {
-                    Utils.error("invalid characteristic");
-                    return;
-                }
+                @Override
+                public void run() {
 
-                if (mStatus != Status.Online) {
-                    Utils.error("invalid status: %s", mStatus.toString());
-                    handleError();
-                    return;
-                }
+                    if (gatt != mGatt) {
+                        Utils.error("invalid gatt");
+                        return;
+                    }
 
-                byte[] value = characteristic.getValue();
-                if ((value == null) || (value.length == 0)) {
-                    Utils.info("invalid value");
-                    return;
+                    if (characteristic != mDownloadCharacteristic) {
+                        Utils.error("invalid characteristic");
+                        return;
+                    }
+
+                    if (mStatus != Status.Online) {
+                        Utils.error("invalid status: %s", mStatus.toString());
+                        handleError();
+                        return;
+                    }
+
+                    if ((value == null) || (value.length == 0)) {
+                        Utils.info("invalid value");
+                        return;
+                    }
+
+                    mLinkTuner.record(value.length, System.currentTimeMillis());
+
+                    if (mStreaming) {
+                        processStreamFragment(value);
+                    }
+                    else if (processReceiveBuffer(value)) {
+                        mPipeline.submit(mReadOperation);
+                    }
                 }
+            });
+        }
+
+        // 続きを読み出す必要があればtrueを返す
+        private boolean processReceiveBuffer(byte[] value) {
 
-                if (processReceiveBuffer(value)) {
+            if (!processReceiveBuffer(value, 0, value.length - 1)) {
+                return false;
+            }
 
-                    if (!mReadWriteLock) {
+            int next = value[value.length - 1];
 
-                        Utils.info("readCharacteristic");
-                        if (!mGatt.readCharacteristic(mDownloadCharacteristic)) {
-                            Utils.error("failed");
-                            handleError();
-                            return;
-                        }
+            if (next == FrameCodec.FRAGMENT_STREAM) {
+
+                Utils.info("download streaming");
+                mStreaming = true;
+                return false;
+            }
+
+            return next != FrameCodec.FRAGMENT_END;
+        }
+
+        private void processStreamFragment(byte[] value) {
+
+            int header = value[0] & 0xff;
+            int sequence = header & StreamWindow.SEQUENCE_MASK;
+
+            if (sequence != mStreamExpected) {
+
+                // 受け取り済みのフラグメントの再送なら確認を返し直すだけ。先のフラグメントなら抜けがあるので再送を求める（再送の周回ごとに一度）
+                int behind = (mStreamExpected - sequence) & StreamWindow.SEQUENCE_MASK;
+                if (behind <= StreamWindow.SIZE) {
 
-                        mReadWriteLock = true;
+                    if ((header & StreamWindow.ACK_REQUEST) != 0) {
+                        sendStreamAck(false);
                     }
-                    else if (!mOperations.contains(Operation.Read)) {
+                }
+                else {
 
-                        mOperations.add(Operation.Read);
+                    // 要求した時より手前のフラグメントが来たら再送が始まっている。それでも抜けていれば再送も失われたので求め直す
+                    int ahead = (sequence - mStreamExpected) & StreamWindow.SEQUENCE_MASK;
+                    if ((mStreamGapAhead == 0) || (ahead <= mStreamGapAhead)) {
+
+                        Utils.error("stream gap: %d expected %d", sequence, mStreamExpected);
+                        sendStreamAck(true);
                     }
+
+                    mStreamGapAhead = ahead;
                 }
+
+                return;
+            }
+
+            mStreamGapAhead = 0;
+            mStreamExpected = (sequence + 1) & StreamWindow.SEQUENCE_MASK;
+            mStreamReceived++;
+
+            if (!processReceiveBuffer(value, 1, value.length - 1)) {
+                return;
+            }
+
+            if (((header & StreamWindow.ACK_REQUEST) != 0) || (mStreamReceived >= StreamWindow.SIZE / 2)) {
+                sendStreamAck(false);
             }
         }
 
-        private boolean processReceiveBuffer(byte[] value) {
+        private boolean processReceiveBuffer(byte[] value, int offset, int length) {
 
-            Utils.info("received: %d bytes remain %d bytes", value.length - 1, mReceiveBuffer.position());
+            Utils.info("received: %d bytes remain %d bytes", length, mReceiveBuffer.size());
 
             try
             {
-                mReceiveBuffer.put(value, 0, value.length - 1);
+                mReceiveBuffer.put(value, offset, length);
             }
             catch (Exception e)
             {
-                Utils.error(e.toString());
+                Utils.error("%s", e);
                 handleError();
                 return false;
             }
 
-            boolean willContinue = (value[value.length - 1] != 0);
-
             while (true) {
 
-                if (mReceiveMessageSize == -1) {
+                if (!mCodec.hasHeader()) {
 
-                    if (mReceiveBuffer.position() < 2) {
+                    int result = mCodec.decodeHeader(mReceiveBuffer);
+                    if (result == FrameCodec.HEADER_INCOMPLETE) {
                         break;
                     }
 
-                    mReceiveBuffer.flip();
-                    mReceiveMessageSize = mReceiveBuffer.getChar();
-                    mReceiveBuffer.compact();
+                    int sizeMax = mCodec.isControlFrame() ? FrameCodec.CONTROL_SIZE_MAX : MESSAGE_SIZE_MAX;
+                    if ((result == FrameCodec.HEADER_INVALID) || (mCodec.frameSize() > sizeMax)) {
+                        Utils.error("invalid frame header");
+                        handleError();
+                        return false;
+                    }
+                }
+
+                if (mReceiveBuffer.size() < mCodec.frameSize()) {
+                    break;
                 }
 
-                if (mReceiveMessageAddress == -1) {
+                final int frameSize = mCodec.frameSize();
+                final Buffer frame = mBufferPool.obtain(frameSize);
+                mReceiveBuffer.get(frame.getBytes(), 0, frameSize);
 
-                    if (mReceiveBuffer.position() < 2) {
-                        break;
-                    }
+                final int from = mCodec.frameAddress();
+                final boolean control = mCodec.isControlFrame();
+                final boolean compressed = (mCodec.frameFlags() & FrameCodec.FLAG_COMPRESSED) != 0;
+                final int chunkFlags = mCodec.frameFlags() & (FrameCodec.FLAG_CHUNK | FrameCodec.FLAG_LAST_CHUNK);
+
+                mCodec.completeFrame();
 
-                    mReceiveBuffer.flip();
-                    mReceiveMessageAddress = mReceiveBuffer.getChar();
-                    mReceiveBuffer.compact();
+                if (control) {
+
+                    processControl(from, frame.getBytes(), frameSize);
                 }
+                else if (chunkFlags != 0) {
 
-                if (mReceiveBuffer.position() < mReceiveMessageSize) {
-                    break;
+                    if (!receiveChunk(frame, from, (chunkFlags & FrameCodec.FLAG_LAST_CHUNK) != 0)) {
+                        frame.recycle();
+                        handleError();
+                        return false;
+                    }
                 }
+                else if (compressed) {
 
-                final byte[] message = new byte[mReceiveMessageSize];
-                if (mReceiveMessageSize > 0) {
+                    Buffer message = null;
 
-                    mReceiveBuffer.flip();
-                    mReceiveBuffer.get(message);
-                    mReceiveBuffer.compact();
-                }
+                    int originalSize = FrameCodec.decompressedSize(frame.getBytes(), frameSize);
+                    if ((originalSize >= 0) && (originalSize <= MESSAGE_SIZE_MAX)) {
+
+                        message = mBufferPool.obtain(originalSize);
+                        if (!FrameCodec.decompress(mLz4, frame.getBytes(), frameSize, message.getBytes(), originalSize)) {
+                            message.recycle();
+                            message = null;
+                        }
+                    }
+
+                    if (message == null) {
+                        Utils.error("invalid compressed message");
+                        frame.recycle();
+                        handleError();
+                        return false;
+                    }
+
+                    boolean received = receive(message, from);
+                    message.recycle();
 
-                final int from = mReceiveMessageAddress;
+                    if (!received) {
+                        frame.recycle();
+                        handleError();
+                        return false;
+                    }
+                }
+                else if (!receive(frame, from)) {
 
-                mReceiveMessageSize = -1;
-                mReceiveMessageAddress = -1;
+                    frame.recycle();
+                    handleError();
+                    return false;
+                }
 
-                mCentralCallback.onReceive(new Buffer(message), from);
+                frame.recycle();
             }
 
-            return willContinue;
+            return true;
         }
 
         @Override
@@ -732,48 +895,68 @@ public final class CentralImpl {
             Utils.info("onDescriptorWrite gatt: %s descriptor: %s status: %d",
                     gatt.toString(), descriptor.toString(), status);
 
-            synchronized (mLockObject) {
+            mLoop.execute(new Runnable() {
 
-                if (gatt != mGatt) {
-                    Utils.error("invalid gatt");
-                    return;
-                }
+                @Override
+                public void run() {
 
-                if (descriptor != mNotificationDescriptor) {
-                    Utils.error("invalid descriptor");
-                    return;
-                }
+                    if (gatt != mGatt) {
+                        Utils.error("invalid gatt");
+                        return;
+                    }
 
-                if (mStatus != Status.Discover) {
-                    Utils.error("invalid status: %s", mStatus.toString());
-                    handleError();
-                    return;
-                }
+                    if (descriptor != mNotificationDescriptor) {
+                        Utils.error("invalid descriptor");
+                        return;
+                    }
 
-                if (status != BluetoothGatt.GATT_SUCCESS) {
-                    Utils.error("failed");
-                    handleError();
-                    return;
-                }
+                    // notificationを有効にできなければペリフェラルは読み出しのまま送り続ける
+                    if (mPipeline.isRunning(mStreamDescriptorOperation)) {
 
-                // write dummy response
+                        if (status != BluetoothGatt.GATT_SUCCESS) {
+                            Utils.error("enable stream failed");
+                        }
 
-                mUploadCharacteristic.setValue(new byte[0]);
+                        mPipeline.complete(mStreamDescriptorOperation);
+                        return;
+                    }
 
-                Utils.info("writeCharacteristic: void");
-                if (!mGatt.writeCharacteristic(mUploadCharacteristic)) {
-                    Utils.error("failed");
-                    handleError();
-                    return;
-                }
+                    // 届かなかった確認はペリフェラルがタイムアウトで送り直したフラグメントを受けて返し直す
+                    if (mPipeline.isRunning(mStreamAckOperation)) {
 
-                mReadWriteLock = true;
+                        if (status != BluetoothGatt.GATT_SUCCESS) {
+                            Utils.error("stream ack failed");
+                        }
 
-                Utils.info("online");
-                mStatus = Status.Online;
+                        mPipeline.complete(mStreamAckOperation);
+                        return;
+                    }
 
-                mCentralCallback.onConnect();
-            }
+                    if (mStatus != Status.Discover) {
+                        Utils.error("invalid status: %s", mStatus.toString());
+                        handleError();
+                        return;
+                    }
+
+                    if (status != BluetoothGatt.GATT_SUCCESS) {
+                        Utils.error("failed");
+                        handleError();
+                        return;
+                    }
+
+                    // write dummy response
+
+                    mPipeline.submit(mHelloOperation);
+                    if (mPipeline.isIdle()) {
+                        return;
+                    }
+
+                    Utils.info("online");
+                    mStatus = Status.Online;
+
+                    mCentralCallback.onConnect();
+                }
+            });
         }
 
         @Override
@@ -793,20 +976,37 @@ public final class CentralImpl {
 
             Utils.info("onMtuChanged gatt: %s mtu: %d status: %d", gatt.toString(), mtu, status);
 
-            synchronized (mLockObject) {
+            mLoop.execute(new Runnable() {
 
-                if (gatt != mGatt) {
-                    Utils.error("invalid gatt");
-                    return;
-                }
+                @Override
+                public void run() {
 
-                if (status == BluetoothGatt.GATT_SUCCESS) {
-                    mMaximumWriteLength = mtu - 3;
-                }
-                else {
-                    Utils.error("failed");
+                    if (gatt != mGatt) {
+                        Utils.error("invalid gatt");
+                        return;
+                    }
+
+                    if (status == BluetoothGatt.GATT_SUCCESS) {
+
+                        mMaximumWriteLength = Math.max(mtu, DEFAULT_MTU) - 3;
+                        mFragments.resize(mMaximumWriteLength);
+                    }
+                    else {
+
+                        Utils.error("failed");
+
+                        // 一段小さいMTUで要求し直す
+                        if (mPipeline.isRunning(mMtuOperation)) {
+
+                            mMtuIndex++;
+                            mPipeline.submit(mMtuOperation);
+                        }
+                    }
+
+                    // 相手から交換された場合は発行中の操作がないので何もしない
+                    mPipeline.complete(mMtuOperation);
                 }
-            }
+            });
         }
     };
 
@@ -814,55 +1014,46 @@ public final class CentralImpl {
 
         mStatus = Status.Discover;
 
-        TimerTask timerTask = new TimerTask() {
+        mDiscoverTimer = mLoop.schedule(new Runnable() {
 
             private int mCount = 1;
 
             @Override
             public void run() {
 
-                synchronized (mLockObject) {
-
-                    if (mStatus != Status.Discover) {
-                        Utils.error("invalid status: %s", mStatus.toString());
-                        handleError();
-                        return;
-                    }
+                if (mStatus != Status.Discover) {
+                    Utils.error("invalid status: %s", mStatus.toString());
+                    handleError();
+                    return;
+                }
 
-                    Utils.info("discoverServices [%d]", mCount++);
-                    if (!mGatt.discoverServices()) {
-                        Utils.error("failed");
-                        handleError();
-                    }
+                Utils.info("discoverServices [%d]", mCount++);
+                if (!mGatt.discoverServices()) {
+                    Utils.error("failed");
+                    handleError();
                 }
             }
-        };
-
-        mDiscoverTimer = new Timer();
-        mDiscoverTimer.schedule(timerTask, UPDATE_INTERVAL, UPDATE_INTERVAL);
+        }, UPDATE_INTERVAL, UPDATE_INTERVAL);
     }
 
     private void handleError() {
 
-        synchronized (mLockObject) {
+        if (mStatus == Status.Connect) {
 
-            if (mStatus == Status.Connect) {
-
-                mStatus = Status.Ready;
+            mStatus = Status.Ready;
 
-                cleanupConnection();
+            cleanupConnection();
 
-                mCentralCallback.onFail();
-            }
-            else if ((mStatus == Status.Discover) || (mStatus == Status.Online)) {
+            mCentralCallback.onFail();
+        }
+        else if ((mStatus == Status.Discover) || (mStatus == Status.Online)) {
 
-                Utils.info("disconnect");
-                mGatt.disconnect();
+            Utils.info("disconnect");
+            mGatt.disconnect();
 
-                if (mAcceptanceTimer != null) {
-                    mAcceptanceTimer.cancel();
-                    mAcceptanceTimer = null;
-                }
+            if (mAcceptanceTimer != null) {
+                mAcceptanceTimer.cancel();
+                mAcceptanceTimer = null;
             }
         }
     }
@@ -885,255 +1076,1193 @@ public final class CentralImpl {
             mDiscoverTimer = null;
         }
 
+        if (mLinkTimer != null) {
+            mLinkTimer.cancel();
+            mLinkTimer = null;
+        }
+
         mUploadCharacteristic = null;
         mDownloadCharacteristic = null;
         mNotificationDescriptor = null;
 
         mSendBuffer.clear();
+        mSendChannel.clear();
+        setQueuedSize(0);
         mReceiveBuffer.clear();
-        mReceiveMessageSize = -1;
-        mReceiveMessageAddress = -1;
-        mReadWriteLock = false;
-        mOperations.clear();
+        mMaximumWriteLength = DEFAULT_MTU - 3;
+        mFragments.resize(mMaximumWriteLength);
+        mMtuIndex = 0;
+        mCodec.reset();
+        mLargeMessages.clear();
+        setBlocked(false);
+        mWriteWithoutResponse = false;
+        mCredit = 0;
+        mStreaming = false;
+        mStreamExpected = 0;
+        mStreamReceived = 0;
+        mStreamGapAhead = 0;
+        mStreamRetransmit = false;
+        cancelFlush();
+        mLinkTuner.reset(System.currentTimeMillis());
+
+        logStatistics(mReadOperation);
+        logStatistics(mWriteOperation);
+        mPipeline.clear();
     }
 
     public boolean connect(int peripheralId) {
 
-        synchronized (mLockObject) {
+        return mLoop.call(new Callable<Boolean>() {
 
-            if ((mStatus != Status.Ready) && (mStatus != Status.Scan)) {
-                Utils.error("invalid status: %s", mStatus.toString());
-                return false;
-            }
+            @Override
+            public Boolean call() {
 
-            BluetoothDevice bluetoothDevice = null;
-            for (PeripheralContext context : mDiscoveredPeripherals) {
-                if (context.id == peripheralId) {
-                    bluetoothDevice = context.device;
-                    break;
+                if ((mStatus != Status.Ready) && (mStatus != Status.Scan)) {
+                    Utils.error("invalid status: %s", mStatus.toString());
+                    return false;
                 }
-            }
 
-            if (bluetoothDevice == null) {
-                Utils.error("invalid peripheralId: %d", peripheralId);
-                return false;
-            }
+                BluetoothDevice bluetoothDevice = null;
+                for (PeripheralContext context : mDiscoveredPeripherals) {
+                    if (context.id == peripheralId) {
+                        bluetoothDevice = context.device;
+                        break;
+                    }
+                }
 
-            if (mStatus == Status.Scan) {
-                stopScan();
-            }
+                if (bluetoothDevice == null) {
+                    Utils.error("invalid peripheralId: %d", peripheralId);
+                    return false;
+                }
 
-            Context context = UnityPlayer.currentActivity.getApplicationContext();
+                if (mStatus == Status.Scan) {
+                    stopScan();
+                }
 
-            Utils.info("connectGatt: %s", bluetoothDevice.getAddress());
-            mGatt = bluetoothDevice.connectGatt(context, false, mGattCallback);
-            if (mGatt == null) {
-                Utils.error("failed");
-                return false;
-            }
+                Context context = UnityPlayer.currentActivity.getApplicationContext();
 
-            TimerTask timerTask = new TimerTask() {
+                Utils.info("connectGatt: %s", bluetoothDevice.getAddress());
+                mGatt = bluetoothDevice.connectGatt(context, false, mGattCallback);
+                if (mGatt == null) {
+                    Utils.error("failed");
+                    return false;
+                }
 
-                @Override
-                public void run() {
+                mAcceptanceTimer = mLoop.schedule(new Runnable() {
 
-                    synchronized (mLockObject) {
+                    @Override
+                    public void run() {
 
                         Utils.error("connection timeout");
                         handleError();
                     }
-                }
-            };
-
-            mAcceptanceTimer = new Timer();
-            mAcceptanceTimer.schedule(timerTask, ACCEPTANCE_TIMEOUT);
+                }, ACCEPTANCE_TIMEOUT);
 
-            mStatus = Status.Connect;
-        }
+                mStatus = Status.Connect;
 
-        return true;
+                return true;
+            }
+        }, false);
     }
 
     public void accept() {
 
-        synchronized (mLockObject) {
+        mLoop.execute(new Runnable() {
 
-            if (mStatus != Status.Online) {
-                Utils.error("invalid status: %s", mStatus.toString());
-                return;
-            }
+            @Override
+            public void run() {
 
-            if (mAcceptanceTimer != null) {
-                mAcceptanceTimer.cancel();
-                mAcceptanceTimer = null;
+                if (mStatus != Status.Online) {
+                    Utils.error("invalid status: %s", mStatus.toString());
+                    return;
+                }
+
+                if (mAcceptanceTimer != null) {
+                    mAcceptanceTimer.cancel();
+                    mAcceptanceTimer = null;
+                }
             }
-        }
+        });
     }
 
     public void disconnect() {
 
-        synchronized (mLockObject) {
+        mLoop.execute(new Runnable() {
 
-            if ((mStatus == Status.Connect) || (mStatus == Status.Discover)) {
+            @Override
+            public void run() {
 
-                mStatus = Status.Ready;
+                if ((mStatus == Status.Connect) || (mStatus == Status.Discover)) {
 
-                cleanupConnection();
-            }
-            else if (mStatus == Status.Online) {
+                    mStatus = Status.Ready;
 
-                mStatus = Status.Disconnect;
+                    cleanupConnection();
+                }
+                else if (mStatus == Status.Online) {
 
-                Utils.info("disconnect");
-                mGatt.disconnect();
+                    mStatus = Status.Disconnect;
 
-                if (mAcceptanceTimer != null) {
-                    mAcceptanceTimer.cancel();
-                    mAcceptanceTimer = null;
+                    Utils.info("disconnect");
+                    mGatt.disconnect();
+
+                    if (mAcceptanceTimer != null) {
+                        mAcceptanceTimer.cancel();
+                        mAcceptanceTimer = null;
+                    }
                 }
-            }
-            else {
+                else {
 
-                Utils.error("invalid status: %s", mStatus.toString());
+                    Utils.error("invalid status: %s", mStatus.toString());
+                }
             }
-        }
+        });
     }
 
     // Communication
 
-    private ByteBuffer mSendBuffer = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
-    private ByteBuffer mReceiveBuffer = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
-    private int mReceiveMessageSize = -1;
-    private int mReceiveMessageAddress = -1;
+    private SendQueue mSendBuffer = new SendQueue(BUFFER_SIZE);
+    private RingBuffer mReceiveBuffer = new RingBuffer(BUFFER_SIZE);
+    private FrameCodec mCodec = new FrameCodec();
+    private LinkedList<LargeMessage> mLargeMessages = new LinkedList<>();
+    private Lz4 mLz4 = new Lz4();
+    private byte[] mCompressBuffer = new byte[MESSAGE_SIZE_MAX];
+    private BufferPool mBufferPool = new BufferPool();
+    private volatile ReceiveQueue mReceiveQueue = null; // ポーリングで受信する間だけ（drainReceivedからも読む）
+    private volatile int mHighWatermark = DEFAULT_HIGH_WATERMARK;
+    private int mLowWatermark = DEFAULT_LOW_WATERMARK;
+    private volatile boolean mBlocked = false; // sendからも立てる
+    private boolean mWriteWithoutResponse = false;
+    private int mCredit = 0;
+    private boolean mStreaming = false;
+    private int mStreamExpected = 0;
+    private int mStreamReceived = 0;
+    private int mStreamGapAhead = 0; // 再送を求めた時に受け取ったフラグメントが期待より何個先だったか（0なら求めていない）
+    private boolean mStreamRetransmit = false; // 次のSTREAM_ACKで再送も求める
+
+    private GattPipeline mPipeline = new GattPipeline(mLoop, new GattPipeline.Listener() {
 
-    private boolean mReadWriteLock = false;
+        @Override
+        public void onTimeout(GattPipeline.Operation operation) {
 
-    private enum Operation
-    {
-        Read,
-        Write,
-    }
+            // MTUの交換に応じない相手もいるので既定のMTUのまま進める
+            if (operation == mMtuOperation) {
+
+                mMtuIndex = MTU_CANDIDATES.length;
+                mPipeline.complete(mMtuOperation);
+                return;
+            }
+
+            // PHYは変えられなくても通信は続けられる
+            if (operation == mPhyOperation) {
+
+                mLinkTuner.onPhyUpdate(mLinkTuner.getPhy(), false);
+                mPipeline.complete(mPhyOperation);
+                return;
+            }
 
-    private LinkedList<Operation> mOperations = new LinkedList<>();
+            handleError();
+        }
+    });
 
+    // 要求したMTUが通らなければ小さい値で要求し直し、どれも通らなければ既定のMTUのまま進める
+    private GattPipeline.Operation mMtuOperation = new GattPipeline.Operation(
+            "requestMtu", GattPipeline.PRIORITY_LINK, MTU_TIMEOUT) {
 
-    public boolean send(byte[] message, int messageSize, int to) {
+        @Override
+        protected boolean start() {
 
-        synchronized (mLockObject) {
+            while (mMtuIndex < MTU_CANDIDATES.length) {
 
-            if (mStatus != Status.Online) {
-                Utils.error("invalid status: %s", mStatus.toString());
+                Utils.info("requestMtu: %d", MTU_CANDIDATES[mMtuIndex]);
+                if (mGatt.requestMtu(MTU_CANDIDATES[mMtuIndex])) {
+                    return true;
+                }
+
+                Utils.error("failed");
+                mMtuIndex++;
+            }
+
+            Utils.info("using default mtu");
+            return false;
+        }
+    };
+
+    private GattPipeline.Operation mReadOperation = new GattPipeline.Operation(
+            "readCharacteristic", GattPipeline.PRIORITY_DOWNLINK, OPERATION_TIMEOUT) {
+
+        @Override
+        protected boolean start() {
+
+            Utils.info("readCharacteristic");
+            if (!mGatt.readCharacteristic(mDownloadCharacteristic)) {
+                Utils.error("failed");
+                handleError();
                 return false;
             }
 
-            if (message == null) {
-                Utils.error("message is null");
+            return true;
+        }
+    };
+
+    private GattPipeline.Operation mWriteOperation = new GattPipeline.Operation(
+            "writeCharacteristic", GattPipeline.PRIORITY_UPLINK, OPERATION_TIMEOUT) {
+
+        @Override
+        protected boolean start() {
+
+            return processSendBuffer();
+        }
+    };
+
+    private GattPipeline.Operation mHelloOperation = new GattPipeline.Operation(
+            "hello", GattPipeline.PRIORITY_UPLINK, OPERATION_TIMEOUT) {
+
+        @Override
+        protected boolean start() {
+
+            mUploadCharacteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
+            mUploadCharacteristic.setValue(FrameCodec.createHello(FrameCodec.SUPPORTED_FEATURES));
+
+            Utils.info("writeCharacteristic: hello");
+            if (!mGatt.writeCharacteristic(mUploadCharacteristic)) {
+                Utils.error("failed");
+                handleError();
                 return false;
             }
 
-            if ((messageSize < 0) || (messageSize > message.length)) {
-                Utils.error("invalid message size");
+            return true;
+        }
+    };
+
+    // ストリーミングは応答のないnotificationで流れてくるので、indicationに加えてnotificationも有効にする
+    private GattPipeline.Operation mStreamDescriptorOperation = new GattPipeline.Operation(
+            "writeDescriptor", GattPipeline.PRIORITY_LINK, OPERATION_TIMEOUT) {
+
+        @Override
+        protected boolean start() {
+
+            mNotificationDescriptor.setValue(StreamWindow.ENABLE_STREAM_VALUE);
+
+            Utils.info("writeDescriptor: ENABLE_STREAM_VALUE");
+            if (!mGatt.writeDescriptor(mNotificationDescriptor)) {
+                Utils.error("failed");
                 return false;
             }
 
-            if (messageSize > MESSAGE_SIZE_MAX) {
-                Utils.error("message size too large");
+            return true;
+        }
+    };
+
+    // 発行する時点で次に期待するseqを書くので、積まれている間に届いたフラグメントの確認もまとめられる
+    private GattPipeline.Operation mStreamAckOperation = new GattPipeline.Operation(
+            "streamAck", GattPipeline.PRIORITY_DOWNLINK, OPERATION_TIMEOUT) {
+
+        @Override
+        protected boolean start() {
+
+            mNotificationDescriptor.setValue(StreamWindow.createAckValue(mStreamExpected, mStreamRetransmit));
+            mStreamRetransmit = false;
+
+            if (!mGatt.writeDescriptor(mNotificationDescriptor)) {
+                Utils.error("stream ack failed");
                 return false;
             }
 
+            return true;
+        }
+    };
+
+    private int mPreferredPhy = LinkTuner.PHY_1M;
+
+    private GattPipeline.Operation mPhyOperation = new GattPipeline.Operation(
+            "setPreferredPhy", GattPipeline.PRIORITY_BACKGROUND, OPERATION_TIMEOUT) {
+
+        @Override
+        protected boolean start() {
+
+            int mask = LinkTuner.toPhyMask(mPreferredPhy);
+            mGatt.setPreferredPhy(mask, mask, BluetoothDevice.PHY_OPTION_NO_PREFERRED);
+            return true;
+        }
+    };
+
+    // Link tuning
+
+    private LinkTuner mLinkTuner = new LinkTuner(new LinkTuner.Link() {
+
+        @Override
+        public boolean requestConnectionPriority(int priority) {
+
+            return mGatt.requestConnectionPriority(priority);
+        }
+
+        @Override
+        public boolean setPreferredPhy(int phy) {
+
+            mPreferredPhy = phy;
+            mPipeline.submit(mPhyOperation);
+            return true;
+        }
+    }, AndroidLinkEnvironment.INSTANCE, true, LinkTuner.createPolicy(LinkTuner.MODE_ADAPTIVE));
+
+    // 接続パラメータとPHYの選び方を切り替える（LinkTuner.MODE_*）。次の評価の時点で反映される
+    public boolean setLinkMode(int mode) {
+
+        return mLoop.call(new Callable<Boolean>() {
+
+            @Override
+            public Boolean call() {
+
+                LinkPolicy policy = LinkTuner.createPolicy(mode);
+                if (policy == null) {
+                    Utils.error("invalid mode: %d", mode);
+                    return false;
+                }
+
+                mLinkTuner.setPolicy(policy);
+
+                return true;
+            }
+        }, false);
+    }
+
+    private void startLinkTimer() {
+
+        if (mLinkTimer != null) {
+            return;
+        }
+
+        mLinkTimer = mLoop.schedule(new Runnable() {
+
+            @Override
+            public void run() {
+
+                if (mGatt != null) {
+                    mLinkTuner.evaluate(System.currentTimeMillis());
+                }
+            }
+        }, UPDATE_INTERVAL, UPDATE_INTERVAL);
+    }
+
+    private int mCoalescingWindow = 0;
+    private EventLoop.Timeout mFlushTask = null;
+
+    private Runnable mFlushRunnable = new Runnable() {
+
+        @Override
+        public void run() {
+
+            mFlushTask = null;
+
+            if (mStatus == Status.Online) {
+                flushInternal();
+            }
+        }
+    };
+
+    private volatile MessageChannel mSendChannel = new SendChannel(BUFFER_SIZE); // sendからも読む
+    private volatile SharedChannel mSharedSendChannel = null;
+    private volatile SharedChannel mSharedReceiveChannel = null;
+    private byte[] mChannelMessage = new byte[MESSAGE_SIZE_MAX];
+    private final Object mSendLock = new Object(); // SendChannelに書き込むスレッドを一つずつにする
+    private volatile int mQueuedSize = 0; // ループが最後に見た送信バッファのバイト数
+    private AtomicBoolean mChannelPosted = new AtomicBoolean(false);
+
+    private Runnable mChannelTask = new Runnable() {
+
+        @Override
+        public void run() {
+
+            mChannelPosted.set(false);
+            processSendChannel();
+        }
+    };
+
+    // 送信バッファに残っているバイト数を返す。SEND_WOULD_BLOCKならonWritableを待ってから送り直す
+    // メッセージはSendChannelに積んでループで符号化するので、Unityのスレッドはループとの往復を待たない
+    // SendChannelは書き込むスレッドが一つの前提なので、書き込みはmSendLockで一つずつにする（競合しなければ費用はわずか）
+    // 共有のリングにはC#が直接書き込むので、C#のラッパーも同じ順番で一つずつ書き込む
+    public int send(byte[] message, int messageSize, int to) {
+
+        return send(message, 0, messageSize, to);
+    }
+
+    // MessageBufferに続けて組み立てたメッセージを、切り出さずにsrcのoffsetから送る
+    public int send(byte[] src, int offset, int length, int to) {
+
+        return send(src, offset, length, to, false);
+    }
+
+    // unthrottledなら高水位に達していてもブロックせず、SendChannelに空きがある限り積む（システムメッセージと、水位を使わない従来のsend）
+    public int send(byte[] src, int offset, int length, int to, boolean unthrottled) {
+
+        if (src == null) {
+            Utils.error("message is null");
+            return SEND_FAILED;
+        }
+
+        if ((offset < 0) || (length < 0) || (offset > src.length - length)) {
+            Utils.error("invalid message size");
+            return SEND_FAILED;
+        }
+
+        synchronized (mSendLock) {
+
+            int queued = beginSend(length, unthrottled);
+            if (queued < 0) {
+                return queued;
+            }
+
+            int kind = unthrottled ? MessageChannel.KIND_UNTHROTTLED : 0;
+            return endSend(mSendChannel.offer(src, offset, length, to, kind), queued, length);
+        }
+    }
+
+    // srcのpositionからlimitまでを送る。SendChannelに積めればpositionはlimitまで進む
+    public int send(ByteBuffer src, int to) {
+
+        if (src == null) {
+            Utils.error("message is null");
+            return SEND_FAILED;
+        }
+
+        int length = src.remaining();
+
+        synchronized (mSendLock) {
+
+            int queued = beginSend(length, false);
+            if (queued < 0) {
+                return queued;
+            }
+
+            return endSend(mSendChannel.offer(src, to), queued, length);
+        }
+    }
+
+    // ヘッダーとペイロードのように分かれているものを、つなげた一つのメッセージとして送る
+    public int send(ByteBuffer[] segments, int to) {
+
+        int length = MessageChannel.Segments.remaining(segments);
+        if (length < 0) {
+            Utils.error("invalid segments");
+            return SEND_FAILED;
+        }
+
+        synchronized (mSendLock) {
+
+            int queued = beginSend(length, false);
+            if (queued < 0) {
+                return queued;
+            }
+
+            return endSend(mSendChannel.offer(segments, to), queued, length);
+        }
+    }
+
+    // SendBatchの形式でcount個詰めたpackedを先頭から順にSendChannelに積み、積めたメッセージの数を返す
+    // JNIの呼び出しもループへの通知も一回で済む。countより少なければonWritableを待って残りを送り直す
+    public int sendBatch(byte[] packed, int count) {
+
+        return sendBatch(packed, 0, count);
+    }
+
+    // packedのstartから始まるcount個を送る（共有のリングに収まらなかった残りを切り出さずに渡せる）
+    public int sendBatch(byte[] packed, int start, int count) {
+
+        // 途中で失敗しないように先に全体を確かめる
+        if (!SendBatch.validate(packed, start, count, MESSAGE_SIZE_MAX)) {
+            Utils.error("invalid batch");
+            return SEND_FAILED;
+        }
+
+        synchronized (mSendLock) {
+
+            // sendと同じく状態はロックの中で確かめる
+            if (mStatus != Status.Online) {
+                Utils.error("invalid status: %s", mStatus.toString());
+                return SEND_FAILED;
+            }
+
+            int sent = 0;
+            int offset = start;
+
+            while (sent < count) {
+
+                int length = SendBatch.length(packed, offset);
+                int queued = mQueuedSize + mSendChannel.size();
+
+                if (mBlocked || (queued >= mHighWatermark) || !mSendChannel.offer(packed, offset + SendBatch.HEADER_SIZE, length, SendBatch.receiver(packed, offset))) {
+
+                    setBlocked(true);
+                    break;
+                }
+
+                offset += SendBatch.HEADER_SIZE + length;
+                sent++;
+            }
+
+            postSendChannel();
+
+            return sent;
+        }
+    }
+
+    // 送れる状態ならSendChannelと送信バッファに積まれているバイト数を、送れなければSEND_FAILEDかSEND_WOULD_BLOCKを返す
+    private int beginSend(int messageSize, boolean unthrottled) {
+
+        if (mStatus != Status.Online) {
+            Utils.error("invalid status: %s", mStatus.toString());
+            return SEND_FAILED;
+        }
+
+        if (messageSize > MESSAGE_SIZE_MAX) {
+            Utils.error("message size too large");
+            return SEND_FAILED;
+        }
+
+        int queued = mQueuedSize + mSendChannel.size();
+
+        if (!unthrottled && (mBlocked || (queued >= mHighWatermark))) {
+
+            setBlocked(true);
+            postSendChannel();
+            return SEND_WOULD_BLOCK;
+        }
+
+        return queued;
+    }
+
+    private int endSend(boolean offered, int queued, int messageSize) {
+
+        if (!offered) {
+
+            setBlocked(true);
+            postSendChannel();
+            return SEND_WOULD_BLOCK;
+        }
+
+        postSendChannel();
+
+        return queued + messageSize;
+    }
+
+    private void postSendChannel() {
+
+        // ループが止まっていて積めなければ、次に動き出した時に積み直せるように戻す
+        if (mChannelPosted.compareAndSet(false, true) && !mLoop.post(mChannelTask)) {
+            mChannelPosted.set(false);
+        }
+    }
+
+    private void setBlocked(boolean blocked) {
+
+        mBlocked = blocked;
+        publishSendState();
+    }
+
+    private void setQueuedSize(int size) {
+
+        mQueuedSize = size;
+        publishSendState();
+    }
+
+    // 共有のリングに直接書き込むUnityがbeginSendと同じ判断をできるように公開する
+    // 送る側とループの両方から呼ばれるので、最後に書かれた値が今のmBlockedになるようにチャンネルで同期する
+    private void publishSendState() {
+
+        SharedChannel channel = mSharedSendChannel;
+        if (channel == null) {
+            return;
+        }
+
+        synchronized (channel) {
+            channel.publishSendState(mBlocked ? -1 : 0, mQueuedSize, mHighWatermark);
+        }
+    }
+
+    // 送信バッファに収まる間だけSendChannelからメッセージを取り出して符号化する
+    private void processSendChannel() {
+
+        if (mStatus != Status.Online) {
+            mSendChannel.clear();
+            return;
+        }
+
+        boolean queued = false;
+
+        while (true) {
+
+            int messageSize = mSendChannel.peekSize();
+            if ((messageSize < 0) || !FrameCodec.canEncode(mSendBuffer, messageSize)) {
+                break;
+            }
+
+            int to = mSendChannel.peekReceiver();
+            mSendChannel.poll(mChannelMessage);
+
             try
             {
-                mSendBuffer.putChar((char)messageSize);
-                mSendBuffer.putChar((char)to);
-                mSendBuffer.put(message, 0, messageSize);
+                int compressedSize = -1;
+                if (mCodec.canCompress(messageSize)) {
+                    compressedSize = FrameCodec.compress(mLz4, mChannelMessage, 0, messageSize, mCompressBuffer);
+                }
+
+                if (compressedSize > 0) {
+                    mCodec.encode(mSendBuffer, mCompressBuffer, 0, compressedSize, to & 0xffff, FrameCodec.FLAG_COMPRESSED);
+                }
+                else {
+                    mCodec.encode(mSendBuffer, mChannelMessage, 0, messageSize, to & 0xffff, 0);
+                }
             }
             catch (Exception e)
             {
-                Utils.error(e.toString());
+                Utils.error("%s", e);
+                mSendChannel.clear();
                 handleError();
-                return false;
+                return;
+            }
+
+            queued = true;
+        }
+
+        setQueuedSize(mSendBuffer.size());
+
+        if (queued) {
+            requestWrite();
+        }
+
+        processWritable();
+    }
+
+    // MESSAGE_SIZE_MAXを超えるメッセージはチャンクに分けて送信バッファの空きに合わせて流し込む
+    public int sendLarge(byte[] message, int messageSize, int to) {
+
+        if ((message != null) && (messageSize >= 0) && (messageSize <= MESSAGE_SIZE_MAX)) {
+            return send(message, messageSize, to);
+        }
+
+        // SendChannelには書き込まないのでmSendLockは取らない（ループを待つ間に他のsendを止めない）
+        // 呼び出したスレッドが先に積んだメッセージはループで先に取り出すので、順番は崩れない
+        return mLoop.call(new Callable<Integer>() {
+
+            @Override
+            public Integer call() {
+
+                if (mStatus != Status.Online) {
+                    Utils.error("invalid status: %s", mStatus.toString());
+                    return SEND_FAILED;
+                }
+
+                if (message == null) {
+                    Utils.error("message is null");
+                    return SEND_FAILED;
+                }
+
+                if (messageSize > message.length) {
+                    Utils.error("invalid message size");
+                    return SEND_FAILED;
+                }
+
+                if ((to & 0xffff) == 0) {
+                    Utils.error("invalid receiver");
+                    return SEND_FAILED;
+                }
+
+                if (!mCodec.acceptsLargeMessage()) {
+                    Utils.error("large message not supported");
+                    return SEND_FAILED;
+                }
+
+                // SendChannelで待っているメッセージがあれば追い越さない
+                processSendChannel();
+
+                if (!mSendChannel.isEmpty()) {
+                    setBlocked(true);
+                    return SEND_WOULD_BLOCK;
+                }
+
+                if (!canQueue(0)) {
+                    return SEND_WOULD_BLOCK;
+                }
+
+                mLargeMessages.add(new LargeMessage(new Buffer(message, 0, messageSize), to & 0xffff));
+                processLargeMessages();
+
+                requestWrite();
+
+                return mSendBuffer.size();
             }
+        }, SEND_FAILED);
+    }
 
-            if (!mReadWriteLock) {
+    // 上りの1フラグメントあたりのペイロードのバイト数
+    public int getPayloadSize() {
 
-                processSendBuffer();
+        return mLoop.call(new Callable<Integer>() {
+
+            @Override
+            public Integer call() {
+
+                return mMaximumWriteLength;
             }
-            else if (!mOperations.contains(Operation.Write)) {
+        }, 0);
+    }
+
+    // trueにすると受信したメッセージをコールバックで届けずにReceiveQueueに溜め、drainReceivedで取り出す
+    // falseに戻すと取り出されていないメッセージは捨てる
+    public boolean setReceivePolling(boolean enabled) {
+
+        return mLoop.call(new Callable<Boolean>() {
+
+            @Override
+            public Boolean call() {
+
+                if (mStatus == Status.Invalid) {
+                    Utils.error("invalid status: %s", mStatus.toString());
+                    return false;
+                }
+
+                if (enabled == (mReceiveQueue != null)) {
+                    return true;
+                }
+
+                if (mSharedSendChannel != null) {
+                    Utils.error("shared channels are enabled");
+                    return false;
+                }
 
-                mOperations.add(Operation.Write);
+                if (enabled) {
+                    mReceiveQueue = new ReceiveQueue(mLoop);
+                }
+                else {
+                    mReceiveQueue.close();
+                    mReceiveQueue = null;
+                }
+
+                return true;
             }
+        }, false);
+    }
+
+    // 溜まっている受信メッセージをReceiveQueueのレコードでdstに詰め、詰めたバイト数を返す
+    // Unityのスレッドから毎フレーム呼ぶ。EventLoopを待たない
+    public int drainReceived(byte[] dst) {
+
+        ReceiveQueue queue = mReceiveQueue;
+        if ((queue == null) || (dst == null)) {
+            return 0;
         }
 
-        return true;
+        return queue.drain(dst, 0, dst.length);
     }
 
-    private void processSendBuffer() {
+    // drainReceivedと同じレコードを、詰めたバイト数ちょうどの配列で返す（なければnull）
+    public byte[] drainReceivedRecords() {
 
-        if (mSendBuffer.position() == 0) {
-            return;
+        ReceiveQueue queue = mReceiveQueue;
+        if (queue == null) {
+            return null;
         }
 
-        mSendBuffer.flip();
+        return queue.drain();
+    }
 
-        int size = Math.min(mSendBuffer.limit(), mMaximumWriteLength);
-        byte[] value = new byte[size];
+    // 送受信のチャンネルをUnityと共有するダイレクトバッファ（SharedChannel）に切り替える。接続する前に呼び、cleanupまで戻せない
+    // Unityはget*SharedBufferで得たバッファに直接書き込み、受信したメッセージも直接取り出すので、メッセージごとの配列のコピーがなくなる
+    // 受信はポーリングになる（setReceivePollingは不要）
+    public boolean enableSharedChannels() {
 
-        mSendBuffer.get(value);
-        mSendBuffer.compact();
+        return mLoop.call(new Callable<Boolean>() {
 
-        mUploadCharacteristic.setValue(value);
+            @Override
+            public Boolean call() {
 
-        Utils.info("writeCharacteristic: %d bytes remain %d bytes", size, mSendBuffer.position());
-        if (!mGatt.writeCharacteristic(mUploadCharacteristic)) {
-            Utils.error("failed");
-            handleError();
+                if (mSharedSendChannel != null) {
+                    return true;
+                }
+
+                if ((mStatus == Status.Invalid) || (mStatus == Status.Online)) {
+                    Utils.error("invalid status: %s", mStatus.toString());
+                    return false;
+                }
+
+                mSharedSendChannel = new SharedChannel(BUFFER_SIZE);
+                mSharedReceiveChannel = new SharedChannel(ReceiveQueue.CAPACITY);
+                mSendChannel = mSharedSendChannel;
+                publishSendState();
+
+                if (mReceiveQueue != null) {
+                    mReceiveQueue.close();
+                }
+
+                mReceiveQueue = new ReceiveQueue(mLoop, mSharedReceiveChannel);
+
+                return true;
+            }
+        }, false);
+    }
+
+    // Unityが書き込む送信のリング（enableSharedChannelsの前ならnull）
+    public ByteBuffer getSendSharedBuffer() {
+
+        SharedChannel channel = mSharedSendChannel;
+        return (channel != null) ? channel.getBuffer() : null;
+    }
+
+    // Unityが取り出す受信のリング（enableSharedChannelsの前ならnull）
+    public ByteBuffer getReceiveSharedBuffer() {
+
+        SharedChannel channel = mSharedReceiveChannel;
+        return (channel != null) ? channel.getBuffer() : null;
+    }
+
+    // Unityが送信のリングに書き込んだ後、waitingが立っていれば呼ぶ。配列を渡さないのでJNIの呼び出しだけで済む
+    public void wakeSendChannel() {
+
+        postSendChannel();
+    }
+
+    public boolean setWatermarks(int lowWatermark, int highWatermark) {
+
+        if ((lowWatermark < 0) || (highWatermark <= lowWatermark) || (highWatermark > BUFFER_SIZE)) {
+            Utils.error("invalid watermarks: %d %d", lowWatermark, highWatermark);
+            return false;
+        }
+
+        return mLoop.call(new Callable<Boolean>() {
+
+            @Override
+            public Boolean call() {
+
+                mLowWatermark = lowWatermark;
+                mHighWatermark = highWatermark;
+                publishSendState();
+
+                return true;
+            }
+        }, false);
+    }
+
+    // 送信バッファが高水位に達しているかメッセージが収まらなければブロックし、低水位まで下がったらonWritableで知らせる
+    private boolean canQueue(int messageSize) {
+
+        if (!mBlocked
+                && (mSendBuffer.size() < mHighWatermark)
+                && FrameCodec.canEncode(mSendBuffer, messageSize)) {
+            return true;
+        }
+
+        setBlocked(true);
+        return false;
+    }
+
+    private void processWritable() {
+
+        setQueuedSize(mSendBuffer.size());
+
+        if (mBlocked && (mSendBuffer.size() + mSendChannel.size() <= mLowWatermark)) {
+
+            setBlocked(false);
+            mCentralCallback.onWritable();
+        }
+    }
+
+    private void processLargeMessages() {
+
+        while (!mLargeMessages.isEmpty()) {
+
+            if (!mCodec.encodeChunks(mSendBuffer, mLargeMessages.peek())) {
+                break;
+            }
+
+            mLargeMessages.remove();
+        }
+    }
+
+    private void requestWrite() {
+
+        if (mPipeline.isIdle() && (mCoalescingWindow != 0) && (mSendBuffer.size() < mMaximumWriteLength)) {
+
+            scheduleFlush();
             return;
         }
 
-        mReadWriteLock = true;
+        cancelFlush();
+        mPipeline.submit(mWriteOperation);
+    }
+
+    // 0より大きければ、書き込み中でない時の送信を1フラグメント分溜まるか指定時間（マイクロ秒）が経過するまで遅らせる
+    public void setCoalescingWindow(int microseconds) {
+
+        mLoop.execute(new Runnable() {
+
+            @Override
+            public void run() {
+
+                mCoalescingWindow = Math.max(microseconds, 0);
+
+                if (mCoalescingWindow == 0) {
+
+                    if (mFlushTask != null) {
+
+                        cancelFlush();
+
+                        if (mStatus == Status.Online) {
+                            flushInternal();
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    public void flush() {
+
+        mLoop.execute(new Runnable() {
+
+            @Override
+            public void run() {
+
+                if (mStatus != Status.Online) {
+                    Utils.error("invalid status: %s", mStatus.toString());
+                    return;
+                }
+
+                cancelFlush();
+                flushInternal();
+            }
+        });
+    }
+
+    private void flushInternal() {
+
+        if (!mSendBuffer.isEmpty()) {
+            mPipeline.submit(mWriteOperation);
+        }
     }
 
-    private void processOperation() {
+    private void scheduleFlush() {
 
-        if (mOperations.isEmpty()) {
+        if (mFlushTask != null) {
             return;
         }
 
-        if (mOperations.remove() == Operation.Read) {
+        // ミリ秒単位なので切り上げる
+        mFlushTask = mLoop.schedule(mFlushRunnable, (mCoalescingWindow + 999) / 1000);
+    }
 
-            Utils.info("readCharacteristic");
-            if (!mGatt.readCharacteristic(mDownloadCharacteristic)) {
-                Utils.error("failed");
-                handleError();
-                return;
+    private void cancelFlush() {
+
+        if (mFlushTask != null) {
+            mFlushTask.cancel();
+            mFlushTask = null;
+        }
+    }
+
+    // ポーリングしていればReceiveQueueに溜める
+    // Unityが取り出さずに溜まりきったらfalseを返すので、呼び出し側は切断する
+    private boolean receive(Buffer message, int from) {
+
+        if (mReceiveQueue != null) {
+            return offerReceived(message, from, ReceiveQueue.KIND_MESSAGE);
+        }
+
+        mCentralCallback.onReceive(message, from);
+        return true;
+    }
+
+    private boolean receiveChunk(Buffer chunk, int from, boolean last) {
+
+        if (mReceiveQueue != null) {
+            return offerReceived(chunk, from, last ? ReceiveQueue.KIND_LAST_CHUNK : ReceiveQueue.KIND_CHUNK);
+        }
+
+        mCentralCallback.onReceiveChunk(chunk, from, last);
+        return true;
+    }
+
+    private boolean offerReceived(Buffer message, int from, int kind) {
+
+        if (mReceiveQueue.offer(message, from, kind)) {
+            return true;
+        }
+
+        Utils.error("receive queue is full");
+        return false;
+    }
+
+    private void processControl(int type, byte[] payload, int size) {
+
+        switch (type) {
+
+            case FrameCodec.CONTROL_ACCEPT: {
+
+                int features = FrameCodec.acceptFeatures(FrameCodec.parseFeatures(payload, size));
+                Utils.info("features accepted: 0x%04x", features);
+
+                mCodec.setDecoderFeatures(features);
+
+                try
+                {
+                    mCodec.encode(mSendBuffer, payload, 0, 0, FrameCodec.CONTROL_ACK, FrameCodec.FLAG_CONTROL);
+                }
+                catch (Exception e)
+                {
+                    Utils.error("%s", e);
+                    handleError();
+                    return;
+                }
+
+                mCodec.setEncoderFeatures(features);
+
+                if ((features & FrameCodec.FEATURE_NOTIFICATION_STREAM) != 0) {
+                    mPipeline.submit(mStreamDescriptorOperation);
+                }
+
+                mPipeline.submit(mWriteOperation);
+
+                break;
+            }
+
+            // 最初のCREDITを受けてから上りを応答なし書き込みに切り替える
+            case FrameCodec.CONTROL_CREDIT: {
+
+                mCredit += FrameCodec.parseCredit(payload, size);
+                mWriteWithoutResponse = true;
+
+                mPipeline.submit(mWriteOperation);
+                break;
             }
 
-            mReadWriteLock = true;
+            default:
+                Utils.error("invalid control: %d", type);
+                break;
         }
-        else {
+    }
+
+    // 次に期待するseqを返す。retransmitならそこから送り直してもらう
+    // 上りのフレームに混ぜるとクレジットを待つ間に下りの窓が埋まり、CREDITも下りで届くので互いに止まる
+    // CCCDへの書き込みで送ればクレジットも上りの順番も待たない
+    private void sendStreamAck(boolean retransmit) {
 
-            processSendBuffer();
+        if (retransmit) {
+            mStreamRetransmit = true;
         }
+
+        mStreamReceived = 0;
+        mPipeline.submit(mStreamAckOperation);
     }
 
-    // Cleanup
+    // 書き込みを発行したらtrueを返す
+    private boolean processSendBuffer() {
 
-    public void cleanup() {
+        if (mSendBuffer.isEmpty()) {
+            return false;
+        }
+
+        int size = FragmentCache.fragmentSize(mSendBuffer.size(), mMaximumWriteLength);
+        int writeType = BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT;
 
-        synchronized (mLockObject) {
+        // クレジットを使い切ったらCREDITが届くまで書き込まない
+        if (mWriteWithoutResponse) {
 
-            if (mStatus == Status.Scan) {
-                stopScan();
+            if (mCredit == 0) {
+                return false;
             }
 
-            mStatus = Status.Invalid;
+            size = Math.min(size, mCredit);
+            mCredit -= size;
+            writeType = BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE;
+        }
 
-            cleanupConnection();
+        byte[] value = mFragments.obtain(size);
+
+        mSendBuffer.get(value, 0, size);
+        processLargeMessages();
+
+        if (!mSendChannel.isEmpty()) {
+            processSendChannel();
+        }
+
+        Utils.info("writeCharacteristic: %d bytes remain %d bytes credit %d", size, mSendBuffer.size(), mCredit);
+
+        mLinkTuner.record(size, System.currentTimeMillis());
+
+        if (!GattCompat.writeCharacteristic(mGatt, mUploadCharacteristic, value, writeType)) {
+            Utils.error("failed");
+            handleError();
+            return false;
+        }
+
+        if (!mSendBuffer.isEmpty()) {
+            mPipeline.submit(mWriteOperation);
+        }
+
+        processWritable();
+
+        return true;
+    }
+
+    private void logStatistics(GattPipeline.Operation operation) {
+
+        if (operation.getCount() > 0) {
 
-            mServiceUUID = null;
-            mUploadUUID = null;
-            mDownloadUUID = null;
-            mCentralCallback = null;
+            Utils.info("%s: %d operations average %d us max %d us",
+                    operation.getName(), operation.getCount(), operation.getAverageLatency(), operation.getMaxLatency());
         }
+
+        operation.resetStatistics();
+    }
+
+    // Cleanup
+
+    public void cleanup() {
+
+        mLoop.call(new Callable<Boolean>() {
+
+            @Override
+            public Boolean call() {
+
+                if (mStatus == Status.Scan) {
+                    stopScan();
+                }
+
+                mStatus = Status.Invalid;
+
+                cleanupConnection();
+                mBufferPool.clear();
+
+                mCoalescingWindow = 0;
+                mLowWatermark = DEFAULT_LOW_WATERMARK;
+                mHighWatermark = DEFAULT_HIGH_WATERMARK;
+
+                mServiceUUID = null;
+                mUploadUUID = null;
+                mDownloadUUID = null;
+
+                if (mReceiveQueue != null) {
+                    mReceiveQueue.close();
+                    mReceiveQueue = null;
+                }
+
+                if (mSharedSendChannel != null) {
+                    mSendChannel = new SendChannel(BUFFER_SIZE);
+                    mSharedSendChannel = null;
+                    mSharedReceiveChannel = null;
+                }
+
+                if (mCentralCallback != null) {
+                    mCentralCallback.close();
+                    mCentralCallback = null;
+                }
+
+                return true;
+            }
+        }, false);
+
+        mLoop.quit();
+
+        // 止める前に積んだmChannelTaskは捨てられるので、次のinitializeの後も送信のチャンネルを取り出せるように戻す
+        mChannelPosted.set(false);
     }
 }
@@ -0,0 +1,240 @@
+package xflag.plugins.bleSock;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.NoSuchElementException;
+
+// 接続中のセントラルの索引
+// アドレス（大文字に揃え、secondaryAddressの別名も含む）、connectionId、playerIdのビットのどれからも探索せずに引ける
+final class CentralRegistry<T> {
+
+    public static final int PLAYER_BITS = 16;
+    public static final int PLAYER_MASK = (1 << PLAYER_BITS) - 1;
+
+    private static final int INITIAL_SLOTS = 16;
+
+    private final HashMap<String, T> mAddresses = new HashMap<>();
+    private final Object[] mPlayers = new Object[PLAYER_BITS];
+
+    // connectionIdの下位ビットをスロットの番号として使う
+    private Object[] mSlots = new Object[INITIAL_SLOTS];
+    private int[] mSlotIds = new int[INITIAL_SLOTS];
+    private int mSlotCount = 0;
+    private int mNextConnectionId = 1;
+    private Receivers mFreeReceivers = null;
+
+    // 宛先のビットマスクに含まれる登録済みのプレイヤーを順に返す
+    // 最後まで回したものは次のreceiversで使い回す（途中で抜けた場合や入れ子の場合は新しく作る）
+    final class Receivers implements Iterable<T>, Iterator<T> {
+
+        private int mBits = 0;
+        private T mNext = null;
+
+        @Override
+        public Iterator<T> iterator() {
+
+            return this;
+        }
+
+        // 取り出す時点で引くので、回している間に外されたプレイヤーは返さない
+        @Override
+        public boolean hasNext() {
+
+            while ((mNext == null) && (mBits != 0)) {
+
+                mNext = getPlayer(Integer.numberOfTrailingZeros(mBits));
+                mBits &= mBits - 1;
+            }
+
+            if (mNext == null) {
+                mFreeReceivers = this;
+                return false;
+            }
+
+            return true;
+        }
+
+        @Override
+        public T next() {
+
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+
+            T context = mNext;
+            mNext = null;
+            return context;
+        }
+
+        @Override
+        public void remove() {
+
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    // Address
+
+    public T get(String address) {
+
+        if (address == null) {
+            return null;
+        }
+
+        return mAddresses.get(normalize(address));
+    }
+
+    public void putAddress(String address, T context) {
+
+        mAddresses.put(normalize(address), context);
+    }
+
+    // 別のセントラルが同じアドレスで登録し直していれば消さない
+    public void removeAddress(String address, T context) {
+
+        if (address == null) {
+            return;
+        }
+
+        String key = normalize(address);
+        if (mAddresses.get(key) == context) {
+            mAddresses.remove(key);
+        }
+    }
+
+    private static String normalize(String address) {
+
+        return address.toUpperCase(Locale.US);
+    }
+
+    // Connection id
+
+    // 下位ビットが空きスロットを指すIDを割り当てる。IDは使い回さないので古いIDで別のセントラルを引くことはない
+    public int addConnection(T context) {
+
+        if (mSlotCount == mSlots.length) {
+            grow();
+        }
+
+        while (true) {
+
+            int connectionId = mNextConnectionId++;
+            if (connectionId <= 0) {
+                mNextConnectionId = 1;
+                continue;
+            }
+
+            int slot = connectionId & (mSlots.length - 1);
+            if (mSlots[slot] == null) {
+
+                mSlots[slot] = context;
+                mSlotIds[slot] = connectionId;
+                mSlotCount++;
+                return connectionId;
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public T getConnection(int connectionId) {
+
+        if (connectionId <= 0) {
+            return null;
+        }
+
+        int slot = connectionId & (mSlots.length - 1);
+        if ((mSlots[slot] == null) || (mSlotIds[slot] != connectionId)) {
+            return null;
+        }
+
+        return (T)mSlots[slot];
+    }
+
+    public void removeConnection(int connectionId) {
+
+        if (getConnection(connectionId) == null) {
+            return;
+        }
+
+        mSlots[connectionId & (mSlots.length - 1)] = null;
+        mSlotCount--;
+    }
+
+    // スロットを倍にしても使用中のIDの下位ビットは衝突しない
+    private void grow() {
+
+        Object[] slots = new Object[mSlots.length * 2];
+        int[] slotIds = new int[mSlots.length * 2];
+
+        for (int i = 0; i < mSlots.length; i++) {
+
+            if (mSlots[i] != null) {
+
+                int slot = mSlotIds[i] & (slots.length - 1);
+                slots[slot] = mSlots[i];
+                slotIds[slot] = mSlotIds[i];
+            }
+        }
+
+        mSlots = slots;
+        mSlotIds = slotIds;
+    }
+
+    // Player
+
+    // bitはplayerIdのビット位置（宛先のビットマスクから引く場合はreceiversを使う）
+    @SuppressWarnings("unchecked")
+    public T getPlayer(int bit) {
+
+        return (T)mPlayers[bit];
+    }
+
+    // for (T context : registry.receivers(receiver)) の形で宛先を回す
+    public Receivers receivers(int receiver) {
+
+        Receivers receivers = mFreeReceivers;
+        mFreeReceivers = null;
+
+        if (receivers == null) {
+            receivers = new Receivers();
+        }
+
+        receivers.mBits = receiver & PLAYER_MASK;
+        receivers.mNext = null;
+        return receivers;
+    }
+
+    public void putPlayer(int playerId, T context) {
+
+        for (int bits = playerId & PLAYER_MASK; bits != 0; bits &= bits - 1) {
+            mPlayers[Integer.numberOfTrailingZeros(bits)] = context;
+        }
+    }
+
+    public void removePlayer(int playerId, T context) {
+
+        for (int bits = playerId & PLAYER_MASK; bits != 0; bits &= bits - 1) {
+
+            int bit = Integer.numberOfTrailingZeros(bits);
+            if (mPlayers[bit] == context) {
+                mPlayers[bit] = null;
+            }
+        }
+    }
+
+    public void clear() {
+
+        mAddresses.clear();
+
+        for (int i = 0; i < mPlayers.length; i++) {
+            mPlayers[i] = null;
+        }
+
+        for (int i = 0; i < mSlots.length; i++) {
+            mSlots[i] = null;
+        }
+
+        mSlotCount = 0;
+    }
+}
@@ -0,0 +1,249 @@
+package xflag.plugins.bleSock;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// 状態を持つスレッド
+// CentralImpl、PeripheralImplの状態はこのスレッドだけが触り、UnityやBinderのスレッドからの呼び出しとタイマーはここに積まれる
+// Unityへのコールバックはここで積むだけで、CallbackDispatcherのスレッドから届ける
+final class EventLoop {
+
+    private static final int CALL_TIMEOUT = 5000; // 待っている間にquitされても戻れるように
+
+    // 期限が来たらループのスレッドでtaskを実行する。cancelもループのスレッドから呼ぶ
+    static final class Timeout implements Runnable {
+
+        private final EventLoop mLoop;
+        private final Runnable mTask;
+        private final long mPeriod;
+        private boolean mCancelled = false;
+
+        private Timeout(EventLoop loop, Runnable task, long period) {
+
+            mLoop = loop;
+            mTask = task;
+            mPeriod = period;
+        }
+
+        public void cancel() {
+
+            mCancelled = true;
+            mLoop.remove(this);
+        }
+
+        @Override
+        public void run() {
+
+            if (mCancelled) {
+                return;
+            }
+
+            // taskの中でcancelされれば積み直した分も取り除かれる
+            if (mPeriod > 0) {
+                mLoop.postDelayed(this, mPeriod);
+            }
+
+            mTask.run();
+        }
+    }
+
+    // callで積む処理。待ちきれずにfallbackを返したものは後から実行しない
+    private static final class Call<T> implements Runnable {
+
+        private static final int PENDING = 0;
+        private static final int RUNNING = 1;
+        private static final int CANCELLED = 2;
+
+        private final FutureTask<T> mFuture;
+        private final AtomicInteger mState = new AtomicInteger(PENDING);
+
+        Call(Callable<T> task) {
+
+            mFuture = new FutureTask<>(task);
+        }
+
+        @Override
+        public void run() {
+
+            if (mState.compareAndSet(PENDING, RUNNING)) {
+                mFuture.run();
+            }
+        }
+
+        // まだ始まっていなければ取り消してtrueを返す
+        boolean cancel() {
+
+            return mState.compareAndSet(PENDING, CANCELLED);
+        }
+    }
+
+    private final String mName;
+    private HandlerThread mThread = null;
+    private volatile Handler mHandler = null;
+
+    public EventLoop(String name) {
+
+        mName = name;
+    }
+
+    public synchronized void start() {
+
+        if (mThread != null) {
+            return;
+        }
+
+        mThread = new HandlerThread(mName);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    // 積まれている処理は捨てる
+    public synchronized void quit() {
+
+        if (mThread == null) {
+            return;
+        }
+
+        mHandler = null;
+        mThread.quit();
+        mThread = null;
+    }
+
+    public boolean isInLoop() {
+
+        Handler handler = mHandler;
+        return (handler != null) && (handler.getLooper() == Looper.myLooper());
+    }
+
+    // ループのスレッドからならその場で実行する
+    public void execute(Runnable task) {
+
+        if (isInLoop()) {
+            task.run();
+            return;
+        }
+
+        post(task);
+    }
+
+    // 止まっていればfalseを返して何もしない
+    public boolean post(Runnable task) {
+
+        Handler handler = mHandler;
+        if (handler == null) {
+            return false;
+        }
+
+        return handler.post(task);
+    }
+
+    public boolean postDelayed(Runnable task, long delayMillis) {
+
+        Handler handler = mHandler;
+        if (handler == null) {
+            return false;
+        }
+
+        return handler.postDelayed(task, delayMillis);
+    }
+
+    // java.util.Timerと違ってスレッドを作らないので、タイムアウト一つの費用はTimeoutのオブジェクト一つで済む
+    public Timeout schedule(Runnable task, long delayMillis) {
+
+        return schedule(task, delayMillis, 0);
+    }
+
+    // periodが0より大きければその間隔で繰り返す
+    public Timeout schedule(Runnable task, long delayMillis, long periodMillis) {
+
+        Timeout timeout = new Timeout(this, task, periodMillis);
+        postDelayed(timeout, delayMillis);
+
+        return timeout;
+    }
+
+    public void remove(Runnable task) {
+
+        Handler handler = mHandler;
+        if (handler != null) {
+            handler.removeCallbacks(task);
+        }
+    }
+
+    // ループで実行して結果を待つ（止まっていればfallbackを返す）
+    // 往復の待ちが入るので送信のような頻繁な呼び出しには使わない
+    // CALL_TIMEOUTまでに始まらなければ取り消してfallbackを返す。始まっていれば終わるまで待ち、fallbackを返した処理が後から実行されることはない
+    public <T> T call(Callable<T> task, T fallback) {
+
+        if (isInLoop()) {
+
+            try {
+
+                return task.call();
+            }
+            catch (Exception e) {
+
+                Utils.error("%s", e);
+                return fallback;
+            }
+        }
+
+        Call<T> call = new Call<>(task);
+        if (!post(call)) {
+            Utils.error("%s is not running", mName);
+            return fallback;
+        }
+
+        boolean interrupted = false;
+
+        try {
+
+            while (true) {
+
+                try {
+
+                    if (call.mState.get() == Call.RUNNING) {
+                        return call.mFuture.get();
+                    }
+
+                    return call.mFuture.get(CALL_TIMEOUT, TimeUnit.MILLISECONDS);
+                }
+                catch (TimeoutException e) {
+
+                    if (call.cancel()) {
+                        Utils.error("%s: call timed out", mName);
+                        return fallback;
+                    }
+                }
+                catch (InterruptedException e) {
+
+                    // 取り消せなければ結果を待ち直す（割り込みは戻る前に立て直す）
+                    interrupted = true;
+
+                    if (call.cancel()) {
+                        return fallback;
+                    }
+                }
+                catch (ExecutionException e) {
+
+                    Utils.error(e.getCause().toString());
+                    return fallback;
+                }
+            }
+        }
+        finally {
+
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package xflag.plugins.bleSock;
+
+// 通信量によらず決まった設定を使う方針（ゲームの場面ごとにアプリ側で切り替える場合）
+final class FixedLinkPolicy implements LinkPolicy {
+
+    private final int mConnectionPriority;
+    private final int mPhy;
+
+    public FixedLinkPolicy(int connectionPriority, int phy) {
+
+        mConnectionPriority = connectionPriority;
+        mPhy = phy;
+    }
+
+    @Override
+    public int selectConnectionPriority(Traffic traffic, int current) {
+
+        return mConnectionPriority;
+    }
+
+    @Override
+    public int selectPhy(Traffic traffic, int current) {
+
+        return mPhy;
+    }
+}
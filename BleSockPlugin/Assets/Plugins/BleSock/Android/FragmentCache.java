@@ -0,0 +1,59 @@
+package xflag.plugins.bleSock;
+
+final class FragmentCache {
+
+    private static final int SLOT_COUNT = 16; // 最大長以外の配列を持っておく数
+
+    private byte[] mMaximum = new byte[0];
+    private final byte[][] mSlots = new byte[SLOT_COUNT][];
+
+    public FragmentCache(int maximumLength) {
+
+        resize(maximumLength);
+    }
+
+    public void resize(int maximumLength) {
+
+        if (mMaximum.length == maximumLength) {
+            return;
+        }
+
+        mMaximum = new byte[maximumLength];
+    }
+
+    // availableバイトをmaximumLength以下に分ける時の次のフラグメントの長さ
+    // 最大長で切ると最後に小さなフラグメントが残るので、残りが二つに収まるところだけ均等に分ける
+    // （送信キューが溜まり続けている間は最大長のまま送る）
+    public static int fragmentSize(int available, int maximumLength) {
+
+        if (available <= maximumLength) {
+            return available;
+        }
+
+        if (available >= maximumLength * 2) {
+            return maximumLength;
+        }
+
+        return (available + 1) / 2;
+    }
+
+    // 配列を使い回す（値はGATT呼び出しの時点でコピーされるため再利用して問題ない）
+    // 最大長以外は長さの下位ビットで選ぶスロットに一つずつ持つので、長さがばらついても配列はSLOT_COUNT + 1個までしか持たない
+    public byte[] obtain(int length) {
+
+        if (length == mMaximum.length) {
+            return mMaximum;
+        }
+
+        int slot = length & (SLOT_COUNT - 1);
+        byte[] fragment = mSlots[slot];
+
+        if ((fragment == null) || (fragment.length != length)) {
+
+            fragment = new byte[length];
+            mSlots[slot] = fragment;
+        }
+
+        return fragment;
+    }
+}
@@ -0,0 +1,505 @@
+package xflag.plugins.bleSock;
+
+import java.nio.BufferOverflowException;
+
+// フレームのエンコードとデコード
+//
+// Legacy:  [size:u16][address:u16][payload]
+//          sizeの最上位ビットが立っていれば制御フレーム（addressが制御の種別）
+// Compact: [AEXsssss][size:varint]*[address:u16]?[flags:u8]?[payload]
+//          A: addressあり（なければ直前のデータフレームと同じ） E: flagsあり X: sizeの続きあり
+//          32バイト未満でアドレスが変わらないメッセージはヘッダが1バイトになる
+//
+// ネゴシエーション:
+//          セントラルは最初の書き込みにHELLO（対応機能）を載せる。旧ペリフェラルはこれを無視する
+//          ペリフェラルはLegacyのACCEPT（採用した機能）を返し、以降の送信をその形式で行う
+//          セントラルはACCEPTを受けて以降の受信を切り替え、LegacyのACKを返してから送信を切り替える
+//          ペリフェラルはACKを受けて以降の受信を切り替える
+//
+// 圧縮:    Compactのflagsに圧縮フラグが立っていればpayloadは[元のサイズ:u16][LZ4ブロック]
+//          圧縮しても小さくならないメッセージとしきい値未満のメッセージはそのまま送る
+//
+// 大きなメッセージ:
+//          CHUNK_SIZEごとに分割し、チャンクフラグを立てたフレームで送る。最後のチャンクには終端フラグも立てる
+//          受信側はチャンクをそのまま順に渡すので、メッセージ全体をメモリに保持することはない
+//          同じ送信元からのチャンクは順番通りに届く（送信側は宛先ごとに一度に一つのメッセージしか流さない）
+//
+// 応答なし書き込み:
+//          採用されるとペリフェラルはACKを受けてからCREDIT（書き込んでよいバイト数:u16）を送り、受信バッファが空くたびに追加する
+//          セントラルはクレジットの範囲で上りのフラグメントを応答なしで書き込み、使い切ったら次のCREDITを待つ
+//
+// 下りのストリーミング:
+//          通常の下りのフラグメントは[payload][続き:u8]で、続きがあればセントラルが読み出しで取りに来る
+//          採用されるとペリフェラルはACKを受けた後の最後のフラグメントの続きをFRAGMENT_STREAMにし、以降は確認なしの通知で流す
+//          ストリーミング中のフラグメントとSTREAM_ACK（CCCDへの書き込み）の扱いはStreamWindowを参照
+final class FrameCodec {
+
+    public static final int FEATURE_COMPACT_HEADER = 0x0001;
+    public static final int FEATURE_COMPRESSION = 0x0002; // FEATURE_COMPACT_HEADERが必要
+    public static final int FEATURE_LARGE_MESSAGE = 0x0004; // FEATURE_COMPACT_HEADERが必要
+    public static final int FEATURE_WRITE_NO_RESPONSE = 0x0008;
+    public static final int FEATURE_NOTIFICATION_STREAM = 0x0010;
+    public static final int SUPPORTED_FEATURES = FEATURE_COMPACT_HEADER | FEATURE_COMPRESSION | FEATURE_LARGE_MESSAGE
+            | FEATURE_WRITE_NO_RESPONSE | FEATURE_NOTIFICATION_STREAM;
+
+    public static final int FLAG_CONTROL = 0x01;
+    public static final int FLAG_COMPRESSED = 0x02;
+    public static final int FLAG_CHUNK = 0x04;
+    public static final int FLAG_LAST_CHUNK = 0x08;
+    private static final int KNOWN_FLAGS = FLAG_CONTROL | FLAG_COMPRESSED | FLAG_CHUNK | FLAG_LAST_CHUNK;
+
+    public static final int COMPRESSION_THRESHOLD = 64;
+    public static final int CHUNK_SIZE = 1024;
+
+    public static final int CONTROL_ACCEPT = 1;
+    public static final int CONTROL_ACK = 2;
+    public static final int CONTROL_CREDIT = 3;
+    public static final int CONTROL_SIZE_MAX = 64;
+
+    public static final int HEADER_SIZE_MAX = 8;
+
+    public static final int FRAGMENT_END = 0;
+    public static final int FRAGMENT_MORE = 1;
+    public static final int FRAGMENT_STREAM = 2;
+
+    public static final int HEADER_INVALID = -1;
+    public static final int HEADER_INCOMPLETE = 0;
+    public static final int HEADER_COMPLETE = 1;
+
+    private static final int HELLO_MAGIC0 = 'B';
+    private static final int HELLO_MAGIC1 = 'S';
+    private static final int HELLO_VERSION = 1;
+    private static final int HELLO_SIZE = 5;
+
+    private static final int LEGACY_CONTROL_BIT = 0x8000;
+    private static final int LEGACY_SIZE_MAX = 0x7fff;
+    private static final int VARINT_SHIFT_MAX = 26;
+
+    // Negotiation
+
+    public static byte[] createHello(int features) {
+
+        return new byte[] {
+                (byte)HELLO_MAGIC0,
+                (byte)HELLO_MAGIC1,
+                (byte)HELLO_VERSION,
+                (byte)features,
+                (byte)(features >> 8)
+        };
+    }
+
+    // HELLOでなければ-1を返す
+    public static int parseHello(byte[] value) {
+
+        if ((value == null) || (value.length < HELLO_SIZE)) {
+            return -1;
+        }
+
+        if ((value[0] != HELLO_MAGIC0) || (value[1] != HELLO_MAGIC1) || (value[2] < HELLO_VERSION)) {
+            return -1;
+        }
+
+        return (value[3] & 0xff) | ((value[4] & 0xff) << 8);
+    }
+
+    // 相手の対応機能のうち採用するものを返す
+    public static int acceptFeatures(int features) {
+
+        features &= SUPPORTED_FEATURES;
+
+        if ((features & FEATURE_COMPACT_HEADER) == 0) {
+            features &= ~(FEATURE_COMPRESSION | FEATURE_LARGE_MESSAGE);
+        }
+
+        return features;
+    }
+
+    public static byte[] createFeatures(int features) {
+
+        return new byte[] { (byte)features, (byte)(features >> 8) };
+    }
+
+    public static int parseFeatures(byte[] payload, int size) {
+
+        if (size < 2) {
+            return 0;
+        }
+
+        return (payload[0] & 0xff) | ((payload[1] & 0xff) << 8);
+    }
+
+    public static byte[] createCredit(int credit) {
+
+        return new byte[] { (byte)credit, (byte)(credit >> 8) };
+    }
+
+    public static int parseCredit(byte[] payload, int size) {
+
+        if (size < 2) {
+            return 0;
+        }
+
+        return (payload[0] & 0xff) | ((payload[1] & 0xff) << 8);
+    }
+
+    // Compression
+
+    // 圧縮結果をdstに書き込んでそのサイズを返す。小さくならなければ-1
+    public static int compress(Lz4 lz4, byte[] src, int srcOff, int size, byte[] dst) {
+
+        int limit = Math.min(size, dst.length) - 2 - 1;
+        if (limit <= 0) {
+            return -1;
+        }
+
+        int compressedSize = lz4.compress(src, srcOff, size, dst, 2, limit);
+        if (compressedSize < 0) {
+            return -1;
+        }
+
+        dst[0] = (byte)size;
+        dst[1] = (byte)(size >> 8);
+        return compressedSize + 2;
+    }
+
+    public static int decompressedSize(byte[] src, int size) {
+
+        if (size < 2) {
+            return -1;
+        }
+
+        return (src[0] & 0xff) | ((src[1] & 0xff) << 8);
+    }
+
+    public static boolean decompress(Lz4 lz4, byte[] src, int size, byte[] dst, int originalSize) {
+
+        return lz4.decompress(src, 2, size - 2, dst, 0, originalSize) == originalSize;
+    }
+
+    // Encoder
+
+    private int mEncoderFeatures = 0;
+    private int mLastEncodedAddress = -1;
+    private final byte[] mHeader = new byte[HEADER_SIZE_MAX];
+
+    public int getEncoderFeatures() {
+
+        return mEncoderFeatures;
+    }
+
+    public void setEncoderFeatures(int features) {
+
+        mEncoderFeatures = features;
+        mLastEncodedAddress = -1;
+    }
+
+    public boolean canCompress(int size) {
+
+        return ((mEncoderFeatures & FEATURE_COMPRESSION) != 0) && (size >= COMPRESSION_THRESHOLD);
+    }
+
+    public boolean acceptsCompressed() {
+
+        return (mEncoderFeatures & FEATURE_COMPRESSION) != 0;
+    }
+
+    public boolean acceptsLargeMessage() {
+
+        return (mEncoderFeatures & FEATURE_LARGE_MESSAGE) != 0;
+    }
+
+    public boolean acceptsWriteWithoutResponse() {
+
+        return (mEncoderFeatures & FEATURE_WRITE_NO_RESPONSE) != 0;
+    }
+
+    // 書き込めるだけのチャンクを書き込み、メッセージ全体を書き終えたらtrueを返す
+    public boolean encodeChunks(SendQueue dst, LargeMessage message) {
+
+        while (!message.isFinished()) {
+
+            int size = Math.min(message.size - message.offset, CHUNK_SIZE);
+            int flags = FLAG_CHUNK;
+
+            if (message.offset + size == message.size) {
+                flags |= FLAG_LAST_CHUNK;
+            }
+
+            if (!canEncode(dst, size)) {
+                return false;
+            }
+
+            encode(dst, message.data, message.offset, size, message.address, flags);
+            message.offset += size;
+        }
+
+        return true;
+    }
+
+    // ヘッダは最大でもHEADER_SIZE_MAXに収まるので、これがtrueならencodeは失敗しない
+    public static boolean canEncode(SendQueue dst, int size) {
+
+        return dst.remaining() >= size + HEADER_SIZE_MAX;
+    }
+
+    // 全体が書き込めない場合は何も書き込まずにBufferOverflowExceptionを投げる
+    public void encode(SendQueue dst, byte[] payload, int offset, int size, int address, int flags) {
+
+        int headerLength = buildHeader(size, address, flags);
+
+        if (dst.remaining() < headerLength + size) {
+            throw new BufferOverflowException();
+        }
+
+        dst.put(mHeader, 0, headerLength);
+        dst.put(payload, offset, size);
+
+        if ((flags & FLAG_CONTROL) == 0) {
+            mLastEncodedAddress = address;
+        }
+    }
+
+    // ヘッダだけをコピーし、ペイロードはpayloadへの参照として書き込む
+    // ヘッダは宛先ごとのエンコーダの状態で変わるが、ペイロードは複数の宛先で共有できる
+    public void encode(SendQueue dst, Buffer payload, int offset, int size, int address, int flags) {
+
+        int headerLength = buildHeader(size, address, flags);
+
+        if (dst.remaining() < headerLength + size) {
+            throw new BufferOverflowException();
+        }
+
+        dst.put(mHeader, 0, headerLength);
+        dst.put(payload, offset, size);
+
+        if ((flags & FLAG_CONTROL) == 0) {
+            mLastEncodedAddress = address;
+        }
+    }
+
+    private int buildHeader(int size, int address, int flags) {
+
+        if ((mEncoderFeatures & FEATURE_COMPACT_HEADER) == 0) {
+
+            if ((size > LEGACY_SIZE_MAX) || ((flags & ~FLAG_CONTROL) != 0)) {
+                throw new IllegalArgumentException("not supported by legacy header");
+            }
+
+            int sizeField = ((flags & FLAG_CONTROL) != 0) ? (size | LEGACY_CONTROL_BIT) : size;
+
+            mHeader[0] = (byte)sizeField;
+            mHeader[1] = (byte)(sizeField >> 8);
+            mHeader[2] = (byte)address;
+            mHeader[3] = (byte)(address >> 8);
+            return 4;
+        }
+
+        boolean hasAddress = ((flags & FLAG_CONTROL) != 0) || (address != mLastEncodedAddress);
+        int rest = size >>> 5;
+        int first = size & 0x1f;
+
+        if (hasAddress) {
+            first |= 0x80;
+        }
+
+        if (flags != 0) {
+            first |= 0x40;
+        }
+
+        if (rest != 0) {
+            first |= 0x20;
+        }
+
+        int length = 0;
+        mHeader[length++] = (byte)first;
+
+        while (rest != 0) {
+
+            int next = rest & 0x7f;
+            rest >>>= 7;
+
+            if (rest != 0) {
+                next |= 0x80;
+            }
+
+            mHeader[length++] = (byte)next;
+        }
+
+        if (hasAddress) {
+
+            mHeader[length++] = (byte)address;
+            mHeader[length++] = (byte)(address >> 8);
+        }
+
+        if (flags != 0) {
+            mHeader[length++] = (byte)flags;
+        }
+
+        return length;
+    }
+
+    // Decoder
+
+    private int mDecoderFeatures = 0;
+    private int mLastDecodedAddress = -1;
+    private boolean mHasHeader = false;
+    private int mFrameSize = 0;
+    private int mFrameAddress = 0;
+    private int mFrameFlags = 0;
+
+    public int getDecoderFeatures() {
+
+        return mDecoderFeatures;
+    }
+
+    public void setDecoderFeatures(int features) {
+
+        mDecoderFeatures = features;
+        mLastDecodedAddress = -1;
+    }
+
+    public boolean hasHeader() {
+
+        return mHasHeader;
+    }
+
+    public int frameSize() {
+
+        return mFrameSize;
+    }
+
+    public int frameAddress() {
+
+        return mFrameAddress;
+    }
+
+    public int frameFlags() {
+
+        return mFrameFlags;
+    }
+
+    public boolean isControlFrame() {
+
+        return (mFrameFlags & FLAG_CONTROL) != 0;
+    }
+
+    public void completeFrame() {
+
+        mHasHeader = false;
+    }
+
+    // ヘッダが揃っていればそれを読み進めてHEADER_COMPLETEを返す
+    public int decodeHeader(RingBuffer src) {
+
+        if (mHasHeader) {
+            return HEADER_COMPLETE;
+        }
+
+        if ((mDecoderFeatures & FEATURE_COMPACT_HEADER) == 0) {
+
+            if (src.size() < 4) {
+                return HEADER_INCOMPLETE;
+            }
+
+            int sizeField = src.peekChar(0);
+
+            mFrameAddress = src.peekChar(2);
+            mFrameSize = sizeField & LEGACY_SIZE_MAX;
+            mFrameFlags = ((sizeField & LEGACY_CONTROL_BIT) != 0) ? FLAG_CONTROL : 0;
+
+            src.skip(4);
+            mHasHeader = true;
+            return HEADER_COMPLETE;
+        }
+
+        int available = src.size();
+        if (available < 1) {
+            return HEADER_INCOMPLETE;
+        }
+
+        int first = src.peek(0);
+        int length = 1;
+        int size = first & 0x1f;
+        int shift = 5;
+        boolean more = (first & 0x20) != 0;
+
+        while (more) {
+
+            if (shift > VARINT_SHIFT_MAX) {
+                return HEADER_INVALID;
+            }
+
+            if (length >= available) {
+                return HEADER_INCOMPLETE;
+            }
+
+            int next = src.peek(length++);
+            size |= (next & 0x7f) << shift;
+            shift += 7;
+            more = (next & 0x80) != 0;
+        }
+
+        int address = mLastDecodedAddress;
+
+        if ((first & 0x80) != 0) {
+
+            if (length + 2 > available) {
+                return HEADER_INCOMPLETE;
+            }
+
+            address = src.peekChar(length);
+            length += 2;
+        }
+
+        int flags = 0;
+
+        if ((first & 0x40) != 0) {
+
+            if (length + 1 > available) {
+                return HEADER_INCOMPLETE;
+            }
+
+            flags = src.peek(length++);
+        }
+
+        if ((flags & ~KNOWN_FLAGS) != 0) {
+            return HEADER_INVALID;
+        }
+
+        if ((flags & FLAG_CONTROL) == 0) {
+
+            if (address < 0) {
+                return HEADER_INVALID;
+            }
+
+            mLastDecodedAddress = address;
+        }
+        else if ((first & 0x80) == 0) {
+
+            return HEADER_INVALID;
+        }
+
+        mFrameSize = size;
+        mFrameAddress = address;
+        mFrameFlags = flags;
+
+        src.skip(length);
+        mHasHeader = true;
+        return HEADER_COMPLETE;
+    }
+
+    // Reset
+
+    public void reset() {
+
+        mEncoderFeatures = 0;
+        mLastEncodedAddress = -1;
+
+        mDecoderFeatures = 0;
+        mLastDecodedAddress = -1;
+        mHasHeader = false;
+        mFrameSize = 0;
+        mFrameAddress = 0;
+        mFrameFlags = 0;
+    }
+}
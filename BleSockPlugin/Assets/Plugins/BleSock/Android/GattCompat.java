@@ -0,0 +1,90 @@
+package xflag.plugins.bleSock;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattServer;
+import android.os.Build;
+
+import java.lang.reflect.Method;
+
+// Android 13(API 33)で追加された、値を引数で渡すwriteCharacteristic/notifyCharacteristicChangedの呼び出し
+// プロジェクトはSDK 26でビルドするのでリフレクションで呼び、使えなければsetValueを経由する従来の呼び出しに戻す
+// setValueは配列の参照を持つだけだが、GATT呼び出しの時点で値はコピーされる（どちらの経路でもコピーは一回）
+final class GattCompat {
+
+    private static final int STATUS_SUCCESS = 0; // BluetoothStatusCodes.SUCCESS
+
+    private static final Method sWriteCharacteristic;
+    private static final Method sNotifyCharacteristicChanged;
+
+    static {
+
+        Method writeCharacteristic = null;
+        Method notifyCharacteristicChanged = null;
+
+        if (Build.VERSION.SDK_INT >= 33) {
+
+            try {
+
+                writeCharacteristic = BluetoothGatt.class.getMethod("writeCharacteristic",
+                        BluetoothGattCharacteristic.class, byte[].class, int.class);
+
+                notifyCharacteristicChanged = BluetoothGattServer.class.getMethod("notifyCharacteristicChanged",
+                        BluetoothDevice.class, BluetoothGattCharacteristic.class, boolean.class, byte[].class);
+            }
+            catch (Exception e) {
+
+                Utils.error("%s", e);
+                writeCharacteristic = null;
+                notifyCharacteristicChanged = null;
+            }
+        }
+
+        sWriteCharacteristic = writeCharacteristic;
+        sNotifyCharacteristicChanged = notifyCharacteristicChanged;
+    }
+
+    private GattCompat() {
+    }
+
+    public static boolean writeCharacteristic(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, byte[] value, int writeType) {
+
+        if (sWriteCharacteristic != null) {
+
+            try {
+
+                return ((Integer)sWriteCharacteristic.invoke(gatt, characteristic, value, writeType) == STATUS_SUCCESS);
+            }
+            catch (Exception e) {
+
+                Utils.error("%s", e);
+                return false;
+            }
+        }
+
+        characteristic.setWriteType(writeType);
+        characteristic.setValue(value);
+        return gatt.writeCharacteristic(characteristic);
+    }
+
+    public static boolean notifyCharacteristicChanged(BluetoothGattServer server, BluetoothDevice device,
+                                                      BluetoothGattCharacteristic characteristic, boolean confirm, byte[] value) {
+
+        if (sNotifyCharacteristicChanged != null) {
+
+            try {
+
+                return ((Integer)sNotifyCharacteristicChanged.invoke(server, device, characteristic, confirm, value) == STATUS_SUCCESS);
+            }
+            catch (Exception e) {
+
+                Utils.error("%s", e);
+                return false;
+            }
+        }
+
+        characteristic.setValue(value);
+        return server.notifyCharacteristicChanged(device, characteristic, confirm);
+    }
+}
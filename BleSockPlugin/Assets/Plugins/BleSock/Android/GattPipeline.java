@@ -0,0 +1,262 @@
+package xflag.plugins.bleSock;
+
+import java.util.ArrayDeque;
+
+// GATTの操作を一つずつ発行するスケジューラ
+// 操作は優先度ごとのキューに積み、完了のコールバックを受けてから次を発行する
+// 新しい種類の操作（PHY、RSSIの読み出しなど）はOperationを継承してstartでGATTの呼び出しを行い、対応するコールバックでcompleteを呼ぶ
+final class GattPipeline {
+
+    public static final int PRIORITY_LINK = 0; // MTUの交換など、データの送受信より先に済ませるもの
+    public static final int PRIORITY_DOWNLINK = 1; // 受信の読み出し
+    public static final int PRIORITY_UPLINK = 2; // 送信の書き込み
+    public static final int PRIORITY_BACKGROUND = 3; // PHY、RSSIの読み出しなど
+
+    private static final int PRIORITY_COUNT = 4;
+    private static final int BURST_MAX = 4; // 優先度の高い操作が続いても、この回数ごとに低い操作を一つ通す
+    private static final int CHECK_INTERVAL = 1000;
+
+    static abstract class Operation {
+
+        private final String mName;
+        private final int mPriority;
+        private final int mTimeout;
+
+        private boolean mQueued = false;
+        private long mQueuedAt = 0;
+        private long mStartedAt = 0;
+
+        // 発行から完了までの時間（マイクロ秒）
+        private int mCount = 0;
+        private long mTotalLatency = 0;
+        private long mMaxLatency = 0;
+        private long mLastLatency = 0;
+        private long mLastWait = 0;
+
+        // timeoutはミリ秒
+        protected Operation(String name, int priority, int timeout) {
+
+            mName = name;
+            mPriority = priority;
+            mTimeout = timeout;
+        }
+
+        // GATTの呼び出しを行い、完了のコールバックを待つ必要があればtrueを返す
+        protected abstract boolean start();
+
+        public String getName() {
+
+            return mName;
+        }
+
+        public int getCount() {
+
+            return mCount;
+        }
+
+        public long getAverageLatency() {
+
+            return (mCount > 0) ? mTotalLatency / mCount : 0;
+        }
+
+        public long getMaxLatency() {
+
+            return mMaxLatency;
+        }
+
+        public long getLastLatency() {
+
+            return mLastLatency;
+        }
+
+        // キューに積まれてから発行されるまでの時間（マイクロ秒）
+        public long getLastWait() {
+
+            return mLastWait;
+        }
+
+        public void resetStatistics() {
+
+            mCount = 0;
+            mTotalLatency = 0;
+            mMaxLatency = 0;
+            mLastLatency = 0;
+            mLastWait = 0;
+        }
+    }
+
+    interface Listener {
+
+        void onTimeout(Operation operation);
+    }
+
+    private final EventLoop mLoop;
+    private final Listener mListener;
+
+    @SuppressWarnings("unchecked")
+    private final ArrayDeque<Operation>[] mQueues = new ArrayDeque[PRIORITY_COUNT];
+    private Operation mCurrent = null;
+    private boolean mTimedOut = false;
+    private int mBurst = 0;
+    private EventLoop.Timeout mTimer = null;
+
+    public GattPipeline(EventLoop loop, Listener listener) {
+
+        mLoop = loop;
+        mListener = listener;
+
+        for (int i = 0; i < PRIORITY_COUNT; i++) {
+            mQueues[i] = new ArrayDeque<>();
+        }
+    }
+
+    public boolean isIdle() {
+
+        return mCurrent == null;
+    }
+
+    public boolean isRunning(Operation operation) {
+
+        return mCurrent == operation;
+    }
+
+    // 既にキューにある操作は積み直さない（発行中の操作はもう一度積める）
+    public void submit(Operation operation) {
+
+        if (operation.mQueued) {
+            return;
+        }
+
+        operation.mQueued = true;
+        operation.mQueuedAt = System.nanoTime();
+        mQueues[operation.mPriority].add(operation);
+
+        startTimer();
+
+        if (mCurrent == null) {
+            processNext();
+        }
+    }
+
+    // 発行中の操作がoperationでなければfalseを返す
+    public boolean complete(Operation operation) {
+
+        if ((mCurrent == null) || (mCurrent != operation)) {
+            return false;
+        }
+
+        long latency = (System.nanoTime() - operation.mStartedAt) / 1000;
+        operation.mCount++;
+        operation.mTotalLatency += latency;
+        operation.mMaxLatency = Math.max(operation.mMaxLatency, latency);
+        operation.mLastLatency = latency;
+
+        Utils.info("%s completed: %d us (waited %d us)", operation.mName, latency, operation.mLastWait);
+
+        mCurrent = null;
+        processNext();
+
+        return true;
+    }
+
+    public void clear() {
+
+        for (ArrayDeque<Operation> queue : mQueues) {
+
+            for (Operation operation : queue) {
+                operation.mQueued = false;
+            }
+
+            queue.clear();
+        }
+
+        mCurrent = null;
+        mBurst = 0;
+
+        if (mTimer != null) {
+            mTimer.cancel();
+            mTimer = null;
+        }
+    }
+
+    private void processNext() {
+
+        while (mCurrent == null) {
+
+            Operation operation = poll();
+            if (operation == null) {
+                return;
+            }
+
+            operation.mQueued = false;
+            operation.mStartedAt = System.nanoTime();
+            operation.mLastWait = (operation.mStartedAt - operation.mQueuedAt) / 1000;
+
+            // startの中でclearされることもあるので先に発行中にしておく
+            mCurrent = operation;
+            mTimedOut = false;
+
+            if (!operation.start() && (mCurrent == operation)) {
+                mCurrent = null;
+            }
+        }
+    }
+
+    private Operation poll() {
+
+        int priority = 0;
+        while ((priority < PRIORITY_COUNT) && mQueues[priority].isEmpty()) {
+            priority++;
+        }
+
+        if (priority == PRIORITY_COUNT) {
+            return null;
+        }
+
+        if (mBurst >= BURST_MAX) {
+
+            for (int i = priority + 1; i < PRIORITY_COUNT; i++) {
+
+                if (!mQueues[i].isEmpty()) {
+
+                    mBurst = 0;
+                    return mQueues[i].remove();
+                }
+            }
+        }
+
+        boolean waiting = false;
+        for (int i = priority + 1; i < PRIORITY_COUNT; i++) {
+            waiting |= !mQueues[i].isEmpty();
+        }
+
+        mBurst = waiting ? mBurst + 1 : 0;
+        return mQueues[priority].remove();
+    }
+
+    private void startTimer() {
+
+        if (mTimer != null) {
+            return;
+        }
+
+        mTimer = mLoop.schedule(new Runnable() {
+
+            @Override
+            public void run() {
+
+                Operation operation = mCurrent;
+                if ((operation == null) || (operation.mTimeout <= 0) || mTimedOut) {
+                    return;
+                }
+
+                if ((System.nanoTime() - operation.mStartedAt) / 1000000 >= operation.mTimeout) {
+
+                    Utils.error("%s timeout", operation.mName);
+                    mTimedOut = true;
+                    mListener.onTimeout(operation);
+                }
+            }
+        }, CHECK_INTERVAL, CHECK_INTERVAL);
+    }
+}
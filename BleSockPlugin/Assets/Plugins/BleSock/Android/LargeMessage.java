@@ -0,0 +1,24 @@
+package xflag.plugins.bleSock;
+
+// MESSAGE_SIZE_MAXを超えるメッセージの送信状態
+// 送信バッファに空きができるたびにCHUNK_SIZEずつ書き込まれる
+// 同じメッセージを複数の宛先に送る場合は、それぞれのLargeMessageが同じdataを参照する
+final class LargeMessage {
+
+    public final Buffer data;
+    public final int size;
+    public final int address;
+    public int offset = 0;
+
+    public LargeMessage(Buffer data, int address) {
+
+        this.data = data;
+        this.size = data.getLength();
+        this.address = address;
+    }
+
+    public boolean isFinished() {
+
+        return offset >= size;
+    }
+}
@@ -0,0 +1,20 @@
+package xflag.plugins.bleSock;
+
+// 接続パラメータとPHYを選ぶ方針
+// LinkTunerが一定間隔で直近の通信量を渡し、返された設定を反映する（今と同じ設定なら何もしない）
+interface LinkPolicy {
+
+    final class Traffic {
+
+        public int packetsPerSecond = 0; // 直近の区間で送受信したフラグメントの数
+        public int bytesPerSecond = 0;
+        public int averageBytesPerSecond = 0; // 指数移動平均
+        public long idleTime = 0; // 最後にフラグメントを送受信してからのミリ秒
+    }
+
+    // BluetoothGatt.CONNECTION_PRIORITY_*のどれかを返す
+    int selectConnectionPriority(Traffic traffic, int current);
+
+    // LinkTuner.PHY_1M、PHY_2Mのどちらかを返す
+    int selectPhy(Traffic traffic, int current);
+}
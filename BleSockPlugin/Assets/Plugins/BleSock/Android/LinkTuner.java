@@ -0,0 +1,225 @@
+package xflag.plugins.bleSock;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+
+// 接続ごとの通信量を数え、LinkPolicyが選んだ接続パラメータとPHYをLinkを通して反映する
+// EventLoopのスレッドで使う
+// 端末に依存するもの（PHYの対応、ログ）はEnvironmentから受け取るので、端末の外でも動かせる（LinkTunerCheckを参照）
+final class LinkTuner {
+
+    public static final int PHY_1M = BluetoothDevice.PHY_LE_1M;
+    public static final int PHY_2M = BluetoothDevice.PHY_LE_2M;
+
+    // アプリから選ぶ方針（C#のLinkModeと同じ並び）
+    public static final int MODE_ADAPTIVE = 0;
+    public static final int MODE_LOW_LATENCY = 1;
+    public static final int MODE_BALANCED = 2;
+    public static final int MODE_LOW_POWER = 3;
+
+    private static final int PRIORITY_INTERVAL = 2000; // 接続パラメータの更新はリンク層の手続きになるので頻繁には変えない
+    private static final int AVERAGE_WEIGHT = 4;
+
+    // 設定をGATTに反映する窓口。GATTの代わりに反映された値を記録するだけのものに差し替えて方針を確かめられる
+    interface Link {
+
+        boolean requestConnectionPriority(int priority);
+
+        // 結果はonPhyUpdateで知らせる
+        boolean setPreferredPhy(int phy);
+    }
+
+    // 端末の情報とログの出力先（端末ではAndroidLinkEnvironment）
+    interface Environment {
+
+        boolean isPhy2MSupported();
+
+        void info(String format, Object... args);
+
+        void error(String format, Object... args);
+    }
+
+    public static LinkPolicy createPolicy(int mode) {
+
+        switch (mode) {
+
+            case MODE_ADAPTIVE:
+                return new AdaptiveLinkPolicy();
+
+            case MODE_LOW_LATENCY:
+                return new FixedLinkPolicy(BluetoothGatt.CONNECTION_PRIORITY_HIGH, PHY_2M);
+
+            case MODE_BALANCED:
+                return new FixedLinkPolicy(BluetoothGatt.CONNECTION_PRIORITY_BALANCED, PHY_1M);
+
+            case MODE_LOW_POWER:
+                return new FixedLinkPolicy(BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER, PHY_1M);
+
+            default:
+                return null;
+        }
+    }
+
+    public static int toPhyMask(int phy) {
+
+        return (phy == PHY_2M) ? BluetoothDevice.PHY_LE_2M_MASK : BluetoothDevice.PHY_LE_1M_MASK;
+    }
+
+    private final Link mLink;
+    private final Environment mEnvironment;
+    private final boolean mPrioritySupported;
+    private final boolean mPhySupported;
+    private LinkPolicy mPolicy;
+
+    private final LinkPolicy.Traffic mTraffic = new LinkPolicy.Traffic();
+    private int mPackets = 0;
+    private int mBytes = 0;
+    private long mLastEvaluation = 0;
+    private long mLastPacket = 0;
+
+    private int mPriority = -1; // 未設定
+    private long mLastPriorityChange = 0;
+    private int mPhy = PHY_1M;
+    private int mRequestedPhy = 0; // onPhyUpdateを待っているPHY
+    private boolean mPhyFailed = false;
+
+    public LinkTuner(Link link, Environment environment, boolean prioritySupported, LinkPolicy policy) {
+
+        mLink = link;
+        mEnvironment = environment;
+        mPrioritySupported = prioritySupported;
+        mPhySupported = environment.isPhy2MSupported();
+        mPolicy = policy;
+    }
+
+    // 次のevaluateで間隔を待たずに反映する
+    public void setPolicy(LinkPolicy policy) {
+
+        mPolicy = policy;
+        mLastPriorityChange = 0;
+    }
+
+    public int getConnectionPriority() {
+
+        return mPriority;
+    }
+
+    public int getPhy() {
+
+        return mPhy;
+    }
+
+    public LinkPolicy.Traffic getTraffic() {
+
+        return mTraffic;
+    }
+
+    // 接続直後は方針によらずpriorityで始める（サービスの探索やハンドシェイクを早く済ませるため）
+    public void start(int priority, long now) {
+
+        reset(now);
+
+        if (mPrioritySupported) {
+            applyConnectionPriority(priority, now);
+        }
+    }
+
+    public void reset(long now) {
+
+        mTraffic.packetsPerSecond = 0;
+        mTraffic.bytesPerSecond = 0;
+        mTraffic.averageBytesPerSecond = 0;
+        mTraffic.idleTime = 0;
+        mPackets = 0;
+        mBytes = 0;
+        mLastEvaluation = now;
+        mLastPacket = now;
+
+        mPriority = -1;
+        mLastPriorityChange = 0;
+        mPhy = PHY_1M;
+        mRequestedPhy = 0;
+        mPhyFailed = false;
+    }
+
+    // フラグメントを一つ送受信した
+    public void record(int bytes, long now) {
+
+        mPackets++;
+        mBytes += bytes;
+        mLastPacket = now;
+    }
+
+    public void evaluate(long now) {
+
+        long elapsed = now - mLastEvaluation;
+        if (elapsed <= 0) {
+            return;
+        }
+
+        mTraffic.packetsPerSecond = (int)(mPackets * 1000L / elapsed);
+        mTraffic.bytesPerSecond = (int)(mBytes * 1000L / elapsed);
+        mTraffic.averageBytesPerSecond += (mTraffic.bytesPerSecond - mTraffic.averageBytesPerSecond) / AVERAGE_WEIGHT;
+        mTraffic.idleTime = now - mLastPacket;
+
+        mPackets = 0;
+        mBytes = 0;
+        mLastEvaluation = now;
+
+        if (mPolicy == null) {
+            return;
+        }
+
+        if (mPrioritySupported && (now - mLastPriorityChange >= PRIORITY_INTERVAL)) {
+            applyConnectionPriority(mPolicy.selectConnectionPriority(mTraffic, mPriority), now);
+        }
+
+        if (mPhySupported && !mPhyFailed && (mRequestedPhy == 0)) {
+
+            int phy = mPolicy.selectPhy(mTraffic, mPhy);
+            if (phy != mPhy) {
+
+                mEnvironment.info("setPreferredPhy: %d", phy);
+                if (mLink.setPreferredPhy(phy)) {
+                    mRequestedPhy = phy;
+                }
+                else {
+                    mEnvironment.error("failed");
+                    mPhyFailed = true;
+                }
+            }
+        }
+    }
+
+    // 相手から変更された場合も含めて実際のPHYを記録する。要求が通らなければ以後PHYは変えない
+    public void onPhyUpdate(int txPhy, boolean success) {
+
+        if (success) {
+            mPhy = txPhy;
+        }
+        else if (mRequestedPhy != 0) {
+            mEnvironment.error("phy update failed: %d", mRequestedPhy);
+            mPhyFailed = true;
+        }
+
+        mRequestedPhy = 0;
+    }
+
+    private void applyConnectionPriority(int priority, long now) {
+
+        if (priority == mPriority) {
+            return;
+        }
+
+        // 失敗しても間隔を空けてから選び直す
+        mLastPriorityChange = now;
+
+        mEnvironment.info("requestConnectionPriority: %d", priority);
+        if (!mLink.requestConnectionPriority(priority)) {
+            mEnvironment.error("failed");
+            return;
+        }
+
+        mPriority = priority;
+    }
+}
@@ -0,0 +1,226 @@
+package xflag.plugins.bleSock;
+
+import java.util.Arrays;
+
+// LZ4ブロック形式の圧縮・展開（フレーム形式やチェックサムは扱わない）
+final class Lz4 {
+
+    private static final int MIN_MATCH = 4;
+    private static final int LAST_LITERALS = 5;
+    private static final int MF_LIMIT = 12;
+    private static final int MAX_DISTANCE = 65535;
+    private static final int HASH_LOG = 12;
+
+    private final int[] mHashTable = new int[1 << HASH_LOG];
+
+    // 圧縮後のサイズを返す。dstLenに収まらなければ-1
+    public int compress(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff, int dstLen) {
+
+        final int srcEnd = srcOff + srcLen;
+        final int matchLimit = srcEnd - LAST_LITERALS;
+        final int mfLimit = srcEnd - MF_LIMIT;
+        final int dstEnd = dstOff + dstLen;
+
+        int ip = srcOff;
+        int anchor = srcOff;
+        int op = dstOff;
+
+        if (srcLen > MF_LIMIT) {
+
+            Arrays.fill(mHashTable, -1);
+
+            while (ip < mfLimit) {
+
+                int sequence = readInt(src, ip);
+                int hash = hash(sequence);
+                int ref = mHashTable[hash];
+                mHashTable[hash] = ip;
+
+                if ((ref < 0) || (ip - ref > MAX_DISTANCE) || (readInt(src, ref) != sequence)) {
+                    ip++;
+                    continue;
+                }
+
+                while ((ip > anchor) && (ref > srcOff) && (src[ip - 1] == src[ref - 1])) {
+                    ip--;
+                    ref--;
+                }
+
+                int matchLength = MIN_MATCH;
+                while ((ip + matchLength < matchLimit) && (src[ip + matchLength] == src[ref + matchLength])) {
+                    matchLength++;
+                }
+
+                op = writeSequence(src, anchor, ip - anchor, ip - ref, matchLength, dst, op, dstEnd);
+                if (op < 0) {
+                    return -1;
+                }
+
+                ip += matchLength;
+                anchor = ip;
+            }
+        }
+
+        op = writeSequence(src, anchor, srcEnd - anchor, 0, 0, dst, op, dstEnd);
+        if (op < 0) {
+            return -1;
+        }
+
+        return op - dstOff;
+    }
+
+    // 展開後のサイズを返す。不正なデータもしくはdstLenに収まらなければ-1
+    public int decompress(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff, int dstLen) {
+
+        final int srcEnd = srcOff + srcLen;
+        final int dstEnd = dstOff + dstLen;
+
+        int ip = srcOff;
+        int op = dstOff;
+
+        while (ip < srcEnd) {
+
+            int token = src[ip++] & 0xff;
+
+            int literalLength = token >>> 4;
+            if (literalLength == 15) {
+
+                int next;
+                do {
+                    if (ip >= srcEnd) {
+                        return -1;
+                    }
+
+                    next = src[ip++] & 0xff;
+                    literalLength += next;
+                }
+                while (next == 255);
+            }
+
+            if ((literalLength > srcEnd - ip) || (literalLength > dstEnd - op)) {
+                return -1;
+            }
+
+            System.arraycopy(src, ip, dst, op, literalLength);
+            ip += literalLength;
+            op += literalLength;
+
+            if (ip == srcEnd) {
+                break;
+            }
+
+            if (ip + 2 > srcEnd) {
+                return -1;
+            }
+
+            int offset = (src[ip] & 0xff) | ((src[ip + 1] & 0xff) << 8);
+            ip += 2;
+
+            if ((offset == 0) || (offset > op - dstOff)) {
+                return -1;
+            }
+
+            int matchLength = token & 0x0f;
+            if (matchLength == 15) {
+
+                int next;
+                do {
+                    if (ip >= srcEnd) {
+                        return -1;
+                    }
+
+                    next = src[ip++] & 0xff;
+                    matchLength += next;
+                }
+                while (next == 255);
+            }
+
+            matchLength += MIN_MATCH;
+
+            if (matchLength > dstEnd - op) {
+                return -1;
+            }
+
+            for (int i = 0; i < matchLength; i++) {
+                dst[op + i] = dst[op - offset + i];
+            }
+
+            op += matchLength;
+        }
+
+        return op - dstOff;
+    }
+
+    private static int writeSequence(
+            byte[] src, int literalOff, int literalLength, int offset, int matchLength, byte[] dst, int op, int dstEnd) {
+
+        int required = 1 + literalLength + (literalLength / 255) + 1;
+        if (matchLength > 0) {
+            required += 2 + ((matchLength - MIN_MATCH) / 255) + 1;
+        }
+
+        if (required > dstEnd - op) {
+            return -1;
+        }
+
+        int tokenPosition = op++;
+        int token;
+
+        if (literalLength >= 15) {
+
+            token = 15 << 4;
+            op = writeLength(literalLength - 15, dst, op);
+        }
+        else {
+
+            token = literalLength << 4;
+        }
+
+        System.arraycopy(src, literalOff, dst, op, literalLength);
+        op += literalLength;
+
+        if (matchLength > 0) {
+
+            dst[op++] = (byte)offset;
+            dst[op++] = (byte)(offset >>> 8);
+
+            int length = matchLength - MIN_MATCH;
+            if (length >= 15) {
+
+                token |= 15;
+                op = writeLength(length - 15, dst, op);
+            }
+            else {
+
+                token |= length;
+            }
+        }
+
+        dst[tokenPosition] = (byte)token;
+        return op;
+    }
+
+    private static int writeLength(int length, byte[] dst, int op) {
+
+        while (length >= 255) {
+            dst[op++] = (byte)255;
+            length -= 255;
+        }
+
+        dst[op++] = (byte)length;
+        return op;
+    }
+
+    private static int readInt(byte[] src, int index) {
+
+        return (src[index] & 0xff)
+                | ((src[index + 1] & 0xff) << 8)
+                | ((src[index + 2] & 0xff) << 16)
+                | ((src[index + 3] & 0xff) << 24);
+    }
+
+    private static int hash(int sequence) {
+
+        return (sequence * -1640531535) >>> (32 - HASH_LOG);
+    }
+}
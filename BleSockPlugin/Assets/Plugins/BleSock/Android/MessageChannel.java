@@ -0,0 +1,79 @@
+package xflag.plugins.bleSock;
+
+import java.nio.ByteBuffer;
+
+// スレッド間でメッセージを渡すリングバッファ
+// 書き込むスレッドと読み出すスレッドがそれぞれ一つならロックを取らずに使える
+// レコードは[receiver:4][kind:1|size:3][payload]（リトルエンディアン）
+// SendChannelはJavaのスレッドどうしで、SharedChannelはUnityとダイレクトバッファを共有して使う
+interface MessageChannel {
+
+    int HEADER_SIZE = 8;
+    int SIZE_MASK = 0xffffff;
+    int KIND_SHIFT = 24;
+
+    // 送信に使う場合のkindのビット（受信はReceiveQueue.KIND_*）
+    int KIND_UNTHROTTLED = 1; // 水位に関係なく送る（システムメッセージなど）
+    int KIND_DIRECT = 2; // receiverはconnectionId（ペリフェラルのsendDirect）
+
+    final class Segments {
+
+        // つなげたバイト数（nullを含むかintに収まらなければ-1）
+        public static int remaining(ByteBuffer[] segments) {
+
+            if (segments == null) {
+                return -1;
+            }
+
+            long size = 0;
+
+            for (ByteBuffer segment : segments) {
+
+                if (segment == null) {
+                    return -1;
+                }
+
+                size += segment.remaining();
+            }
+
+            return (size <= Integer.MAX_VALUE) ? (int)size : -1;
+        }
+    }
+
+    int size();
+
+    boolean isEmpty();
+
+    // Producer
+
+    // 空きが足りなければfalseを返す
+    boolean offer(byte[] message, int offset, int size, int receiver);
+
+    boolean offer(byte[] message, int offset, int size, int receiver, int kind);
+
+    // srcのpositionからlimitまでをペイロードにする。積めればpositionはlimitまで進む
+    boolean offer(ByteBuffer src, int receiver);
+
+    // 各セグメントのpositionからlimitまでをつなげて一つのペイロードにする
+    boolean offer(ByteBuffer[] segments, int receiver);
+
+    boolean offer(ByteBuffer[] segments, int receiver, int kind);
+
+    // Consumer
+
+    // 先頭のレコードのペイロードのバイト数（空なら-1）
+    int peekSize();
+
+    int peekReceiver();
+
+    int peekKind();
+
+    // 先頭のレコードのペイロードをdstにコピーして取り除く
+    void poll(byte[] dst);
+
+    // 収まるだけのレコードをヘッダーごとdstにコピーして取り除き、コピーしたバイト数を返す
+    // 先頭のレコードも収まらなければ何も取り除かずに、そのレコードのバイト数を負の値で返す
+    int drain(byte[] dst, int offset, int length);
+
+    void clear();
+}
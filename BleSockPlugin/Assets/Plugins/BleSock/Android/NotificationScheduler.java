@@ -0,0 +1,168 @@
+package xflag.plugins.bleSock;
+
+// 通知待ちのセントラルを選ぶDeficit Round Robinスケジューラ
+// エントリ自身がリンクを持つので追加・削除・取り出しは探索なしで行える
+// 通知で送るバイト数をコストとして数えるため、MTUが大きいセントラルが通知の枠を独占しない
+// 一周で補充する量は送信待ちのバイト数に応じて増やし（最大MAX_WEIGHT倍）、溜まっているセントラルほど多くの枠を得る
+final class NotificationScheduler {
+
+    private static final int MAX_WEIGHT = 4; // 一つのセントラルが続けて得られる枠の上限（他を待たせすぎない）
+
+    static abstract class Entry {
+
+        private Entry mPrev = null;
+        private Entry mNext = null;
+        private boolean mScheduled = false;
+        private int mDeficit = 0;
+
+        // 次の通知で送るバイト数
+        protected abstract int nextCost();
+
+        // 送信待ちのバイト数
+        protected abstract int backlog();
+    }
+
+    private final int mQuantum;
+    private Entry mHead = null;
+    private Entry mTail = null;
+
+    // quantumは一回の通知の最大コスト（最大のフラグメントのバイト数）
+    // 補充すれば先頭のエントリは必ず送れるので、取り出しは周回せずに終わる
+    public NotificationScheduler(int quantum) {
+
+        if (quantum <= 0) {
+            throw new IllegalArgumentException("quantum must be positive");
+        }
+
+        mQuantum = quantum;
+    }
+
+    public boolean isEmpty() {
+
+        return mHead == null;
+    }
+
+    // 前の番で補充した分が残っていれば先頭に戻し、続けて送らせる
+    public void add(Entry entry) {
+
+        if (entry.mScheduled) {
+            return;
+        }
+
+        if ((entry.mDeficit > 0) && (entry.mDeficit >= entry.nextCost())) {
+            linkFirst(entry);
+        }
+        else {
+            link(entry);
+        }
+    }
+
+    public void remove(Entry entry) {
+
+        if (entry.mScheduled) {
+            unlink(entry);
+        }
+
+        entry.mDeficit = 0;
+    }
+
+    // 送信バッファが空になったエントリは次の周回まで持ち越した分を捨てる
+    public void reset(Entry entry) {
+
+        entry.mDeficit = 0;
+    }
+
+    public Entry poll() {
+
+        while (mHead != null) {
+
+            Entry entry = mHead;
+            int cost = entry.nextCost();
+
+            if (entry.mDeficit < cost) {
+
+                entry.mDeficit += mQuantum * weightOf(entry);
+
+                // quantumより大きなコストを渡された場合だけ、持ち越して後ろに回す
+                if (entry.mDeficit < cost) {
+
+                    unlink(entry);
+                    link(entry);
+                    continue;
+                }
+            }
+
+            unlink(entry);
+            entry.mDeficit -= cost;
+            return entry;
+        }
+
+        return null;
+    }
+
+    public void clear() {
+
+        while (mHead != null) {
+            remove(mHead);
+        }
+    }
+
+    // 送信待ちが最大のフラグメント何個分あるか（1からMAX_WEIGHTまで）
+    private int weightOf(Entry entry) {
+
+        return Math.max(1, Math.min(entry.backlog() / mQuantum, MAX_WEIGHT));
+    }
+
+    private void link(Entry entry) {
+
+        entry.mPrev = mTail;
+        entry.mNext = null;
+
+        if (mTail != null) {
+            mTail.mNext = entry;
+        }
+        else {
+            mHead = entry;
+        }
+
+        mTail = entry;
+        entry.mScheduled = true;
+    }
+
+    private void linkFirst(Entry entry) {
+
+        entry.mPrev = null;
+        entry.mNext = mHead;
+
+        if (mHead != null) {
+            mHead.mPrev = entry;
+        }
+        else {
+            mTail = entry;
+        }
+
+        mHead = entry;
+        entry.mScheduled = true;
+    }
+
+    private void unlink(Entry entry) {
+
+        if (entry.mPrev != null) {
+            entry.mPrev.mNext = entry.mNext;
+        }
+        else {
+            mHead = entry.mNext;
+        }
+
+        if (entry.mNext != null) {
+            entry.mNext.mPrev = entry.mPrev;
+        }
+        else {
+            mTail = entry.mPrev;
+        }
+
+        entry.mPrev = null;
+        entry.mNext = null;
+        entry.mScheduled = false;
+    }
+}
@@ -11,4 +11,7 @@ public interface PeripheralCallback {
 
     public void onReceiveDirect(Buffer message, int connectionId);
     public void onReceive(Buffer message, int playerId);
+    public void onReceiveChunk(Buffer chunk, int playerId, boolean last);
+
+    public void onWritable(int connectionId);
 }
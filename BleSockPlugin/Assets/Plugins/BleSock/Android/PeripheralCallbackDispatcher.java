@@ -0,0 +1,120 @@
+package xflag.plugins.bleSock;
+
+// PeripheralCallbackの呼び出しを積んで、CallbackDispatcherのスレッドから順番通りに届ける
+final class PeripheralCallbackDispatcher extends CallbackDispatcher implements PeripheralCallback {
+
+    private static final int BLUETOOTH_REQUIRE = 0;
+    private static final int READY = 1;
+    private static final int FAIL = 2;
+    private static final int CONNECT = 3;
+    private static final int DISCONNECT = 4;
+    private static final int RECEIVE_DIRECT = 5;
+    private static final int RECEIVE = 6;
+    private static final int RECEIVE_CHUNK = 7;
+    private static final int WRITABLE = 8;
+
+    private final PeripheralCallback mCallback;
+
+    public PeripheralCallbackDispatcher(PeripheralCallback callback, EventLoop loop) {
+
+        super(loop, "BleSockPeripheralCallback");
+        mCallback = callback;
+    }
+
+    @Override
+    public void onBluetoothRequire() {
+
+        publish(BLUETOOTH_REQUIRE, null, null, 0, false);
+    }
+
+    @Override
+    public void onReady() {
+
+        publish(READY, null, null, 0, false);
+    }
+
+    @Override
+    public void onFail() {
+
+        publish(FAIL, null, null, 0, false);
+    }
+
+    @Override
+    public void onConnect(int connectionId) {
+
+        publish(CONNECT, null, null, connectionId, false);
+    }
+
+    @Override
+    public void onDisconnect(int connectionId) {
+
+        publish(DISCONNECT, null, null, connectionId, false);
+    }
+
+    @Override
+    public void onReceiveDirect(Buffer message, int connectionId) {
+
+        publish(RECEIVE_DIRECT, message, null, connectionId, false);
+    }
+
+    @Override
+    public void onReceive(Buffer message, int playerId) {
+
+        publish(RECEIVE, message, null, playerId, false);
+    }
+
+    @Override
+    public void onReceiveChunk(Buffer chunk, int playerId, boolean last) {
+
+        publish(RECEIVE_CHUNK, chunk, null, playerId, last);
+    }
+
+    @Override
+    public void onWritable(int connectionId) {
+
+        publish(WRITABLE, null, null, connectionId, false);
+    }
+
+    @Override
+    protected void deliver(Event event) {
+
+        switch (event.type) {
+
+            case BLUETOOTH_REQUIRE:
+                mCallback.onBluetoothRequire();
+                break;
+
+            case READY:
+                mCallback.onReady();
+                break;
+
+            case FAIL:
+                mCallback.onFail();
+                break;
+
+            case CONNECT:
+                mCallback.onConnect(event.value);
+                break;
+
+            case DISCONNECT:
+                mCallback.onDisconnect(event.value);
+                break;
+
+            case RECEIVE_DIRECT:
+                mCallback.onReceiveDirect(event.buffer, event.value);
+                break;
+
+            case RECEIVE:
+                mCallback.onReceive(event.buffer, event.value);
+                break;
+
+            case RECEIVE_CHUNK:
+                mCallback.onReceiveChunk(event.buffer, event.value, event.flag);
+                break;
+
+            case WRITABLE:
+                mCallback.onWritable(event.value);
+                break;
+        }
+    }
+}
@@ -29,22 +29,33 @@ import android.widget.TextView;
 import com.unity3d.player.UnityPlayer;
 
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.security.SecureRandom;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.LinkedList;
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public final class PeripheralImpl {
 
+    public static final int SEND_FAILED = -1;
+    public static final int SEND_WOULD_BLOCK = -2;
+
     private static final String NOTIFICATION_DESCRIPTOR_UUID = "00002902-0000-1000-8000-00805F9B34FB";
     private static final int UPDATE_INTERVAL = 1000;
     private static final int MESSAGE_SIZE_MAX = 4096;
     private static final int BUFFER_SIZE = 8192;
+    private static final int DEFAULT_HIGH_WATERMARK = BUFFER_SIZE * 3 / 4;
+    private static final int DEFAULT_LOW_WATERMARK = BUFFER_SIZE / 4;
     private static final int ACCEPTANCE_TIMEOUT = 19000;
+    private static final int SHARED_PAYLOAD_MIN = 64;
+    private static final int DEFAULT_MTU = 23;
+    private static final int MTU_MAX = 517;
+    private static final int NOTIFICATION_QUANTUM = MTU_MAX - 3 - 1; // 最大のフラグメントのペイロード（ATTヘッダーとフラグメントのヘッダーを除く）
+    private static final int CREDIT_WINDOW = BUFFER_SIZE / 4;
+    private static final int STREAM_TIMEOUT = 1000;
+    private static final int STREAM_CHECK_INTERVAL = 250;
 
     private enum Status {
 
@@ -54,46 +65,91 @@ public final class PeripheralImpl {
         Advertise;
     }
 
-    private Object mLockObject = new Object();
-    private Status mStatus = Status.Invalid;
+    private EventLoop mLoop = new EventLoop("BleSockPeripheral");
+    private volatile Status mStatus = Status.Invalid; // sendだけはループの外から読む
 
     // Initialization
 
     private UUID mServiceUUID = null;
     private UUID mUploadUUID = null;
     private UUID mDownloadUUID = null;
-    private PeripheralCallback mPeripheralCallback = null;
+    private PeripheralCallbackDispatcher mPeripheralCallback = null;
 
-    private Timer mInitializationTimer = null;
+    private EventLoop.Timeout mInitializationTimer = null;
     private BluetoothGattServer mGattServer = null;
     private BluetoothGattDescriptor mNotificationDescriptor = null;
     private BluetoothGattCharacteristic mDownloadCharacteristic = null;
     private BluetoothGattCharacteristic mUploadCharacteristic = null;
     private BluetoothGattService mCommunicationService = null;
 
-    private class CentralContext {
+    private class CentralContext extends NotificationScheduler.Entry {
 
         public final BluetoothDevice device;
         public boolean subscribed = false;
         public int connectionId = 0;
-        public Timer acceptanceTimer = null;
-        public int maximumWriteLength = 20;
+        public EventLoop.Timeout acceptanceTimer = null;
+        public int maximumWriteLength = DEFAULT_MTU - 3;
+        public FragmentCache fragments = new FragmentCache(maximumWriteLength);
         public String secondaryAddress = null;
-        public ByteBuffer receiveBuffer = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
-        public int receiveMessageSize = -1;
-        public int receiveMessageAddress = -1;
-        public ByteBuffer sendBuffer = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        public RingBuffer receiveBuffer = new RingBuffer(BUFFER_SIZE);
+        public FrameCodec codec = new FrameCodec();
+        public SendQueue sendBuffer = new SendQueue(BUFFER_SIZE);
+        public LinkedList<LargeMessage> largeMessages = new LinkedList<>();
+        public int highWatermark = mHighWatermark;
+        public int lowWatermark = mLowWatermark;
+        public boolean blocked = false;
         public boolean valueWriting = false;
+        public boolean notifying = false;
+        public boolean notificationPending = false;
+        public Buffer relaySegment = null;
+        public int relaySize = 0;
+        public int relayAddress = 0;
+        public int credit = 0;
+        public boolean streamPending = false;
+        public boolean streamEnabled = false; // CCCDでnotificationも有効にされた
+        public StreamWindow stream = null;
         public int playerId = 0;
 
+        // ペリフェラルからは接続パラメータを変えられないのでPHYだけ選ぶ
+        public final LinkTuner link = new LinkTuner(new LinkTuner.Link() {
+
+            @Override
+            public boolean requestConnectionPriority(int priority) {
+
+                return false;
+            }
+
+            @Override
+            public boolean setPreferredPhy(int phy) {
+
+                int mask = LinkTuner.toPhyMask(phy);
+                mGattServer.setPreferredPhy(device, mask, mask, BluetoothDevice.PHY_OPTION_NO_PREFERRED);
+                return true;
+            }
+        }, AndroidLinkEnvironment.INSTANCE, false, mLinkPolicy);
+
         public CentralContext(BluetoothDevice device) {
 
             this.device = device;
         }
+
+        @Override
+        protected int nextCost() {
+
+            return Math.min(sendBuffer.readable(), maximumWriteLength - 1);
+        }
+
+        @Override
+        protected int backlog() {
+
+            return sendBuffer.readable();
+        }
     }
 
     private ArrayList<CentralContext> mConnectedCentrals = new ArrayList<>();
-    private int mNextConnectionId = 1;
+    private CentralRegistry<CentralContext> mCentrals = new CentralRegistry<>();
+    private BufferPool mBufferPool = new BufferPool();
+    private volatile ReceiveQueue mReceiveQueue = null; // ポーリングで受信する間だけ（drainReceivedからも読む）
 
     private BluetoothGattServerCallback mGattCallback = new BluetoothGattServerCallback() {
 
@@ -103,62 +159,67 @@ public final class PeripheralImpl {
             Utils.info("onConnectionStateChange device: %s status: %d newState: %d",
                     device.toString(), status, newState);
 
-            synchronized (mLockObject) {
-
-                CentralContext context = null;
-                for (CentralContext ctx : mConnectedCentrals) {
+            mLoop.execute(new Runnable() {
 
-                    if (ctx.device.getAddress().equalsIgnoreCase(device.getAddress())) {
+                @Override
+                public void run() {
 
-                        context = ctx;
-                        break;
-                    }
-                }
+                    CentralContext context = mCentrals.get(device.getAddress());
 
-                if (newState == BluetoothProfile.STATE_CONNECTED) {
+                    if (newState == BluetoothProfile.STATE_CONNECTED) {
 
-                    if (mStatus != Status.Advertise) {
-                        Utils.error("invalid status: %s", mStatus.toString());
-                        return;
-                    }
+                        if (mStatus != Status.Advertise) {
+                            Utils.error("invalid status: %s", mStatus.toString());
+                            return;
+                        }
 
-                    if (context != null) {
-                        Utils.error("already connected");
-                        return;
-                    }
+                        // 別名で引けただけなら別のセントラルとして扱う
+                        if ((context != null) && context.device.getAddress().equalsIgnoreCase(device.getAddress())) {
+                            Utils.error("already connected");
+                            return;
+                        }
 
-                    Utils.info("central connected: %s", device.getAddress());
-                    mConnectedCentrals.add(new CentralContext(device));
-                }
-                else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+                        Utils.info("central connected: %s", device.getAddress());
+                        context = new CentralContext(device);
+                        mConnectedCentrals.add(context);
+                        mCentrals.putAddress(device.getAddress(), context);
 
-                    if ((mStatus != Status.Ready) && (mStatus != Status.Advertise)) {
-                        Utils.error("invalid status: %s", mStatus.toString());
-                        return;
+                        context.link.reset(System.currentTimeMillis());
+                        startLinkTimer();
                     }
+                    else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
 
-                    if (context == null) {
-                        Utils.error("invalid device");
-                        return;
-                    }
+                        if ((mStatus != Status.Ready) && (mStatus != Status.Advertise)) {
+                            Utils.error("invalid status: %s", mStatus.toString());
+                            return;
+                        }
 
-                    int connectionId = context.connectionId;
+                        if (context == null) {
+                            Utils.error("invalid device");
+                            return;
+                        }
 
-                    Utils.info("central disconnected: %s", device.getAddress());
-                    mConnectedCentrals.remove(context);
-                    unsubscribed(context);
+                        Utils.info("central disconnected: %s", device.getAddress());
+                        mConnectedCentrals.remove(context);
+                        mNotificationScheduler.remove(context);
+                        unsubscribed(context);
+
+                        mCentrals.removeAddress(context.device.getAddress(), context);
+                        mCentrals.removeAddress(context.secondaryAddress, context);
 
-                    if ((mNotifyingConnectionId != 0) && (connectionId == mNotifyingConnectionId)) {
+                        if (context.notifying) {
 
-                        mNotifyingConnectionId = 0;
-                        processNotificationQueue();
+                            context.notificationPending = false;
+                            notificationSent(context);
+                            processNotificationQueue();
+                        }
                     }
-                }
-                else {
+                    else {
 
-                    Utils.error("invalid newState");
+                        Utils.error("invalid newState");
+                    }
                 }
-            }
+            });
         }
 
         @Override
@@ -166,24 +227,28 @@ public final class PeripheralImpl {
 
             Utils.info("onServiceAdded status: %d service: %s", status, service.toString());
 
-            synchronized (mLockObject) {
+            mLoop.execute(new Runnable() {
 
-                if (mStatus != Status.Initialize) {
-                    Utils.error("invalid status: %s", mStatus.toString());
-                    return;
-                }
+                @Override
+                public void run() {
 
-                if (status != BluetoothGatt.GATT_SUCCESS) {
-                    Utils.error("failed");
-                    onFail();
-                    return;
-                }
+                    if (mStatus != Status.Initialize) {
+                        Utils.error("invalid status: %s", mStatus.toString());
+                        return;
+                    }
 
-                Utils.info("ready");
-                mStatus = Status.Ready;
+                    if (status != BluetoothGatt.GATT_SUCCESS) {
+                        Utils.error("failed");
+                        onFail();
+                        return;
+                    }
 
-                mPeripheralCallback.onReady();
-            }
+                    Utils.info("ready");
+                    mStatus = Status.Ready;
+
+                    mPeripheralCallback.onReady();
+                }
+            });
         }
 
         @Override
@@ -196,62 +261,66 @@ public final class PeripheralImpl {
             Utils.info("onCharacteristicReadRequest device: %s requestId: %d offset: %d characteristic: %s",
                     device.toString(), requestId, offset, characteristic.toString());
 
-            synchronized (mLockObject) {
+            mLoop.execute(new Runnable() {
 
-                if (characteristic != mDownloadCharacteristic) {
-                    Utils.error("invalid characteristic");
-                    mGattServer.sendResponse(device, requestId, BluetoothGatt.GATT_FAILURE, 0, null);
-                    return;
-                }
+                @Override
+                public void run() {
 
-                if ((mStatus != Status.Ready) && (mStatus != Status.Advertise)) {
-                    Utils.error("invalid status: %s", mStatus.toString());
-                    mGattServer.sendResponse(device, requestId, BluetoothGatt.GATT_FAILURE, 0, null);
-                    return;
-                }
+                    if (characteristic != mDownloadCharacteristic) {
+                        Utils.error("invalid characteristic");
+                        mGattServer.sendResponse(device, requestId, BluetoothGatt.GATT_FAILURE, 0, null);
+                        return;
+                    }
 
-                CentralContext context = null;
-                for (CentralContext ctx : mConnectedCentrals) {
+                    if ((mStatus != Status.Ready) && (mStatus != Status.Advertise)) {
+                        Utils.error("invalid status: %s", mStatus.toString());
+                        mGattServer.sendResponse(device, requestId, BluetoothGatt.GATT_FAILURE, 0, null);
+                        return;
+                    }
 
-                    if (ctx.device.getAddress().equalsIgnoreCase(device.getAddress())) {
+                    CentralContext context = mCentrals.get(device.getAddress());
 
-                        context = ctx;
-                        break;
+                    if ((context == null) || !context.subscribed) {
+                        Utils.error("invalid device");
+                        mGattServer.sendResponse(device, requestId, BluetoothGatt.GATT_FAILURE, 0, null);
+                        return;
                     }
-                }
 
-                if ((context == null) || !context.subscribed) {
-                    Utils.error("invalid device");
-                    mGattServer.sendResponse(device, requestId, BluetoothGatt.GATT_FAILURE, 0, null);
-                    return;
-                }
+                    if (offset != 0) {
+                        Utils.error("invalid parameter");
+                        mGattServer.sendResponse(device, requestId, BluetoothGatt.GATT_FAILURE, 0, null);
+                        unsubscribed(context);
+                        return;
+                    }
 
-                if (offset != 0) {
-                    Utils.error("invalid parameter");
-                    mGattServer.sendResponse(device, requestId, BluetoothGatt.GATT_FAILURE, 0, null);
-                    unsubscribed(context);
-                    return;
-                }
+                    byte[] value = null;
 
-                byte[] value = null;
+                    if (context.stream != null) {
 
-                if (context.sendBuffer.position() > 0) {
+                        // ストリーミング中は読み出しで取りに来ることはない
+                        Utils.info("sendResponse: null (streaming)");
+                    }
+                    else if (context.sendBuffer.readable() > 0) {
 
-                    value = processSendBuffer(context);
-                    Utils.info("sendResponse: %d bytes remain %d bytes %s ",
-                            value.length, context.sendBuffer.position(), device.getAddress());
-                }
-                else {
+                        value = processSendBuffer(context);
+                        Utils.info("sendResponse: %d bytes remain %d bytes %s ",
+                                value.length, context.sendBuffer.size(), device.getAddress());
+                    }
+                    else {
 
-                    Utils.info("sendResponse: null");
-                    context.valueWriting = false;
-                }
+                        Utils.info("sendResponse: null");
+                        context.valueWriting = false;
+                    }
 
-                if (!mGattServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, 0, value)) {
-                    Utils.error("failed");
-                    unsubscribed(context);
+                    if (!mGattServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, 0, value)) {
+                        Utils.error("failed");
+                        unsubscribed(context);
+                        return;
+                    }
+
+                    processWritable(context);
                 }
-            }
+            });
         }
 
         @Override
@@ -267,62 +336,89 @@ public final class PeripheralImpl {
             Utils.info("onCharacteristicWriteRequest device: %s requestId: %d characteristic: %s preparedWrite: %b responseNeeded: %b, offset: %d, value: %d bytes",
                     device.toString(), requestId, characteristic.toString(), preparedWrite, responseNeeded, offset, value.length);
 
-            synchronized (mLockObject) {
+            mLoop.execute(new Runnable() {
 
-                if (characteristic != mUploadCharacteristic) {
-                    Utils.error("invalid characteristic");
-                    mGattServer.sendResponse(device, requestId, BluetoothGatt.GATT_FAILURE, 0, value);
-                    return;
-                }
+                @Override
+                public void run() {
 
-                if ((mStatus != Status.Ready) && (mStatus != Status.Advertise)) {
-                    Utils.error("invalid status: %s", mStatus.toString());
-                    mGattServer.sendResponse(device, requestId, BluetoothGatt.GATT_FAILURE, 0, value);
-                    return;
-                }
+                    if (characteristic != mUploadCharacteristic) {
+                        Utils.error("invalid characteristic");
+                        mGattServer.sendResponse(device, requestId, BluetoothGatt.GATT_FAILURE, 0, value);
+                        return;
+                    }
 
-                CentralContext context = null;
-                for (CentralContext ctx : mConnectedCentrals) {
+                    if ((mStatus != Status.Ready) && (mStatus != Status.Advertise)) {
+                        Utils.error("invalid status: %s", mStatus.toString());
+                        mGattServer.sendResponse(device, requestId, BluetoothGatt.GATT_FAILURE, 0, value);
+                        return;
+                    }
 
-                    if (ctx.device.getAddress().equalsIgnoreCase(device.getAddress())) {
+                    CentralContext context = mCentrals.get(device.getAddress());
 
-                        context = ctx;
-                        break;
+                    if ((context == null) || !context.subscribed) {
+                        Utils.error("invalid device");
+                        mGattServer.sendResponse(device, requestId, BluetoothGatt.GATT_FAILURE, 0, value);
+                        return;
                     }
-                }
 
-                if ((context == null) || !context.subscribed) {
-                    Utils.error("invalid device");
-                    mGattServer.sendResponse(device, requestId, BluetoothGatt.GATT_FAILURE, 0, value);
-                    return;
-                }
+                    if (preparedWrite || (offset != 0) || (value == null)
+                            || (!responseNeeded && !context.codec.acceptsWriteWithoutResponse())) {
+                        Utils.error("invalid parameter");
+                        mGattServer.sendResponse(device, requestId, BluetoothGatt.GATT_FAILURE, 0, value);
+                        unsubscribed(context);
+                        return;
+                    }
 
-                if (preparedWrite || !responseNeeded || (offset != 0) || (value == null)) {
-                    Utils.error("invalid parameter");
-                    mGattServer.sendResponse(device, requestId, BluetoothGatt.GATT_FAILURE, 0, value);
-                    unsubscribed(context);
-                    return;
-                }
+                    context.link.record(value.length, System.currentTimeMillis());
 
-                // Utils.info("sendResponse ack");
-                if (!mGattServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, 0, value)) {
-                    Utils.error("failed");
-                    unsubscribed(context);
-                    return;
-                }
+                    if (!responseNeeded) {
 
-                if (context.connectionId == 0) { // Negotiation complete
+                        // 渡したクレジットを超えて書き込まれたら受信バッファが溢れうるので切断する
+                        if (value.length > context.credit) {
+                            Utils.error("credit exceeded: %d > %d", value.length, context.credit);
+                            unsubscribed(context);
+                            return;
+                        }
 
-                    final int connectionId = mNextConnectionId++;
-                    context.connectionId = connectionId;
+                        context.credit -= value.length;
+                    }
+                    else {
 
-                    mPeripheralCallback.onConnect(connectionId);
-                }
-                else {
+                        // Utils.info("sendResponse ack");
+                        if (!mGattServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, 0, value)) {
+                            Utils.error("failed");
+                            unsubscribed(context);
+                            return;
+                        }
+                    }
+
+                    if (context.connectionId == 0) { // Negotiation complete
+
+                        final int connectionId = mCentrals.addConnection(context);
+                        context.connectionId = connectionId;
+
+                        int features = FrameCodec.parseHello(value);
+                        if (features != -1) {
+
+                            features = FrameCodec.acceptFeatures(features);
+                            Utils.info("accept features: 0x%04x", features);
+
+                            byte[] payload = FrameCodec.createFeatures(features);
+                            if (!sendInternal(context, payload, payload.length, FrameCodec.CONTROL_ACCEPT, FrameCodec.FLAG_CONTROL)) {
+                                return;
+                            }
+
+                            context.codec.setEncoderFeatures(features);
+                        }
+
+                        mPeripheralCallback.onConnect(connectionId);
+                    }
+                    else {
 
-                    processReceiveBuffer(context, value);
+                        processReceiveBuffer(context, value);
+                    }
                 }
-            }
+            });
         }
 
         @Override
@@ -351,67 +447,89 @@ public final class PeripheralImpl {
             Utils.info("onDescriptorWriteRequest device: %s requestId: %d descriptor: %s preparedWrite: %b responseNeeded: %b, offset: %d, value: %d bytes",
                     device.toString(), requestId, descriptor.toString(), preparedWrite, responseNeeded, offset, value.length);
 
-            synchronized (mLockObject) {
-
-                if (descriptor != mNotificationDescriptor) {
-                    Utils.error("invalid descriptor");
-                    mGattServer.sendResponse(device, requestId, BluetoothGatt.GATT_FAILURE, 0, value);
-                    return;
-                }
+            mLoop.execute(new Runnable() {
 
-                CentralContext context = null;
-                for (CentralContext ctx : mConnectedCentrals) {
+                @Override
+                public void run() {
 
-                    if (ctx.device.getAddress().equalsIgnoreCase(device.getAddress())) {
-                        context = ctx;
-                        break;
+                    if (descriptor != mNotificationDescriptor) {
+                        Utils.error("invalid descriptor");
+                        mGattServer.sendResponse(device, requestId, BluetoothGatt.GATT_FAILURE, 0, value);
+                        return;
                     }
-                }
-
-                if (context == null) {
-                    Utils.error("invalid device");
-                    mGattServer.sendResponse(device, requestId, BluetoothGatt.GATT_FAILURE, 0, value);
-                    return;
-                }
 
-                if (Arrays.equals(value, BluetoothGattDescriptor.ENABLE_INDICATION_VALUE)) { // Subscribe
+                    CentralContext context = mCentrals.get(device.getAddress());
 
-                    if (mStatus != Status.Advertise) {
-                        Utils.error("invalid status: %s", mStatus.toString());
+                    if (context == null) {
+                        Utils.error("invalid device");
                         mGattServer.sendResponse(device, requestId, BluetoothGatt.GATT_FAILURE, 0, value);
                         return;
                     }
 
-                    // Utils.info("sendResponse ack");
-                    if (!mGattServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, 0, value)) {
-                        Utils.error("failed");
-                        return;
+                    if (Arrays.equals(value, BluetoothGattDescriptor.ENABLE_INDICATION_VALUE)) { // Subscribe
+
+                        if (mStatus != Status.Advertise) {
+                            Utils.error("invalid status: %s", mStatus.toString());
+                            mGattServer.sendResponse(device, requestId, BluetoothGatt.GATT_FAILURE, 0, value);
+                            return;
+                        }
+
+                        // Utils.info("sendResponse ack");
+                        if (!mGattServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, 0, value)) {
+                            Utils.error("failed");
+                            return;
+                        }
+
+                        subscribed(context);
                     }
+                    else if (Arrays.equals(value, BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE)) { // Unsubscribe
 
-                    subscribed(context);
-                }
-                else if (Arrays.equals(value, BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE)) { // Unsubscribe
+                        if (!context.subscribed) {
+                            Utils.error("not subscribed");
+                            return;
+                        }
 
-                    if (!context.subscribed) {
-                        Utils.error("not subscribed");
-                        return;
+                        // Utils.info("sendResponse ack");
+                        if (!mGattServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, 0, value)) {
+                            Utils.error("failed");
+                        }
+
+                        unsubscribed(context);
                     }
+                    else if (Arrays.equals(value, StreamWindow.ENABLE_STREAM_VALUE)) { // Enable stream
 
-                    // Utils.info("sendResponse ack");
-                    if (!mGattServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, 0, value)) {
-                        Utils.error("failed");
+                        if (!context.subscribed) {
+                            Utils.error("not subscribed");
+                            mGattServer.sendResponse(device, requestId, BluetoothGatt.GATT_FAILURE, 0, value);
+                            return;
+                        }
+
+                        if (!mGattServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, 0, value)) {
+                            Utils.error("failed");
+                            return;
+                        }
+
+                        context.streamEnabled = true;
+                        requestStream(context);
                     }
+                    else if (StreamWindow.isAckValue(value)) { // STREAM_ACK
 
-                    unsubscribed(context);
-                }
-                else {
+                        if (!mGattServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, 0, value)) {
+                            Utils.error("failed");
+                            return;
+                        }
 
-                    Utils.error("invalid value");
-                    mGattServer.sendResponse(device, requestId, BluetoothGatt.GATT_FAILURE, 0, value);
-                    unsubscribed(context);
-                    return;
+                        acknowledgeStream(context, value[1] & StreamWindow.SEQUENCE_MASK, value[2] != 0);
+                    }
+                    else {
+
+                        Utils.error("invalid value");
+                        mGattServer.sendResponse(device, requestId, BluetoothGatt.GATT_FAILURE, 0, value);
+                        unsubscribed(context);
+                        return;
+                    }
                 }
-            }
+            });
         }
 
         @Override
@@ -426,11 +544,38 @@ public final class PeripheralImpl {
 
             Utils.info("onNotificationSent device: %s status: %d", device.toString(), status);
 
-            synchronized (mLockObject) {
+            mLoop.execute(new Runnable() {
 
-                mNotifyingConnectionId = 0;
-                processNotificationQueue();
-            }
+                @Override
+                public void run() {
+
+                    CentralContext context = mCentrals.get(device.getAddress());
+                    if ((context != null) && !context.notifying) {
+                        context = null;
+                    }
+
+                    // 一つずつ通知している場合は相手のアドレスが一致しなくても完了を取り違えることはない
+                    if ((context == null) && !mConcurrentNotifications) {
+
+                        for (CentralContext ctx : mConnectedCentrals) {
+
+                            if (ctx.notifying) {
+
+                                context = ctx;
+                                break;
+                            }
+                        }
+                    }
+
+                    if (context == null) {
+                        Utils.error("invalid device");
+                        return;
+                    }
+
+                    notificationSent(context);
+                    processNotificationQueue();
+                }
+            });
         }
 
         @Override
@@ -438,32 +583,47 @@ public final class PeripheralImpl {
 
             Utils.info("onMtuChanged device: %s mtu: %d", device.toString(), mtu);
 
-            synchronized (mLockObject) {
+            mLoop.execute(new Runnable() {
 
-                for (CentralContext context : mConnectedCentrals) {
+                @Override
+                public void run() {
+
+                    CentralContext context = mCentrals.get(device.getAddress());
+                    if (context != null) {
 
-                    if (context.device.getAddress().equalsIgnoreCase(device.getAddress())) {
+                        applyMtu(context, mtu);
+
+                        if (context.secondaryAddress == null) {
+                            context.secondaryAddress = device.getAddress();
+                        }
 
-                        context.maximumWriteLength = mtu - 3;
-                        context.secondaryAddress = device.getAddress();
                         return;
                     }
-                }
 
-                // HACK: iPhoneのセントラルのアドレスが一致しなくなる場合への対応
-                for (CentralContext context : mConnectedCentrals) {
+                    // HACK: iPhoneのセントラルのアドレスが一致しなくなる場合への対応
+                    // 候補が複数あると取り違えて大きすぎるフラグメントを送りかねないので、一つに絞れる時だけ適用する
+                    CentralContext candidate = null;
+                    int candidates = 0;
 
-                    if (context.secondaryAddress == null) {
+                    for (CentralContext ctx : mConnectedCentrals) {
 
-                        Utils.error("using workaround: %s as %s", context.device.getAddress(), device.getAddress());
-                        context.maximumWriteLength = mtu - 3;
-                        context.secondaryAddress = device.getAddress();
+                        if (ctx.secondaryAddress == null) {
+                            candidate = ctx;
+                            candidates++;
+                        }
+                    }
+
+                    if (candidates != 1) {
+                        Utils.error("could not apply mtu: %d candidates", candidates);
                         return;
                     }
-                }
 
-                Utils.error("could not apply mtu");
-            }
+                    Utils.error("using workaround: %s as %s", candidate.device.getAddress(), device.getAddress());
+                    applyMtu(candidate, mtu);
+                    candidate.secondaryAddress = device.getAddress();
+                    mCentrals.putAddress(candidate.secondaryAddress, candidate);
+                }
+            });
         }
 
         @Override
@@ -471,47 +631,77 @@ public final class PeripheralImpl {
 
             Utils.info("onPhyUpdate device: %s txPhy: %d rxPhy: %d status: %d",
                     device.toString(), txPhy, rxPhy, status);
-        }
 
-        @Override
+            mLoop.execute(new Runnable() {
+
+                @Override
+                public void run() {
+
+                    CentralContext context = mCentrals.get(device.getAddress());
+                    if (context == null) {
+                        Utils.error("invalid device");
+                        return;
+                    }
+
+                    context.link.onPhyUpdate(txPhy, status == BluetoothGatt.GATT_SUCCESS);
+                }
+            });
+        }
+
+        @Override
         public void onPhyRead(BluetoothDevice device, int txPhy, int rxPhy, int status) {
 
             Utils.info("onPhyRead device: %s txPhy: %d rxPhy: %d status: %d",
                     device.toString(), txPhy, rxPhy, status);
+
+            mLoop.execute(new Runnable() {
+
+                @Override
+                public void run() {
+
+                    CentralContext context = mCentrals.get(device.getAddress());
+                    if ((context != null) && (status == BluetoothGatt.GATT_SUCCESS)) {
+                        context.link.onPhyUpdate(txPhy, true);
+                    }
+                }
+            });
         }
     };
 
     public boolean initialize(String serviceUUID, String uploadUUID, String downloadUUID, PeripheralCallback callback) {
 
-        synchronized (mLockObject) {
+        mLoop.start();
 
-            if (mStatus != Status.Invalid) {
-                Utils.error("invalid status: %s", mStatus.toString());
-                return false;
-            }
+        return mLoop.call(new Callable<Boolean>() {
 
-            try {
+            @Override
+            public Boolean call() {
 
-                mServiceUUID = UUID.fromString(serviceUUID);
-                mUploadUUID = UUID.fromString(uploadUUID);
-                mDownloadUUID = UUID.fromString(downloadUUID);
-            }
-            catch (Exception e) {
+                if (mStatus != Status.Invalid) {
+                    Utils.error("invalid status: %s", mStatus.toString());
+                    return false;
+                }
 
-                Utils.error(e.toString());
-                cleanup();
-                return false;
-            }
+                try {
 
-            mStatus = Status.Initialize;
-            mPeripheralCallback = callback;
+                    mServiceUUID = UUID.fromString(serviceUUID);
+                    mUploadUUID = UUID.fromString(uploadUUID);
+                    mDownloadUUID = UUID.fromString(downloadUUID);
+                }
+                catch (Exception e) {
 
-            TimerTask timerTask = new TimerTask() {
+                    Utils.error("%s", e);
+                    cleanup();
+                    return false;
+                }
 
-                @Override
-                public void run() {
+                mStatus = Status.Initialize;
+                mPeripheralCallback = new PeripheralCallbackDispatcher(callback, mLoop);
+
+                mInitializationTimer = mLoop.schedule(new Runnable() {
 
-                    synchronized (mLockObject) {
+                    @Override
+                    public void run() {
 
                         if (mStatus != Status.Initialize) {
                             Utils.error("invalid status: %s", mStatus.toString());
@@ -528,19 +718,16 @@ public final class PeripheralImpl {
                             }
                         }
                     }
-                }
-            };
+                }, 0, UPDATE_INTERVAL);
 
-            mInitializationTimer = new Timer();
-            mInitializationTimer.schedule(timerTask, 0, UPDATE_INTERVAL);
+                if (!Utils.isBluetoothEnabled()) {
+                    Utils.info("bluetooth required..");
+                    mPeripheralCallback.onBluetoothRequire();
+                }
 
-            if (!Utils.isBluetoothEnabled()) {
-                Utils.info("bluetooth required..");
-                mPeripheralCallback.onBluetoothRequire();
+                return true;
             }
-        }
-
-        return true;
+        }, false);
     }
 
     private boolean initializeInternal() {
@@ -571,13 +758,14 @@ public final class PeripheralImpl {
 
         mDownloadCharacteristic = new BluetoothGattCharacteristic(
                 mDownloadUUID,
-                BluetoothGattCharacteristic.PROPERTY_READ | BluetoothGattCharacteristic.PROPERTY_INDICATE,
+                BluetoothGattCharacteristic.PROPERTY_READ | BluetoothGattCharacteristic.PROPERTY_INDICATE
+                        | BluetoothGattCharacteristic.PROPERTY_NOTIFY,
                 BluetoothGattCharacteristic.PERMISSION_READ);
         mDownloadCharacteristic.addDescriptor(mNotificationDescriptor);
 
         mUploadCharacteristic = new BluetoothGattCharacteristic(
                 mUploadUUID,
-                BluetoothGattCharacteristic.PROPERTY_WRITE,
+                BluetoothGattCharacteristic.PROPERTY_WRITE | BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE,
                 BluetoothGattCharacteristic.PERMISSION_WRITE);
 
         mCommunicationService = new BluetoothGattService(mServiceUUID, BluetoothGattService.SERVICE_TYPE_PRIMARY);
@@ -593,6 +781,12 @@ public final class PeripheralImpl {
         return true;
     }
 
+    private void applyMtu(CentralContext context, int mtu) {
+
+        context.maximumWriteLength = Math.min(Math.max(mtu, DEFAULT_MTU), MTU_MAX) - 3;
+        context.fragments.resize(context.maximumWriteLength);
+    }
+
     private void subscribed(final CentralContext context) {
 
         if (context.subscribed) {
@@ -603,21 +797,15 @@ public final class PeripheralImpl {
 
         context.subscribed = true;
 
-        TimerTask timerTask = new TimerTask() {
+        context.acceptanceTimer = mLoop.schedule(new Runnable() {
 
             @Override
             public void run() {
 
-                synchronized (mLockObject) {
-
-                    Utils.error("connection timeout");
-                    unsubscribed(context);
-                }
+                Utils.error("connection timeout");
+                unsubscribed(context);
             }
-        };
-
-        context.acceptanceTimer = new Timer();
-        context.acceptanceTimer.schedule(timerTask, ACCEPTANCE_TIMEOUT);
+        }, ACCEPTANCE_TIMEOUT);
 
         Utils.info("central subscribed");
     }
@@ -632,6 +820,7 @@ public final class PeripheralImpl {
 
         final int connectionId = context.connectionId;
         context.connectionId = 0;
+        mCentrals.removeConnection(connectionId);
 
         if (context.acceptanceTimer != null) {
             context.acceptanceTimer.cancel();
@@ -639,15 +828,24 @@ public final class PeripheralImpl {
         }
 
         context.receiveBuffer.clear();
-        context.receiveMessageSize = -1;
-        context.receiveMessageAddress = -1;
+        context.codec.reset();
         context.sendBuffer.clear();
+        context.largeMessages.clear();
+        context.blocked = false;
         context.valueWriting = false;
+        context.notificationPending = false;
+        context.credit = 0;
+        context.streamPending = false;
+        context.streamEnabled = false;
+        context.stream = null;
+        mCentrals.removePlayer(context.playerId, context);
         context.playerId = 0;
+        publishBlocked();
+        postSendChannel();
 
-        if (mNotificationQueue.contains(connectionId)) {
-            mNotificationQueue.remove((Integer)connectionId);
-        }
+        abortCutThrough(context);
+
+        mNotificationScheduler.remove(context);
 
         Utils.info("central unsubscribed: %s", context.device.getAddress());
 
@@ -665,7 +863,7 @@ public final class PeripheralImpl {
     // Advertising
 
     private String mDeviceName = null;
-    private Timer mAdvertiseTimer = null;
+    private EventLoop.Timeout mAdvertiseTimer = null;
     private BluetoothLeAdvertiser mAdvertiser = null;
     private String mOriginalAdapterName = null;
 
@@ -675,7 +873,14 @@ public final class PeripheralImpl {
 
             Utils.info("onStartSuccess settingsInEffect: %s", settingsInEffect.toString());
 
-            restoreAdapterName();
+            mLoop.execute(new Runnable() {
+
+                @Override
+                public void run() {
+
+                    restoreAdapterName();
+                }
+            });
         }
 
         @Override
@@ -683,40 +888,48 @@ public final class PeripheralImpl {
 
             Utils.error("onStartFailure errorCode: %d", errorCode);
 
-            restoreAdapterName();
-            stopAdvertising();
-            onFail();
+            mLoop.execute(new Runnable() {
+
+                @Override
+                public void run() {
+
+                    restoreAdapterName();
+                    stopAdvertising();
+                    onFail();
+                }
+            });
         }
     };
 
     public boolean startAdvertising(String deviceName) {
 
-        synchronized (mLockObject) {
+        return mLoop.call(new Callable<Boolean>() {
 
-            if (mStatus == Status.Advertise) {
-                Utils.error("already advertising");
-                return false;
-            }
+            @Override
+            public Boolean call() {
 
-            if (mStatus != Status.Ready) {
-                Utils.error("invalid status: %s", mStatus.toString());
-                return false;
-            }
+                if (mStatus == Status.Advertise) {
+                    Utils.error("already advertising");
+                    return false;
+                }
 
-            if (deviceName == null) {
-                Utils.error("deviceName is null");
-                return false;
-            }
+                if (mStatus != Status.Ready) {
+                    Utils.error("invalid status: %s", mStatus.toString());
+                    return false;
+                }
 
-            mStatus = Status.Advertise;
-            mDeviceName = deviceName;
+                if (deviceName == null) {
+                    Utils.error("deviceName is null");
+                    return false;
+                }
 
-            TimerTask timerTask = new TimerTask() {
+                mStatus = Status.Advertise;
+                mDeviceName = deviceName;
 
-                @Override
-                public void run() {
+                mAdvertiseTimer = mLoop.schedule(new Runnable() {
 
-                    synchronized (mLockObject) {
+                    @Override
+                    public void run() {
 
                         if (mStatus != Status.Advertise) {
                             Utils.error("invalid status: %s", mStatus.toString());
@@ -733,20 +946,17 @@ public final class PeripheralImpl {
                             stopAdvertisingInternal();
                         }
                     }
-                }
-            };
+                }, 0, UPDATE_INTERVAL);
 
-            mAdvertiseTimer = new Timer();
-            mAdvertiseTimer.schedule(timerTask, 0, UPDATE_INTERVAL);
+                if (!Utils.isBluetoothEnabled()) {
 
-            if (!Utils.isBluetoothEnabled()) {
+                    Utils.info("bluetooth required..");
+                    mPeripheralCallback.onBluetoothRequire();
+                }
 
-                Utils.info("bluetooth required..");
-                mPeripheralCallback.onBluetoothRequire();
+                return true;
             }
-        }
-
-        return true;
+        }, false);
     }
 
     private boolean startAdvertisingInternal(){
@@ -793,22 +1003,26 @@ public final class PeripheralImpl {
 
     public void stopAdvertising() {
 
-        synchronized (mLockObject) {
+        mLoop.execute(new Runnable() {
 
-            if (mStatus != Status.Advertise) {
-                Utils.error("invalid status: %s", mStatus.toString());
-                return;
-            }
+            @Override
+            public void run() {
 
-            mStatus = Status.Ready;
+                if (mStatus != Status.Advertise) {
+                    Utils.error("invalid status: %s", mStatus.toString());
+                    return;
+                }
 
-            if (mAdvertiser != null) {
-                stopAdvertisingInternal();
-            }
+                mStatus = Status.Ready;
 
-            mAdvertiseTimer.cancel();
-            mAdvertiseTimer = null;
-        }
+                if (mAdvertiser != null) {
+                    stopAdvertisingInternal();
+                }
+
+                mAdvertiseTimer.cancel();
+                mAdvertiseTimer = null;
+            }
+        });
     }
 
     private void stopAdvertisingInternal() {
@@ -846,17 +1060,21 @@ public final class PeripheralImpl {
 
     public boolean accept(int connectionId, int playerId) {
 
-        synchronized (mLockObject) {
+        return mLoop.call(new Callable<Boolean>() {
 
-            for (CentralContext context : mConnectedCentrals) {
+            @Override
+            public Boolean call() {
 
-                if (context.connectionId == connectionId) {
+                CentralContext context = mCentrals.getConnection(connectionId);
+                if (context != null) {
 
                     if (context.playerId != 0) {
                         Utils.info("already accepted");
+                        mCentrals.removePlayer(context.playerId, context);
                     }
 
                     context.playerId = playerId;
+                    mCentrals.putPlayer(playerId, context);
 
                     if (context.acceptanceTimer != null) {
                         context.acceptanceTimer.cancel();
@@ -865,346 +1083,1642 @@ public final class PeripheralImpl {
 
                     return true;
                 }
-            }
-        }
 
-        Utils.error("invalid connectionId: %d", connectionId);
-        return false;
+                Utils.error("invalid connectionId: %d", connectionId);
+                return false;
+            }
+        }, false);
     }
 
     public void invalidate(int connectionId) {
 
-        synchronized (mLockObject) {
+        mLoop.execute(new Runnable() {
 
-            for (CentralContext context : mConnectedCentrals) {
+            @Override
+            public void run() {
 
-                if (context.connectionId == connectionId) {
+                CentralContext context = mCentrals.getConnection(connectionId);
+                if (context != null) {
 
                     unsubscribed(context);
                     return;
                 }
-            }
-        }
 
-        Utils.error("invalid connectionId: %d", connectionId);
+                Utils.error("invalid connectionId: %d", connectionId);
+            }
+        });
     }
 
     // Communication
 
-    private int mNotifyingConnectionId = 0;
-    private LinkedList<Integer> mNotificationQueue = new LinkedList<>();
+    private boolean mConcurrentNotifications = false;
+    private boolean mCutThroughRelay = false;
+    private int mNotifyingCount = 0;
+    private EventLoop.Timeout mStreamTimer = null;
+    private EventLoop.Timeout mLinkTimer = null;
+    private LinkPolicy mLinkPolicy = LinkTuner.createPolicy(LinkTuner.MODE_ADAPTIVE);
+    private int mHighWatermark = DEFAULT_HIGH_WATERMARK;
+    private int mLowWatermark = DEFAULT_LOW_WATERMARK;
+    private Lz4 mLz4 = new Lz4();
+    private byte[] mCompressBuffer = new byte[MESSAGE_SIZE_MAX];
+    private NotificationScheduler mNotificationScheduler = new NotificationScheduler(NOTIFICATION_QUANTUM);
+
+    // SendChannelと送信キューに積まれているバイト数を返す。SEND_WOULD_BLOCKならonWritableを待ってから送り直す
+    public int sendDirect(byte[] message, int messageSize, int connectionId) {
+
+        return sendDirect(message, 0, messageSize, connectionId);
+    }
 
-    public boolean sendDirect(byte[] message, int messageSize, int connectionId) {
+    public int sendDirect(byte[] src, int offset, int length, int connectionId) {
 
-        synchronized (mLockObject) {
+        return sendDirect(src, offset, length, connectionId, false);
+    }
 
-            if ((mStatus != Status.Ready) && (mStatus != Status.Advertise)) {
-                Utils.error("invalid status: %s", mStatus.toString());
-                return false;
-            }
+    // unthrottledなら高水位に達していてもブロックせず、送信バッファに収まる限り積む（システムメッセージ）
+    public int sendDirect(byte[] src, int offset, int length, int connectionId, boolean unthrottled) {
 
-            if (message == null) {
-                Utils.error("message is null");
-                return false;
-            }
+        if (src == null) {
+            Utils.error("message is null");
+            return SEND_FAILED;
+        }
 
-            if ((messageSize < 0) || (messageSize > message.length)) {
-                Utils.error("invalid message size");
-                return false;
-            }
+        if ((offset < 0) || (length < 0) || (offset > src.length - length)) {
+            Utils.error("invalid message size");
+            return SEND_FAILED;
+        }
 
-            if (messageSize > MESSAGE_SIZE_MAX) {
-                Utils.error("message size too large");
-                return false;
-            }
+        return sendDirect(src, offset, length, null, connectionId, unthrottled);
+    }
 
-            for (CentralContext context : mConnectedCentrals) {
+    // srcのpositionからlimitまでを送る。送信キューに積めればpositionはlimitまで進む
+    public int sendDirect(ByteBuffer src, int connectionId) {
 
-                if ((context.connectionId != 0) && (context.connectionId == connectionId)) {
+        if (src == null) {
+            Utils.error("message is null");
+            return SEND_FAILED;
+        }
 
-                    return sendInternal(context, message, messageSize, 0);
-                }
-            }
+        return sendDirect(null, 0, src.remaining(), new ByteBuffer[] { src }, connectionId, false);
+    }
+
+    // ヘッダーとペイロードのように分かれているものを、つなげた一つのメッセージとして送る
+    public int sendDirect(ByteBuffer[] segments, int connectionId) {
+
+        int length = MessageChannel.Segments.remaining(segments);
+        if (length < 0) {
+            Utils.error("invalid segments");
+            return SEND_FAILED;
         }
 
-        Utils.error("invalid connectionId: %d", connectionId);
-        return false;
+        return sendDirect(null, 0, length, segments, connectionId, false);
     }
 
-    public boolean send(byte[] message, int messageSize, int receiver) {
+    // sendと同じSendChannelに積み、先に積まれたsendを追い越さないようにする
+    // connectionIdはループで引くので、積んだ後で切断されていればそこで捨てる
+    private int sendDirect(byte[] src, int offset, int length, ByteBuffer[] segments, int connectionId, boolean unthrottled) {
 
-        synchronized (mLockObject) {
+        synchronized (mSendLock) {
 
             if ((mStatus != Status.Ready) && (mStatus != Status.Advertise)) {
                 Utils.error("invalid status: %s", mStatus.toString());
-                return false;
+                return SEND_FAILED;
             }
 
-            if (message == null) {
-                Utils.error("message is null");
-                return false;
+            if (length > MESSAGE_SIZE_MAX) {
+                Utils.error("message size too large");
+                return SEND_FAILED;
             }
 
-            if ((messageSize < 0) || (messageSize > message.length)) {
-                Utils.error("invalid message size");
-                return false;
+            if (connectionId <= 0) {
+                Utils.error("invalid connectionId: %d", connectionId);
+                return SEND_FAILED;
             }
 
-            if (messageSize > MESSAGE_SIZE_MAX) {
-                Utils.error("message size too large");
-                return false;
+            int kind = MessageChannel.KIND_DIRECT | (unthrottled ? MessageChannel.KIND_UNTHROTTLED : 0);
+            int queued = mQueuedSize + mSendChannel.size();
+
+            if (segments != null) {
+                return endSend(mSendChannel.offer(segments, connectionId, kind), queued, length);
             }
 
-            for (CentralContext context : mConnectedCentrals) {
+            return endSend(mSendChannel.offer(src, offset, length, connectionId, kind), queued, length);
+        }
+    }
 
-                if ((context.playerId & receiver) != 0) {
+    private volatile MessageChannel mSendChannel = new SendChannel(BUFFER_SIZE); // sendからも読む
+    private volatile SharedChannel mSharedSendChannel = null;
+    private volatile SharedChannel mSharedReceiveChannel = null;
+    private byte[] mChannelMessage = new byte[MESSAGE_SIZE_MAX];
+    private final Object mSendLock = new Object(); // SendChannelに書き込むスレッドを一つずつにする
+    private volatile int mQueuedSize = 0; // ループが最後に送信キューに積んだ時のバイト数
+    private volatile int mBlockedPlayers = 0; // ブロックしているセントラルのplayerIdのビット
+    private volatile boolean mChannelBlocked = false;
+    private AtomicBoolean mChannelPosted = new AtomicBoolean(false);
 
-                    sendInternal(context, message, messageSize, 1);
-                }
-            }
+    private Runnable mChannelTask = new Runnable() {
+
+        @Override
+        public void run() {
+
+            mChannelPosted.set(false);
+            processSendChannel();
         }
+    };
 
-        return true;
+    // 宛先のうち一つでもブロックしていれば誰にも送らずにSEND_WOULD_BLOCKを返す
+    // メッセージはSendChannelに積んでループで送信キューに移すので、Unityのスレッドはループとの往復を待たない
+    // SendChannelは書き込むスレッドが一つの前提なので、書き込みはmSendLockで一つずつにする（競合しなければ費用はわずか）
+    // 共有のリングにはC#が直接書き込むので、C#のラッパーも同じ順番で一つずつ書き込む
+    public int send(byte[] message, int messageSize, int receiver) {
+
+        return send(message, 0, messageSize, receiver);
     }
 
-    private boolean sendInternal(CentralContext context, byte[] message, int messageSize, int address) {
+    // MessageBufferに続けて組み立てたメッセージを、切り出さずにsrcのoffsetから送る
+    public int send(byte[] src, int offset, int length, int receiver) {
 
-        try
-        {
-            context.sendBuffer.putChar((char)messageSize);
-            context.sendBuffer.putChar((char)(address & 0xffff));
-            context.sendBuffer.put(message, 0, messageSize);
-        }
-        catch (Exception e)
-        {
-            Utils.error(e.toString());
-            unsubscribed(context);
-            return false;
-        }
+        return send(src, offset, length, receiver, false);
+    }
 
-        if (!context.valueWriting) {
+    // unthrottledなら宛先が高水位に達していてもブロックせず、SendChannelに空きがある限り積む（水位を使わない従来のsend）
+    public int send(byte[] src, int offset, int length, int receiver, boolean unthrottled) {
 
-            context.valueWriting = true;
+        if (src == null) {
+            Utils.error("message is null");
+            return SEND_FAILED;
+        }
+
+        if ((offset < 0) || (length < 0) || (offset > src.length - length)) {
+            Utils.error("invalid message size");
+            return SEND_FAILED;
+        }
 
-            if (mNotifyingConnectionId == 0) {
+        synchronized (mSendLock) {
 
-                sendNotification(context);
+            int queued = beginSend(length, receiver, unthrottled);
+            if (queued < 0) {
+                return queued;
             }
-            else {
 
-                mNotificationQueue.add(context.connectionId);
-            }
+            int kind = unthrottled ? MessageChannel.KIND_UNTHROTTLED : 0;
+            return endSend(mSendChannel.offer(src, offset, length, receiver, kind), queued, length);
         }
-
-        return true;
     }
 
-    private byte[] processSendBuffer(CentralContext context) {
-
-        context.sendBuffer.flip();
+    // srcのpositionからlimitまでを送る。SendChannelに積めればpositionはlimitまで進む
+    public int send(ByteBuffer src, int receiver) {
 
-        int size = Math.min(context.sendBuffer.limit(), context.maximumWriteLength - 1);
-        byte[] value = new byte[size + 1];
+        if (src == null) {
+            Utils.error("message is null");
+            return SEND_FAILED;
+        }
 
-        context.sendBuffer.get(value, 0, size);
-        context.sendBuffer.compact();
+        int length = src.remaining();
 
-        if (context.sendBuffer.position() > 0) {
+        synchronized (mSendLock) {
 
-            value[size] = 1;
-            context.valueWriting = true;
-        }
-        else {
+            int queued = beginSend(length, receiver, false);
+            if (queued < 0) {
+                return queued;
+            }
 
-            value[size] = 0;
-            context.valueWriting = false;
+            return endSend(mSendChannel.offer(src, receiver), queued, length);
         }
-
-        return value;
     }
 
-    private boolean sendNotification(CentralContext context) {
+    // ヘッダーとペイロードのように分かれているものを、つなげた一つのメッセージとして送る
+    public int send(ByteBuffer[] segments, int receiver) {
 
-        byte[] value = processSendBuffer(context);
+        int length = MessageChannel.Segments.remaining(segments);
+        if (length < 0) {
+            Utils.error("invalid segments");
+            return SEND_FAILED;
+        }
 
-        mDownloadCharacteristic.setValue(value);
+        synchronized (mSendLock) {
 
-        Utils.info("notifyCharacteristicChanged: %d bytes remain %d bytes %s",
-                value.length, context.sendBuffer.position(), context.device.getAddress());
+            int queued = beginSend(length, receiver, false);
+            if (queued < 0) {
+                return queued;
+            }
 
-        if (!mGattServer.notifyCharacteristicChanged(context.device, mDownloadCharacteristic, true)) {
-            Utils.error("failed");
-            unsubscribed(context);
-            return false;
+            return endSend(mSendChannel.offer(segments, receiver), queued, length);
         }
+    }
 
-        mNotifyingConnectionId = context.connectionId;
+    // SendBatchの形式でcount個詰めたpackedを先頭から順にSendChannelに積み、積めたメッセージの数を返す
+    // JNIの呼び出しもループへの通知も一回で済む。countより少なければonWritableを待って残りを送り直す
+    public int sendBatch(byte[] packed, int count) {
 
-        return true;
+        return sendBatch(packed, 0, count);
     }
 
-    private void processNotificationQueue() {
+    // packedのstartから始まるcount個を送る（共有のリングに収まらなかった残りを切り出さずに渡せる）
+    public int sendBatch(byte[] packed, int start, int count) {
 
-        while (!mNotificationQueue.isEmpty()) {
+        // 途中で失敗しないように先に全体を確かめる
+        if (!SendBatch.validate(packed, start, count, MESSAGE_SIZE_MAX)) {
+            Utils.error("invalid batch");
+            return SEND_FAILED;
+        }
+
+        synchronized (mSendLock) {
+
+            // sendと同じく状態はロックの中で確かめる
+            if ((mStatus != Status.Ready) && (mStatus != Status.Advertise)) {
+                Utils.error("invalid status: %s", mStatus.toString());
+                return SEND_FAILED;
+            }
 
-            int connectionId = mNotificationQueue.remove();
+            int sent = 0;
+            int offset = start;
 
-            CentralContext context = null;
-            for (CentralContext ctx : mConnectedCentrals) {
+            while (sent < count) {
 
-                if (ctx.connectionId == connectionId) {
+                int length = SendBatch.length(packed, offset);
+                int receiver = SendBatch.receiver(packed, offset);
 
-                    context = ctx;
+                // 順番を崩さないように、宛先がブロックしていればそこで止める
+                if ((receiver & mBlockedPlayers) != 0) {
                     break;
                 }
-            }
-
-            if (context != null) {
 
-                if (!context.valueWriting) {
-                    continue;
+                if (!mSendChannel.offer(packed, offset + SendBatch.HEADER_SIZE, length, receiver)) {
+                    mChannelBlocked = true;
+                    break;
                 }
 
-                if (sendNotification(context)) {
-                    return;
-                }
+                offset += SendBatch.HEADER_SIZE + length;
+                sent++;
             }
-            else {
 
-                Utils.error("context not found: %d", connectionId);
-            }
+            postSendChannel();
+
+            return sent;
         }
     }
 
-    private void processReceiveBuffer(CentralContext context, byte[] value) {
+    // 送れる状態ならSendChannelと送信キューに積まれているバイト数を、送れなければSEND_FAILEDかSEND_WOULD_BLOCKを返す
+    private int beginSend(int messageSize, int receiver, boolean unthrottled) {
 
-        Utils.info("received: %d bytes remain %d bytes %s",
-                value.length, context.receiveBuffer.position(), context.device.getAddress());
-        try
-        {
-            context.receiveBuffer.put(value);
+        if ((mStatus != Status.Ready) && (mStatus != Status.Advertise)) {
+            Utils.error("invalid status: %s", mStatus.toString());
+            return SEND_FAILED;
         }
-        catch (Exception e)
-        {
-            Utils.error(e.toString());
-            unsubscribed(context);
-            return;
+
+        if (messageSize > MESSAGE_SIZE_MAX) {
+            Utils.error("message size too large");
+            return SEND_FAILED;
         }
 
-        while (true) {
+        if (!unthrottled && ((receiver & mBlockedPlayers) != 0)) {
+            return SEND_WOULD_BLOCK;
+        }
 
-            if (context.receiveMessageSize == -1) {
+        return mQueuedSize + mSendChannel.size();
+    }
 
-                if (context.receiveBuffer.position() < 2) {
-                    break;
-                }
+    private int endSend(boolean offered, int queued, int messageSize) {
 
-                context.receiveBuffer.flip();
-                context.receiveMessageSize = context.receiveBuffer.getChar();
-                context.receiveBuffer.compact();
+        if (!offered) {
 
-                if (context.receiveMessageSize > MESSAGE_SIZE_MAX) {
-                    Utils.error("invalid message size: %d", context.receiveMessageSize);
-                    unsubscribed(context);
-                    return;
-                }
-            }
+            mChannelBlocked = true;
+            postSendChannel();
+            return SEND_WOULD_BLOCK;
+        }
 
-            if (context.receiveMessageAddress == -1) {
+        postSendChannel();
 
-                if (context.receiveBuffer.position() < 2) {
-                    break;
-                }
+        return queued + messageSize;
+    }
 
-                context.receiveBuffer.flip();
-                context.receiveMessageAddress = context.receiveBuffer.getChar();
-                context.receiveBuffer.compact();
-            }
+    private void postSendChannel() {
 
-            if (context.receiveBuffer.position() < context.receiveMessageSize) {
-                break;
-            }
+        // ループが止まっていて積めなければ、次に動き出した時に積み直せるように戻す
+        if (mChannelPosted.compareAndSet(false, true) && !mLoop.post(mChannelTask)) {
+            mChannelPosted.set(false);
+        }
+    }
 
-            final byte[] message = new byte[context.receiveMessageSize];
-            if (context.receiveMessageSize > 0) {
+    // 宛先が全て受け取れる間だけSendChannelからメッセージを取り出して送信キューに積む
+    // 宛先がブロックしていれば、空いてprocessWritableから呼ばれるまで先頭のメッセージで待つ
+    private void processSendChannel() {
 
-                context.receiveBuffer.flip();
-                context.receiveBuffer.get(message);
-                context.receiveBuffer.compact();
-            }
+        if ((mStatus != Status.Ready) && (mStatus != Status.Advertise)) {
+            mSendChannel.clear();
+            return;
+        }
 
-            int to = context.receiveMessageAddress;
-            context.receiveMessageSize = -1;
-            context.receiveMessageAddress = -1;
+        while (true) {
 
-            if (context.playerId != 0) {
+            int messageSize = mSendChannel.peekSize();
+            if (messageSize < 0) {
+                break;
+            }
 
-                for (CentralContext ctx : mConnectedCentrals) {
+            int receiver = mSendChannel.peekReceiver();
+            int kind = mSendChannel.peekKind();
+            boolean unthrottled = (kind & MessageChannel.KIND_UNTHROTTLED) != 0;
 
-                    if ((ctx.playerId & to) != 0) {
+            if ((kind & MessageChannel.KIND_DIRECT) != 0) {
 
-                        sendInternal(ctx, message, message.length, context.playerId);
-                    }
+                CentralContext context = mCentrals.getConnection(receiver);
+
+                if ((context != null) && (unthrottled ? !FrameCodec.canEncode(context.sendBuffer, messageSize) : !canQueue(context, messageSize))) {
+                    break;
                 }
 
-                if ((to & 1) != 0) {
+                mSendChannel.poll(mChannelMessage);
 
-                    mPeripheralCallback.onReceive(new Buffer(message), context.playerId);
+                if (context == null) {
+                    Utils.error("invalid connectionId: %d", receiver);
+                }
+                else if (sendMessage(context, mChannelMessage, 0, messageSize, 0)) {
+                    setQueuedSize(context.sendBuffer.size());
                 }
-            }
 
-            if (to == 0) {
+                continue;
+            }
 
-                mPeripheralCallback.onReceiveDirect(new Buffer(message), context.connectionId);
+            if (unthrottled ? !canEncode(receiver, messageSize) : !canQueue(receiver, messageSize)) {
+                break;
             }
+
+            mSendChannel.poll(mChannelMessage);
+            setQueuedSize(sendToPlayers(mChannelMessage, messageSize, receiver));
         }
-    }
 
-    // Cleanup
+        if (mChannelBlocked && mSendChannel.isEmpty()) {
 
-    public void cleanup() {
+            mChannelBlocked = false;
 
-        synchronized (mLockObject) {
+            for (CentralContext context : mConnectedCentrals) {
 
-            if (mStatus == Status.Advertise) {
-                stopAdvertising();
+                if (context.connectionId != 0) {
+                    mPeripheralCallback.onWritable(context.connectionId);
+                }
             }
+        }
+    }
 
-            mStatus = Status.Invalid;
+    // 積んだ宛先の送信バッファのうち最も多いバイト数を返す
+    private int sendToPlayers(byte[] message, int messageSize, int receiver) {
 
-            if (mGattServer != null) {
-                mGattServer.clearServices();
-                mGattServer.close();
-                mGattServer = null;
+        if (messageSize < SHARED_PAYLOAD_MIN) {
+
+            int queued = 0;
+
+            for (CentralContext context : mCentrals.receivers(receiver)) {
+
+                if (sendMessage(context, message, 0, messageSize, 1)) {
+                    queued = Math.max(queued, context.sendBuffer.size());
+                }
+            }
+
+            return queued;
+        }
+
+        // ペイロードは一度だけコピー（圧縮）して全ての宛先の送信キューで共有する
+        Buffer plain = null;
+        Buffer compressed = null;
+        boolean compressionTried = false;
+        int queued = 0;
+
+        for (CentralContext context : mCentrals.receivers(receiver)) {
+
+            boolean result;
+
+            if (context.codec.canCompress(messageSize) && !compressionTried) {
+
+                compressionTried = true;
+                compressed = compressMessage(message, messageSize);
+            }
+
+            if ((compressed != null) && context.codec.canCompress(messageSize)) {
+
+                result = sendShared(context, compressed, 1, FrameCodec.FLAG_COMPRESSED);
+            }
+            else {
+
+                if (plain == null) {
+
+                    plain = mBufferPool.obtain(messageSize);
+                    System.arraycopy(message, 0, plain.getBytes(), 0, messageSize);
+                }
+
+                result = sendShared(context, plain, 1, 0);
+            }
+
+            if (result) {
+                queued = Math.max(queued, context.sendBuffer.size());
+            }
+        }
+
+        if (plain != null) {
+            plain.recycle();
+        }
+
+        if (compressed != null) {
+            compressed.recycle();
+        }
+
+        return queued;
+    }
+
+    // MESSAGE_SIZE_MAXを超えるメッセージはチャンクに分けて送信バッファの空きに合わせて流し込む
+    public int sendLarge(byte[] message, int messageSize, int receiver) {
+
+        if ((message != null) && (messageSize >= 0) && (messageSize <= MESSAGE_SIZE_MAX)) {
+            return send(message, messageSize, receiver);
+        }
+
+        // SendChannelには書き込まないのでmSendLockは取らない（ループを待つ間に他のsendを止めない）
+        // 呼び出したスレッドが先に積んだメッセージはループで先に取り出すので、順番は崩れない
+        return mLoop.call(new Callable<Integer>() {
+
+            @Override
+            public Integer call() {
+
+                if ((mStatus != Status.Ready) && (mStatus != Status.Advertise)) {
+                    Utils.error("invalid status: %s", mStatus.toString());
+                    return SEND_FAILED;
+                }
+
+                if (message == null) {
+                    Utils.error("message is null");
+                    return SEND_FAILED;
+                }
+
+                if (messageSize > message.length) {
+                    Utils.error("invalid message size");
+                    return SEND_FAILED;
+                }
+
+                // 一部の宛先にだけ届くことがないように、受け取れないセントラルがいれば何も送らない
+                int unsupported = 0;
+
+                for (CentralContext context : mCentrals.receivers(receiver)) {
+
+                    if (!context.codec.acceptsLargeMessage()) {
+                        unsupported |= context.playerId;
+                    }
+                }
+
+                if (unsupported != 0) {
+                    Utils.error("large message not supported: 0x%04x", unsupported);
+                    return SEND_FAILED;
+                }
+
+                // SendChannelで待っているメッセージがあれば追い越さない
+                processSendChannel();
+
+                if (!mSendChannel.isEmpty()) {
+                    mChannelBlocked = true;
+                    return SEND_WOULD_BLOCK;
+                }
+
+                if (!canQueue(receiver, 0)) {
+                    return SEND_WOULD_BLOCK;
+                }
+
+                Buffer data = new Buffer(message, 0, messageSize);
+                int queued = 0;
+
+                for (CentralContext context : mCentrals.receivers(receiver)) {
+
+                    context.largeMessages.add(new LargeMessage(data, 1));
+                    processLargeMessages(context);
+                    requestNotification(context);
+
+                    queued = Math.max(queued, context.sendBuffer.size());
+                }
+
+                return queued;
+            }
+        }, SEND_FAILED);
+    }
+
+    // このセントラルへの下りの1フラグメントあたりのペイロードのバイト数（接続していなければ0）
+    public int getPayloadSize(int connectionId) {
+
+        return mLoop.call(new Callable<Integer>() {
+
+            @Override
+            public Integer call() {
+
+                CentralContext context = mCentrals.getConnection(connectionId);
+                if (context != null) {
+                    return context.maximumWriteLength - 1;
+                }
+
+                Utils.error("invalid connectionId: %d", connectionId);
+                return 0;
+            }
+        }, 0);
+    }
+
+    // trueにすると受信したメッセージをコールバックで届けずにReceiveQueueに溜め、drainReceivedで取り出す
+    // falseに戻すと取り出されていないメッセージは捨てる
+    public boolean setReceivePolling(boolean enabled) {
+
+        return mLoop.call(new Callable<Boolean>() {
+
+            @Override
+            public Boolean call() {
+
+                if (mStatus == Status.Invalid) {
+                    Utils.error("invalid status: %s", mStatus.toString());
+                    return false;
+                }
+
+                if (enabled == (mReceiveQueue != null)) {
+                    return true;
+                }
+
+                if (mSharedSendChannel != null) {
+                    Utils.error("shared channels are enabled");
+                    return false;
+                }
+
+                if (enabled) {
+                    mReceiveQueue = new ReceiveQueue(mLoop);
+                }
+                else {
+                    mReceiveQueue.close();
+                    mReceiveQueue = null;
+                }
+
+                return true;
+            }
+        }, false);
+    }
+
+    // 溜まっている受信メッセージをReceiveQueueのレコードでdstに詰め、詰めたバイト数を返す
+    // Unityのスレッドから毎フレーム呼ぶ。EventLoopを待たない
+    public int drainReceived(byte[] dst) {
+
+        ReceiveQueue queue = mReceiveQueue;
+        if ((queue == null) || (dst == null)) {
+            return 0;
+        }
+
+        return queue.drain(dst, 0, dst.length);
+    }
+
+    // drainReceivedと同じレコードを、詰めたバイト数ちょうどの配列で返す（なければnull）
+    public byte[] drainReceivedRecords() {
+
+        ReceiveQueue queue = mReceiveQueue;
+        if (queue == null) {
+            return null;
+        }
+
+        return queue.drain();
+    }
+
+    // 送受信のチャンネルをUnityと共有するダイレクトバッファ（SharedChannel）に切り替える。セントラルが接続する前に呼び、cleanupまで戻せない
+    // Unityはget*SharedBufferで得たバッファに直接書き込み、受信したメッセージも直接取り出すので、メッセージごとの配列のコピーがなくなる
+    // 受信はポーリングになる（setReceivePollingは不要）
+    public boolean enableSharedChannels() {
+
+        return mLoop.call(new Callable<Boolean>() {
+
+            @Override
+            public Boolean call() {
+
+                if (mSharedSendChannel != null) {
+                    return true;
+                }
+
+                if ((mStatus == Status.Invalid) || !mConnectedCentrals.isEmpty()) {
+                    Utils.error("invalid status: %s", mStatus.toString());
+                    return false;
+                }
+
+                mSharedSendChannel = new SharedChannel(BUFFER_SIZE);
+                mSharedReceiveChannel = new SharedChannel(ReceiveQueue.CAPACITY);
+                mSendChannel = mSharedSendChannel;
+                publishSendState();
+
+                if (mReceiveQueue != null) {
+                    mReceiveQueue.close();
+                }
+
+                mReceiveQueue = new ReceiveQueue(mLoop, mSharedReceiveChannel);
+
+                return true;
+            }
+        }, false);
+    }
+
+    // Unityが書き込む送信のリング（enableSharedChannelsの前ならnull）
+    public ByteBuffer getSendSharedBuffer() {
+
+        SharedChannel channel = mSharedSendChannel;
+        return (channel != null) ? channel.getBuffer() : null;
+    }
+
+    // Unityが取り出す受信のリング（enableSharedChannelsの前ならnull）
+    public ByteBuffer getReceiveSharedBuffer() {
+
+        SharedChannel channel = mSharedReceiveChannel;
+        return (channel != null) ? channel.getBuffer() : null;
+    }
+
+    // Unityが送信のリングに書き込んだ後、waitingが立っていれば呼ぶ。配列を渡さないのでJNIの呼び出しだけで済む
+    public void wakeSendChannel() {
+
+        postSendChannel();
+    }
+
+    // connectionIdが0なら全ての接続とこれから接続するセントラルの水位を変更する
+    public boolean setWatermarks(int connectionId, int lowWatermark, int highWatermark) {
+
+        if ((lowWatermark < 0) || (highWatermark <= lowWatermark) || (highWatermark > BUFFER_SIZE)) {
+            Utils.error("invalid watermarks: %d %d", lowWatermark, highWatermark);
+            return false;
+        }
+
+        return mLoop.call(new Callable<Boolean>() {
+
+            @Override
+            public Boolean call() {
+
+                if (connectionId == 0) {
+
+                    mLowWatermark = lowWatermark;
+                    mHighWatermark = highWatermark;
+
+                    for (CentralContext context : mConnectedCentrals) {
+
+                        context.lowWatermark = lowWatermark;
+                        context.highWatermark = highWatermark;
+                    }
+
+                    return true;
+                }
+
+                CentralContext context = mCentrals.getConnection(connectionId);
+                if (context != null) {
+
+                    context.lowWatermark = lowWatermark;
+                    context.highWatermark = highWatermark;
+                    return true;
+                }
+
+                Utils.error("invalid connectionId: %d", connectionId);
+                return false;
+            }
+        }, false);
+    }
+
+    private boolean canQueue(int receiver, int messageSize) {
+
+        boolean result = true;
+
+        for (CentralContext context : mCentrals.receivers(receiver)) {
+
+            if (!canQueue(context, messageSize)) {
+                result = false;
+            }
+        }
+
+        return result;
+    }
+
+    // 水位に関係なく、宛先の送信バッファに収まるか
+    private boolean canEncode(int receiver, int messageSize) {
+
+        for (CentralContext context : mCentrals.receivers(receiver)) {
+
+            if (!FrameCodec.canEncode(context.sendBuffer, messageSize)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    // 送信バッファが高水位に達しているかメッセージが収まらなければブロックし、低水位まで下がったらonWritableで知らせる
+    private boolean canQueue(CentralContext context, int messageSize) {
+
+        if (!context.blocked
+                && (context.sendBuffer.size() < context.highWatermark)
+                && FrameCodec.canEncode(context.sendBuffer, messageSize)) {
+            return true;
+        }
+
+        if (!context.blocked) {
+            context.blocked = true;
+            publishBlocked();
+        }
+
+        return false;
+    }
+
+    // sendがループの外で宛先のブロックを調べられるように公開する
+    private void publishBlocked() {
+
+        int players = 0;
+
+        for (CentralContext context : mConnectedCentrals) {
+
+            if (context.blocked) {
+                players |= context.playerId;
+            }
+        }
+
+        mBlockedPlayers = players;
+        publishSendState();
+    }
+
+    private void setQueuedSize(int size) {
+
+        mQueuedSize = size;
+        publishSendState();
+    }
+
+    // 共有のリングに直接書き込むUnityがbeginSendと同じ判断をできるように公開する（ループだけが呼ぶ）
+    private void publishSendState() {
+
+        SharedChannel channel = mSharedSendChannel;
+        if (channel != null) {
+            channel.publishSendState(mBlockedPlayers, mQueuedSize, 0);
+        }
+    }
+
+    private void processWritable(CentralContext context) {
+
+        if (context.blocked && (context.sendBuffer.size() <= context.lowWatermark)) {
+
+            context.blocked = false;
+            publishBlocked();
+            postSendChannel();
+            mPeripheralCallback.onWritable(context.connectionId);
+        }
+        else if (!mSendChannel.isEmpty()) {
+
+            // 水位に関係なく積むメッセージがブロックせずに空きを待っている
+            postSendChannel();
+        }
+    }
+
+    private void processLargeMessages(CentralContext context) {
+
+        while (!context.largeMessages.isEmpty()) {
+
+            if (!context.codec.encodeChunks(context.sendBuffer, context.largeMessages.peek())) {
+                break;
+            }
+
+            context.largeMessages.remove();
+        }
+    }
+
+    // 圧縮に対応したセントラルには圧縮して送る
+    private boolean sendMessage(CentralContext context, byte[] message, int offset, int messageSize, int address) {
+
+        if (context.codec.canCompress(messageSize)) {
+
+            int compressedSize = FrameCodec.compress(mLz4, message, offset, messageSize, mCompressBuffer);
+            if (compressedSize > 0) {
+                return sendInternal(context, mCompressBuffer, 0, compressedSize, address, FrameCodec.FLAG_COMPRESSED);
+            }
+        }
+
+        return sendInternal(context, message, offset, messageSize, address, 0);
+    }
+
+    // 小さくならなければnullを返す
+    private Buffer compressMessage(byte[] message, int messageSize) {
+
+        Buffer compressed = mBufferPool.obtain(messageSize);
+
+        int compressedSize = FrameCodec.compress(mLz4, message, 0, messageSize, compressed.getBytes());
+        if (compressedSize < 0) {
+            compressed.recycle();
+            return null;
+        }
+
+        compressed.reset(0, compressedSize);
+        return compressed;
+    }
+
+    // ペイロードをコピーせずにpayloadへの参照として送信キューに積む（小さなものはコピーした方が安い）
+    private boolean sendShared(CentralContext context, Buffer payload, int address, int flags) {
+
+        if (payload.getLength() < SHARED_PAYLOAD_MIN) {
+            return sendInternal(context, payload.getBytes(), payload.getLength(), address, flags);
+        }
+
+        try
+        {
+            context.codec.encode(context.sendBuffer, payload, 0, payload.getLength(), address & 0xffff, flags);
+        }
+        catch (Exception e)
+        {
+            Utils.error("%s", e);
+            unsubscribed(context);
+            return false;
+        }
+
+        requestNotification(context);
+
+        return true;
+    }
+
+    // 中継と制御フレームは水位に関係なく書き込む。それでも溢れるようなセントラルは切断する
+    private boolean sendInternal(CentralContext context, byte[] message, int messageSize, int address, int flags) {
+
+        return sendInternal(context, message, 0, messageSize, address, flags);
+    }
+
+    private boolean sendInternal(CentralContext context, byte[] message, int offset, int messageSize, int address, int flags) {
+
+        try
+        {
+            context.codec.encode(context.sendBuffer, message, offset, messageSize, address & 0xffff, flags);
+        }
+        catch (Exception e)
+        {
+            Utils.error("%s", e);
+            unsubscribed(context);
+            return false;
+        }
+
+        requestNotification(context);
+
+        return true;
+    }
+
+    private void requestNotification(CentralContext context) {
+
+        if (!context.valueWriting && hasOutput(context)) {
+
+            context.valueWriting = true;
+
+            if (canNotify(context)) {
+
+                sendNotification(context);
+            }
+            else {
+
+                mNotificationScheduler.add(context);
+            }
+        }
+    }
+
+    // trueなら通知の完了を待たずに他のセントラルへ通知する（同じセントラルへの通知は常に一つずつ）
+    public void setConcurrentNotifications(boolean enabled) {
+
+        mLoop.execute(new Runnable() {
+
+            @Override
+            public void run() {
+
+                mConcurrentNotifications = enabled;
+
+                if (mConcurrentNotifications) {
+                    processNotificationQueue();
+                }
+            }
+        });
+    }
+
+    // 各セントラルとのPHYの選び方を切り替える（LinkTuner.MODE_*）。次の評価の時点で反映される
+    public boolean setLinkMode(int mode) {
+
+        return mLoop.call(new Callable<Boolean>() {
+
+            @Override
+            public Boolean call() {
+
+                LinkPolicy policy = LinkTuner.createPolicy(mode);
+                if (policy == null) {
+                    Utils.error("invalid mode: %d", mode);
+                    return false;
+                }
+
+                mLinkPolicy = policy;
+
+                for (CentralContext context : mConnectedCentrals) {
+                    context.link.setPolicy(policy);
+                }
+
+                return true;
+            }
+        }, false);
+    }
+
+    private void startLinkTimer() {
+
+        if (mLinkTimer != null) {
+            return;
+        }
+
+        mLinkTimer = mLoop.schedule(new Runnable() {
+
+            @Override
+            public void run() {
+
+                long now = System.currentTimeMillis();
+
+                for (CentralContext context : mConnectedCentrals) {
+                    context.link.evaluate(now);
+                }
+            }
+        }, UPDATE_INTERVAL, UPDATE_INTERVAL);
+    }
+
+    // 通知で送るものがあるか（ストリーミング中は窓が空くまで新しいフラグメントを送らない）
+    private boolean hasOutput(CentralContext context) {
+
+        if (context.stream != null) {
+
+            return context.stream.isRetransmitting()
+                    || ((context.sendBuffer.readable() > 0) && context.stream.canPush());
+        }
+
+        return (context.sendBuffer.readable() > 0) || context.streamPending;
+    }
+
+    private boolean canNotify(CentralContext context) {
+
+        return !context.notifying && (mConcurrentNotifications || (mNotifyingCount == 0));
+    }
+
+    private void notificationSent(CentralContext context) {
+
+        context.notifying = false;
+        mNotifyingCount--;
+
+        // ストリーミング中は読み出しを待たずに続きを通知する
+        if (context.notificationPending || ((context.stream != null) && context.valueWriting)) {
+
+            context.notificationPending = false;
+            mNotificationScheduler.add(context);
+        }
+    }
+
+    private byte[] processSendBuffer(CentralContext context) {
+
+        if (context.stream != null) {
+            return processStream(context);
+        }
+
+        int size = FragmentCache.fragmentSize(context.sendBuffer.readable(), context.maximumWriteLength - 1);
+        byte[] value = context.fragments.obtain(size + 1);
+
+        context.sendBuffer.get(value, 0, size);
+        processLargeMessages(context);
+
+        if (context.sendBuffer.readable() > 0) {
+
+            value[size] = FrameCodec.FRAGMENT_MORE;
+            context.valueWriting = true;
+        }
+        else if (context.streamPending) {
+
+            // ここまでを読み出しで受け取らせてから、以降を通知で流す
+            value[size] = FrameCodec.FRAGMENT_STREAM;
+            context.valueWriting = false;
+            context.streamPending = false;
+            context.stream = new StreamWindow();
+            startStreamTimer();
+
+            Utils.info("download streaming: %s", context.device.getAddress());
+        }
+        else {
+
+            value[size] = FrameCodec.FRAGMENT_END;
+            context.valueWriting = false;
+            mNotificationScheduler.reset(context);
+        }
+
+        return value;
+    }
+
+    private byte[] processStream(CentralContext context) {
+
+        StreamWindow stream = context.stream;
+
+        if (!stream.isRetransmitting()) {
+
+            stream.push(context.sendBuffer,
+                    FragmentCache.fragmentSize(context.sendBuffer.readable(), context.maximumWriteLength - 1),
+                    System.currentTimeMillis());
+            processLargeMessages(context);
+        }
+
+        byte[] value = stream.transmit(context.fragments);
+        context.valueWriting = hasOutput(context);
+
+        // 続けて送るものがなければ確認を求める（窓が埋まった場合も）
+        if (!context.valueWriting) {
+
+            value[0] |= StreamWindow.ACK_REQUEST;
+            mNotificationScheduler.reset(context);
+        }
+
+        return value;
+    }
+
+    // 確認が途絶えたストリームを送り直す
+    private void startStreamTimer() {
+
+        if (mStreamTimer != null) {
+            return;
+        }
+
+        mStreamTimer = mLoop.schedule(new Runnable() {
+
+            @Override
+            public void run() {
+
+                long now = System.currentTimeMillis();
+
+                for (CentralContext context : mConnectedCentrals) {
+
+                    if ((context.stream != null) && context.stream.checkTimeout(now, STREAM_TIMEOUT)) {
+
+                        Utils.error("stream timeout: %s", context.device.getAddress());
+                        requestNotification(context);
+                    }
+                }
+            }
+        }, STREAM_CHECK_INTERVAL, STREAM_CHECK_INTERVAL);
+    }
+
+    private boolean sendNotification(CentralContext context) {
+
+        // ストリーミング中は確認を求めない（STREAM_ACKで確認する）
+        final boolean confirm = (context.stream == null);
+        byte[] value = processSendBuffer(context);
+
+        Utils.info("notifyCharacteristicChanged: %d bytes remain %d bytes %s",
+                value.length, context.sendBuffer.size(), context.device.getAddress());
+
+        if (!GattCompat.notifyCharacteristicChanged(mGattServer, context.device, mDownloadCharacteristic, confirm, value)) {
+            Utils.error("failed");
+            unsubscribed(context);
+            return false;
+        }
+
+        context.notifying = true;
+        mNotifyingCount++;
+        context.link.record(value.length, System.currentTimeMillis());
+
+        processWritable(context);
+
+        return true;
+    }
+
+    private void processNotificationQueue() {
+
+        while (mConcurrentNotifications || (mNotifyingCount == 0)) {
+
+            CentralContext context = (CentralContext)mNotificationScheduler.poll();
+            if (context == null) {
+                return;
+            }
+
+            if (!context.valueWriting) {
+                continue;
+            }
+
+            if (context.notifying) {
+
+                // 自分の通知が完了したらスケジューラに戻す
+                context.notificationPending = true;
+                continue;
+            }
+
+            sendNotification(context);
+        }
+    }
+
+    private void processReceiveBuffer(CentralContext context, byte[] value) {
+
+        Utils.info("received: %d bytes remain %d bytes %s",
+                value.length, context.receiveBuffer.size(), context.device.getAddress());
+        try
+        {
+            context.receiveBuffer.put(value);
+        }
+        catch (Exception e)
+        {
+            Utils.error("%s", e);
+            unsubscribed(context);
+            return;
+        }
+
+        while (true) {
+
+            if (!context.codec.hasHeader()) {
+
+                int result = context.codec.decodeHeader(context.receiveBuffer);
+                if (result == FrameCodec.HEADER_INCOMPLETE) {
+                    break;
+                }
+
+                if (result == FrameCodec.HEADER_INVALID) {
+                    Utils.error("invalid frame header");
+                    unsubscribed(context);
+                    return;
+                }
+
+                int sizeMax = context.codec.isControlFrame() ? FrameCodec.CONTROL_SIZE_MAX : MESSAGE_SIZE_MAX;
+                if (context.codec.frameSize() > sizeMax) {
+                    Utils.error("invalid message size: %d", context.codec.frameSize());
+                    unsubscribed(context);
+                    return;
+                }
+
+                if (mCutThroughRelay && (context.receiveBuffer.size() < context.codec.frameSize())) {
+                    startCutThrough(context);
+                }
+            }
+
+            if (context.relaySegment != null) {
+
+                if (!continueCutThrough(context)) {
+                    break;
+                }
+
+                continue;
+            }
+
+            if (context.receiveBuffer.size() < context.codec.frameSize()) {
+                break;
+            }
+
+            final int frameSize = context.codec.frameSize();
+            final Buffer frame = mBufferPool.obtain(frameSize);
+            context.receiveBuffer.get(frame.getBytes(), 0, frameSize);
+
+            int to = context.codec.frameAddress();
+            boolean control = context.codec.isControlFrame();
+            boolean compressed = (context.codec.frameFlags() & FrameCodec.FLAG_COMPRESSED) != 0;
+            int chunkFlags = context.codec.frameFlags() & (FrameCodec.FLAG_CHUNK | FrameCodec.FLAG_LAST_CHUNK);
+            context.codec.completeFrame();
+
+            if (control) {
+
+                processControl(context, to, frame.getBytes(), frameSize);
+                frame.recycle();
+
+                if (!context.subscribed) {
+                    return;
+                }
+
+                continue;
+            }
+
+            if (chunkFlags != 0) {
+
+                processChunk(context, to, frame, chunkFlags);
+                frame.recycle();
+
+                if (!context.subscribed) {
+                    return;
+                }
+
+                continue;
             }
 
-            if (mInitializationTimer != null) {
-                mInitializationTimer.cancel();
-                mInitializationTimer = null;
+            Buffer message = frame;
+
+            if (compressed && needsDecompression(context, to)) {
+
+                message = decompress(frame);
+                if (message == null) {
+                    Utils.error("invalid compressed message");
+                    frame.recycle();
+                    unsubscribed(context);
+                    return;
+                }
             }
 
-            mNotificationDescriptor = null;
-            mDownloadCharacteristic = null;
-            mUploadCharacteristic = null;
-            mCommunicationService = null;
+            if (context.playerId != 0) {
+
+                for (CentralContext ctx : mCentrals.receivers(to)) {
+
+                    if (compressed && ctx.codec.acceptsCompressed()) {
+
+                        // 展開せずにそのまま中継する
+                        sendShared(ctx, frame, context.playerId, FrameCodec.FLAG_COMPRESSED);
+                    }
+                    else {
+
+                        sendShared(ctx, message, context.playerId, 0);
+                    }
+                }
 
-            for (CentralContext ctx : mConnectedCentrals) {
+                if ((to & 1) != 0) {
 
-                if (ctx.acceptanceTimer != null) {
-                    ctx.acceptanceTimer.cancel();
-                    ctx.acceptanceTimer = null;
+                    receive(context, message);
                 }
             }
 
-            mConnectedCentrals.clear();
+            if (to == 0) {
+
+                receiveDirect(context, message);
+            }
+
+            if (message != frame) {
+                message.recycle();
+            }
+
+            frame.recycle();
+
+            if (!context.subscribed) {
+                return;
+            }
+        }
+
+        grantCredit(context);
+    }
+
+    // 受信バッファの空きを超えない範囲で応答なし書き込みのクレジットを補充する
+    // 細かいCREDITで下りを埋めないように、窓の半分以上を渡せる時だけ送る
+    private void grantCredit(CentralContext context) {
+
+        if ((context.codec.getDecoderFeatures() & FrameCodec.FEATURE_WRITE_NO_RESPONSE) == 0) {
+            return;
+        }
+
+        int credit = Math.min(CREDIT_WINDOW, context.receiveBuffer.remaining()) - context.credit;
+        if (credit < CREDIT_WINDOW / 2) {
+            return;
+        }
+
+        byte[] payload = FrameCodec.createCredit(credit);
+        if (sendInternal(context, payload, payload.length, FrameCodec.CONTROL_CREDIT, FrameCodec.FLAG_CONTROL)) {
+            context.credit += credit;
+        }
+    }
+
+    // trueならホスト宛てでないフレームをヘッダが届いた時点から宛先へ流し始める
+    public void setCutThroughRelay(boolean enabled) {
+
+        mLoop.execute(new Runnable() {
+
+            @Override
+            public void run() {
+
+                mCutThroughRelay = enabled;
+            }
+        });
+    }
+
+    // 宛先が全て中継先でそのまま転送できるなら、フレーム全体の領域を宛先の送信キューに確保して共有する
+    // 確保した領域は受信したところから順に送信できるようになる
+    private void startCutThrough(CentralContext context) {
+
+        final int to = context.codec.frameAddress();
+        final int flags = context.codec.frameFlags();
+        final int frameSize = context.codec.frameSize();
+
+        if ((context.playerId == 0) || (to == 0) || ((to & 1) != 0)) {
+            return;
+        }
+
+        // 圧縮されたフレームは途中で途切れた時に宛先で展開に失敗して切断されるので流さない
+        if ((flags & (FrameCodec.FLAG_CONTROL | FrameCodec.FLAG_COMPRESSED)) != 0) {
+            return;
+        }
+
+        boolean chunk = (flags & FrameCodec.FLAG_CHUNK) != 0;
+        int targets = 0;
+
+        for (CentralContext ctx : mCentrals.receivers(to)) {
+
+            if ((chunk && !ctx.codec.acceptsLargeMessage()) || !FrameCodec.canEncode(ctx.sendBuffer, frameSize)) {
+                return;
+            }
+
+            targets++;
+        }
+
+        if (targets == 0) {
+            return;
+        }
+
+        Buffer segment = mBufferPool.obtain(frameSize);
+        segment.setLength(0);
+
+        for (CentralContext ctx : mCentrals.receivers(to)) {
+            ctx.codec.encode(ctx.sendBuffer, segment, 0, frameSize, context.playerId & 0xffff, flags);
+        }
+
+        context.relaySegment = segment;
+        context.relaySize = frameSize;
+        context.relayAddress = to;
+    }
+
+    // フレームを最後まで中継したらtrueを返す
+    private boolean continueCutThrough(CentralContext context) {
+
+        Buffer segment = context.relaySegment;
+        int filled = segment.getLength();
+        int size = Math.min(context.receiveBuffer.size(), context.relaySize - filled);
+
+        if (size > 0) {
+
+            context.receiveBuffer.get(segment.getBytes(), filled, size);
+            segment.setLength(filled + size);
+
+            for (CentralContext ctx : mCentrals.receivers(context.relayAddress)) {
+                requestNotification(ctx);
+            }
+        }
+
+        if (segment.getLength() < context.relaySize) {
+            return false;
+        }
+
+        context.codec.completeFrame();
+        context.relaySegment = null;
+        segment.recycle();
+        return true;
+    }
+
+    // 送信元が途中でいなくなった場合、宛先は途中まで届いたフレームの続きを待ったまま次のフレームを区切れなくなる
+    // 足りない分を埋めて届けると壊れたメッセージをアプリに渡してしまうので、中継先を切断してフレームごと捨てる
+    private void abortCutThrough(CentralContext context) {
+
+        Buffer segment = context.relaySegment;
+        if (segment == null) {
+            return;
+        }
+
+        Utils.error("relay aborted: %d / %d bytes", segment.getLength(), context.relaySize);
+
+        context.relaySegment = null;
+
+        for (CentralContext ctx : mCentrals.receivers(context.relayAddress)) {
+
+            Utils.error("drop relay target: %s", ctx.device.getAddress());
+            dropCentral(ctx);
+        }
+
+        segment.recycle();
+    }
+
+    private void processChunk(CentralContext context, int to, Buffer chunk, int chunkFlags) {
+
+        if (context.playerId == 0) {
+            Utils.error("chunk from unaccepted central");
+            return;
+        }
+
+        for (CentralContext ctx : mCentrals.receivers(to)) {
+
+            if (ctx.codec.acceptsLargeMessage()) {
+                sendShared(ctx, chunk, context.playerId, chunkFlags);
+            }
+            else {
+                Utils.error("large message not supported: %d", ctx.playerId);
+            }
+        }
+
+        if ((to & 1) != 0) {
+
+            receiveChunk(context, chunk, (chunkFlags & FrameCodec.FLAG_LAST_CHUNK) != 0);
+        }
+    }
+
+    // ポーリングしていればReceiveQueueに溜める
+    // Unityが取り出さずに溜まりきったら送ってきたセントラルを切断する（呼び出し側はsubscribedを確かめる）
+    private void receive(CentralContext context, Buffer message) {
+
+        if (mReceiveQueue != null) {
+            offerReceived(context, message, context.playerId, ReceiveQueue.KIND_MESSAGE);
+        }
+        else {
+            mPeripheralCallback.onReceive(message, context.playerId);
+        }
+    }
+
+    private void receiveDirect(CentralContext context, Buffer message) {
+
+        if (mReceiveQueue != null) {
+            offerReceived(context, message, context.connectionId, ReceiveQueue.KIND_DIRECT);
+        }
+        else {
+            mPeripheralCallback.onReceiveDirect(message, context.connectionId);
+        }
+    }
+
+    private void receiveChunk(CentralContext context, Buffer chunk, boolean last) {
+
+        if (mReceiveQueue != null) {
+            offerReceived(context, chunk, context.playerId, last ? ReceiveQueue.KIND_LAST_CHUNK : ReceiveQueue.KIND_CHUNK);
+        }
+        else {
+            mPeripheralCallback.onReceiveChunk(chunk, context.playerId, last);
+        }
+    }
+
+    private void offerReceived(CentralContext context, Buffer message, int id, int kind) {
+
+        if (mReceiveQueue.offer(message, id, kind)) {
+            return;
+        }
+
+        Utils.error("receive queue is full: %s", context.device.getAddress());
+        dropCentral(context);
+    }
+
+    // 送信キューが持つ書き込み途中の参照はunsubscribedで手放される
+    private void dropCentral(CentralContext context) {
+
+        if (mGattServer != null) {
+            mGattServer.cancelConnection(context.device);
+        }
+
+        unsubscribed(context);
+    }
+
+    private boolean needsDecompression(CentralContext context, int to) {
+
+        if (to == 0) {
+            return true;
+        }
+
+        if (context.playerId == 0) {
+            return false;
+        }
+
+        if ((to & 1) != 0) {
+            return true;
+        }
+
+        for (CentralContext ctx : mCentrals.receivers(to)) {
+
+            if (!ctx.codec.acceptsCompressed()) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private Buffer decompress(Buffer frame) {
+
+        int originalSize = FrameCodec.decompressedSize(frame.getBytes(), frame.getLength());
+        if ((originalSize < 0) || (originalSize > MESSAGE_SIZE_MAX)) {
+            return null;
+        }
+
+        Buffer message = mBufferPool.obtain(originalSize);
+        if (!FrameCodec.decompress(mLz4, frame.getBytes(), frame.getLength(), message.getBytes(), originalSize)) {
+            message.recycle();
+            return null;
+        }
+
+        return message;
+    }
+
+    // 機能の確認とCCCDでのnotificationの有効化が両方済んでから、通知で流し始める
+    private void requestStream(CentralContext context) {
+
+        if (((context.codec.getDecoderFeatures() & FrameCodec.FEATURE_NOTIFICATION_STREAM) == 0)
+                || !context.streamEnabled || (context.stream != null)) {
+            return;
+        }
+
+        context.streamPending = true;
+        requestNotification(context);
+    }
+
+    // 窓が空けば止まっていた通知を再開する
+    private void acknowledgeStream(CentralContext context, int next, boolean retransmit) {
 
-            mNotifyingConnectionId = 0;
-            mNotificationQueue.clear();
+        if (!context.subscribed || (context.stream == null)
+                || !context.stream.acknowledge(next, retransmit, System.currentTimeMillis())) {
+            Utils.error("invalid stream ack");
+            unsubscribed(context);
+            return;
+        }
+
+        requestNotification(context);
+    }
+
+    private void processControl(CentralContext context, int type, byte[] payload, int size) {
+
+        switch (type) {
+
+            case FrameCodec.CONTROL_ACK:
+                Utils.info("features acknowledged: 0x%04x", context.codec.getEncoderFeatures());
+                context.codec.setDecoderFeatures(context.codec.getEncoderFeatures());
+                grantCredit(context);
+                requestStream(context);
+                break;
 
-            mServiceUUID = null;
-            mUploadUUID = null;
-            mDownloadUUID = null;
-            mPeripheralCallback = null;
+            default:
+                Utils.error("invalid control: %d", type);
+                unsubscribed(context);
+                break;
         }
     }
+
+    // Cleanup
+
+    public void cleanup() {
+
+        mLoop.call(new Callable<Boolean>() {
+
+            @Override
+            public Boolean call() {
+
+                if (mStatus == Status.Advertise) {
+                    stopAdvertising();
+                }
+
+                mStatus = Status.Invalid;
+
+                if (mGattServer != null) {
+                    mGattServer.clearServices();
+                    mGattServer.close();
+                    mGattServer = null;
+                }
+
+                if (mInitializationTimer != null) {
+                    mInitializationTimer.cancel();
+                    mInitializationTimer = null;
+                }
+
+                mNotificationDescriptor = null;
+                mDownloadCharacteristic = null;
+                mUploadCharacteristic = null;
+                mCommunicationService = null;
+
+                for (CentralContext ctx : mConnectedCentrals) {
+
+                    if (ctx.acceptanceTimer != null) {
+                        ctx.acceptanceTimer.cancel();
+                        ctx.acceptanceTimer = null;
+                    }
+
+                    ctx.sendBuffer.clear();
+                }
+
+                mConnectedCentrals.clear();
+                mCentrals.clear();
+                publishBlocked();
+
+                if (mStreamTimer != null) {
+                    mStreamTimer.cancel();
+                    mStreamTimer = null;
+                }
+
+                if (mLinkTimer != null) {
+                    mLinkTimer.cancel();
+                    mLinkTimer = null;
+                }
+
+                mLinkPolicy = LinkTuner.createPolicy(LinkTuner.MODE_ADAPTIVE);
+                mConcurrentNotifications = false;
+                mCutThroughRelay = false;
+                mNotifyingCount = 0;
+                mNotificationScheduler.clear();
+                mBufferPool.clear();
+                mLowWatermark = DEFAULT_LOW_WATERMARK;
+                mHighWatermark = DEFAULT_HIGH_WATERMARK;
+
+                mServiceUUID = null;
+                mUploadUUID = null;
+                mDownloadUUID = null;
+
+                if (mReceiveQueue != null) {
+                    mReceiveQueue.close();
+                    mReceiveQueue = null;
+                }
+
+                if (mSharedSendChannel != null) {
+                    mSendChannel = new SendChannel(BUFFER_SIZE);
+                    mSharedSendChannel = null;
+                    mSharedReceiveChannel = null;
+                }
+
+                // 次のinitializeで前の接続に宛てたメッセージを送らない
+                mSendChannel.clear();
+                mChannelBlocked = false;
+                mQueuedSize = 0;
+
+                if (mPeripheralCallback != null) {
+                    mPeripheralCallback.close();
+                    mPeripheralCallback = null;
+                }
+
+                return true;
+            }
+        }, false);
+
+        mLoop.quit();
+
+        // 止める前に積んだmChannelTaskは捨てられるので、次のinitializeの後も送信のチャンネルを取り出せるように戻す
+        mChannelPosted.set(false);
+    }
 }
@@ -0,0 +1,178 @@
+package xflag.plugins.bleSock;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// 受信したメッセージを溜めておき、Unityが毎フレームdrainでまとめて取り出すためのキュー
+// メッセージごとのAndroidJavaProxyの呼び出しとgetBytesの配列のコピーが、フレームごとのJNIの呼び出し一回で済む
+// EventLoopのスレッドが積み、Unityのスレッドが取り出す（SharedChannelならUnityがバッファから直接取り出す）
+// チャンネルが一杯の間はEventLoopだけが触るキューに溜め、取り出されて空いたら順番を崩さずに移す
+// 溜めるのはOVERFLOW_MAXバイトまで。Unityが取り出さずに超えたらofferがfalseを返し、呼び出し側が相手を切断する
+final class ReceiveQueue {
+
+    // レコードは[id:4][kind:1|size:3][payload]（MessageChannelを参照）
+    public static final int KIND_MESSAGE = 0;       // idは送信元のplayerId
+    public static final int KIND_DIRECT = 1;        // idはconnectionId（ペリフェラルのみ）
+    public static final int KIND_CHUNK = 2;         // 大きなメッセージの一部
+    public static final int KIND_LAST_CHUNK = 3;    // 大きなメッセージの最後の一部
+
+    public static final int CAPACITY = 65536;
+    public static final int DRAIN_SIZE = 16384; // drainで一度に取り出す最大のバイト数
+
+    private static final int OVERFLOW_MAX = CAPACITY;
+
+    private static final int RETRY_INTERVAL = 10; // drainを経由せずに取り出された場合に備えて溢れた分を移し直す間隔
+
+    private static final class Pending {
+
+        public final Buffer buffer;
+        public final int id;
+        public final int kind;
+
+        public Pending(Buffer buffer, int id, int kind) {
+
+            this.buffer = buffer;
+            this.id = id;
+            this.kind = kind;
+        }
+    }
+
+    private final EventLoop mLoop;
+    private final MessageChannel mChannel;
+    private final ArrayDeque<Pending> mOverflow = new ArrayDeque<>();
+    private int mOverflowSize = 0;
+    private final byte[] mDrainBuffer = new byte[DRAIN_SIZE]; // Unityのスレッドだけが使う
+    private volatile boolean mOverflowPending = false;
+    private final AtomicBoolean mFlushPosted = new AtomicBoolean(false);
+    private EventLoop.Timeout mRetryTimer = null;
+
+    private Runnable mFlushTask = new Runnable() {
+
+        @Override
+        public void run() {
+
+            mFlushPosted.set(false);
+            flushOverflow();
+        }
+    };
+
+    private Runnable mRetryTask = new Runnable() {
+
+        @Override
+        public void run() {
+
+            flushOverflow();
+        }
+    };
+
+    public ReceiveQueue(EventLoop loop) {
+
+        this(loop, new SendChannel(CAPACITY));
+    }
+
+    public ReceiveQueue(EventLoop loop, MessageChannel channel) {
+
+        mLoop = loop;
+        mChannel = channel;
+    }
+
+    // Producer（EventLoopのスレッド）
+
+    // 溜められなければ積まずにfalseを返す
+    public boolean offer(Buffer message, int id, int kind) {
+
+        flushOverflow();
+
+        if (mOverflow.isEmpty() && mChannel.offer(message.getBytes(), message.getOffset(), message.getLength(), id, kind)) {
+            return true;
+        }
+
+        if (mOverflowSize + message.getLength() > OVERFLOW_MAX) {
+            return false;
+        }
+
+        message.retain();
+        mOverflow.add(new Pending(message, id, kind));
+        mOverflowSize += message.getLength();
+        mOverflowPending = true;
+
+        if (mRetryTimer == null) {
+            mRetryTimer = mLoop.schedule(mRetryTask, RETRY_INTERVAL, RETRY_INTERVAL);
+        }
+
+        return true;
+    }
+
+    // 取り出されずに残っているメッセージは捨てる
+    public void close() {
+
+        while (!mOverflow.isEmpty()) {
+            mOverflow.remove().buffer.recycle();
+        }
+
+        mOverflowSize = 0;
+        mOverflowPending = false;
+
+        if (mRetryTimer != null) {
+            mRetryTimer.cancel();
+            mRetryTimer = null;
+        }
+    }
+
+    private void flushOverflow() {
+
+        while (!mOverflow.isEmpty()) {
+
+            Pending pending = mOverflow.peek();
+            Buffer buffer = pending.buffer;
+
+            if (!mChannel.offer(buffer.getBytes(), buffer.getOffset(), buffer.getLength(), pending.id, pending.kind)) {
+                break;
+            }
+
+            mOverflow.remove();
+            mOverflowSize -= buffer.getLength();
+            buffer.recycle();
+        }
+
+        mOverflowPending = !mOverflow.isEmpty();
+
+        if (!mOverflowPending && (mRetryTimer != null)) {
+            mRetryTimer.cancel();
+            mRetryTimer = null;
+        }
+    }
+
+    // Consumer（Unityのスレッド）
+
+    // dstの大きさはMESSAGE_SIZE_MAX + MessageChannel.HEADER_SIZE以上にしておく
+    public int drain(byte[] dst, int offset, int length) {
+
+        int size = mChannel.drain(dst, offset, length);
+
+        if ((size > 0) && mOverflowPending && mFlushPosted.compareAndSet(false, true) && !mLoop.post(mFlushTask)) {
+            mFlushPosted.set(false);
+        }
+
+        return size;
+    }
+
+    // 溜まっているレコードをちょうどの大きさの配列で返す（なければnull）
+    // Unityは配列全体をコピーするので、固定の大きさの配列を渡すより受け渡すバイト数が少ない
+    public byte[] drain() {
+
+        int size = drain(mDrainBuffer, 0, mDrainBuffer.length);
+
+        if (size < 0) {
+            Utils.error("received record too large: %d", -size);
+            return null;
+        }
+
+        if (size == 0) {
+            return null;
+        }
+
+        return Arrays.copyOf(mDrainBuffer, size);
+    }
+}
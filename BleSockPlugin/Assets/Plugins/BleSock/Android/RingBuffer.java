@@ -0,0 +1,145 @@
+package xflag.plugins.bleSock;
+
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+
+final class RingBuffer {
+
+    private final byte[] mBytes;
+    private final int mMask;
+    private int mHead = 0;
+    private int mSize = 0;
+
+    public RingBuffer(int capacity) {
+
+        if ((capacity <= 0) || ((capacity & (capacity - 1)) != 0)) {
+            throw new IllegalArgumentException("capacity must be a power of two");
+        }
+
+        mBytes = new byte[capacity];
+        mMask = capacity - 1;
+    }
+
+    public int capacity() {
+
+        return mBytes.length;
+    }
+
+    public int size() {
+
+        return mSize;
+    }
+
+    public int remaining() {
+
+        return mBytes.length - mSize;
+    }
+
+    public boolean isEmpty() {
+
+        return mSize == 0;
+    }
+
+    public void clear() {
+
+        mHead = 0;
+        mSize = 0;
+    }
+
+    // Write
+
+    public void put(byte value) {
+
+        if (mSize == mBytes.length) {
+            throw new BufferOverflowException();
+        }
+
+        mBytes[(mHead + mSize) & mMask] = value;
+        mSize++;
+    }
+
+    public void putChar(int value) {
+
+        if (mSize + 2 > mBytes.length) {
+            throw new BufferOverflowException();
+        }
+
+        put((byte)value);
+        put((byte)(value >> 8));
+    }
+
+    public void put(byte[] src) {
+
+        put(src, 0, src.length);
+    }
+
+    public void put(byte[] src, int offset, int length) {
+
+        if (length > mBytes.length - mSize) {
+            throw new BufferOverflowException();
+        }
+
+        int tail = (mHead + mSize) & mMask;
+        int first = Math.min(length, mBytes.length - tail);
+
+        System.arraycopy(src, offset, mBytes, tail, first);
+        System.arraycopy(src, offset + first, mBytes, 0, length - first);
+        mSize += length;
+    }
+
+    // Read
+
+    public int peek(int index) {
+
+        if ((index < 0) || (index >= mSize)) {
+            throw new BufferUnderflowException();
+        }
+
+        return mBytes[(mHead + index) & mMask] & 0xff;
+    }
+
+    public int peekChar(int index) {
+
+        return peek(index) | (peek(index + 1) << 8);
+    }
+
+    public int getChar() {
+
+        int value = peekChar(0);
+        skip(2);
+        return value;
+    }
+
+    public void peek(int index, byte[] dst, int offset, int length) {
+
+        if ((index < 0) || (length > mSize - index)) {
+            throw new BufferUnderflowException();
+        }
+
+        int head = (mHead + index) & mMask;
+        int first = Math.min(length, mBytes.length - head);
+
+        System.arraycopy(mBytes, head, dst, offset, first);
+        System.arraycopy(mBytes, 0, dst, offset + first, length - first);
+    }
+
+    public void get(byte[] dst, int offset, int length) {
+
+        peek(0, dst, offset, length);
+        skip(length);
+    }
+
+    public void skip(int length) {
+
+        if ((length < 0) || (length > mSize)) {
+            throw new BufferUnderflowException();
+        }
+
+        mHead = (mHead + length) & mMask;
+        mSize -= length;
+
+        if (mSize == 0) {
+            mHead = 0;
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package xflag.plugins.bleSock;
+
+// sendBatchに渡す、メッセージを詰めた配列の読み方
+// レコードは[length:4][receiver:4][payload]（リトルエンディアン、C#のMessageBuffer.Write(int)と同じ）
+final class SendBatch {
+
+    public static final int HEADER_SIZE = 8;
+
+    // count個のレコードが配列に収まり、どのメッセージもmaxSize以下ならtrue
+    public static boolean validate(byte[] packed, int count, int maxSize) {
+
+        return validate(packed, 0, count, maxSize);
+    }
+
+    // startから始まるcount個のレコードを確かめる
+    public static boolean validate(byte[] packed, int start, int count, int maxSize) {
+
+        if ((packed == null) || (start < 0) || (start > packed.length) || (count < 0)) {
+            return false;
+        }
+
+        int offset = start;
+
+        for (int i = 0; i < count; i++) {
+
+            if (packed.length - offset < HEADER_SIZE) {
+                return false;
+            }
+
+            int length = length(packed, offset);
+            if ((length < 0) || (length > maxSize) || (length > packed.length - offset - HEADER_SIZE)) {
+                return false;
+            }
+
+            offset += HEADER_SIZE + length;
+        }
+
+        return true;
+    }
+
+    public static int length(byte[] packed, int offset) {
+
+        return getInt(packed, offset);
+    }
+
+    public static int receiver(byte[] packed, int offset) {
+
+        return getInt(packed, offset + 4);
+    }
+
+    private static int getInt(byte[] bytes, int offset) {
+
+        return (bytes[offset] & 0xff) | ((bytes[offset + 1] & 0xff) << 8) | ((bytes[offset + 2] & 0xff) << 16) | (bytes[offset + 3] << 24);
+    }
+}
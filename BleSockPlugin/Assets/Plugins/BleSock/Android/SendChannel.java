@@ -0,0 +1,228 @@
+package xflag.plugins.bleSock;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+// 送信するメッセージをUnityのスレッドからEventLoopへ渡すリングバッファ（ReceiveQueueでは受信したメッセージを逆向きに渡す）
+// Javaのヒープに置くので、位置はAtomicLongで公開する
+final class SendChannel implements MessageChannel {
+
+    private final byte[] mBuffer;
+    private final int mMask;
+    private final AtomicLong mHead = new AtomicLong(0); // 読み出し位置（読み出す側だけが進める）
+    private final AtomicLong mTail = new AtomicLong(0); // 書き込み位置（書き込む側だけが進める）
+
+    // capacityは2のべき乗
+    public SendChannel(int capacity) {
+
+        mBuffer = new byte[capacity];
+        mMask = capacity - 1;
+    }
+
+    @Override
+    public int size() {
+
+        return (int)(mTail.get() - mHead.get());
+    }
+
+    @Override
+    public boolean isEmpty() {
+
+        return mTail.get() == mHead.get();
+    }
+
+    // Producer
+
+    @Override
+    public boolean offer(byte[] message, int offset, int size, int receiver) {
+
+        return offer(message, offset, size, receiver, 0);
+    }
+
+    @Override
+    public boolean offer(byte[] message, int offset, int size, int receiver, int kind) {
+
+        long tail = mTail.get();
+        int recordSize = HEADER_SIZE + size;
+
+        if (mBuffer.length - (int)(tail - mHead.get()) < recordSize) {
+            return false;
+        }
+
+        putInt(tail, receiver);
+        putInt(tail + 4, (kind << KIND_SHIFT) | size);
+        put(tail + HEADER_SIZE, message, offset, size);
+
+        // 書き終えてから位置を公開する
+        mTail.lazySet(tail + recordSize);
+        return true;
+    }
+
+    @Override
+    public boolean offer(ByteBuffer src, int receiver) {
+
+        long tail = mTail.get();
+        int size = src.remaining();
+        int recordSize = HEADER_SIZE + size;
+
+        if (mBuffer.length - (int)(tail - mHead.get()) < recordSize) {
+            return false;
+        }
+
+        putInt(tail, receiver);
+        putInt(tail + 4, size);
+        put(tail + HEADER_SIZE, src, size);
+
+        mTail.lazySet(tail + recordSize);
+        return true;
+    }
+
+    @Override
+    public boolean offer(ByteBuffer[] segments, int receiver) {
+
+        return offer(segments, receiver, 0);
+    }
+
+    @Override
+    public boolean offer(ByteBuffer[] segments, int receiver, int kind) {
+
+        long tail = mTail.get();
+        int size = Segments.remaining(segments);
+        int recordSize = HEADER_SIZE + size;
+
+        if (mBuffer.length - (int)(tail - mHead.get()) < recordSize) {
+            return false;
+        }
+
+        putInt(tail, receiver);
+        putInt(tail + 4, (kind << KIND_SHIFT) | size);
+
+        long position = tail + HEADER_SIZE;
+
+        for (ByteBuffer segment : segments) {
+
+            int segmentSize = segment.remaining();
+            put(position, segment, segmentSize);
+            position += segmentSize;
+        }
+
+        mTail.lazySet(tail + recordSize);
+        return true;
+    }
+
+    // Consumer
+
+    @Override
+    public int peekSize() {
+
+        long head = mHead.get();
+        if (mTail.get() == head) {
+            return -1;
+        }
+
+        return getInt(head + 4) & SIZE_MASK;
+    }
+
+    @Override
+    public int peekReceiver() {
+
+        return getInt(mHead.get());
+    }
+
+    @Override
+    public int peekKind() {
+
+        return getInt(mHead.get() + 4) >>> KIND_SHIFT;
+    }
+
+    @Override
+    public void poll(byte[] dst) {
+
+        long head = mHead.get();
+        int size = getInt(head + 4) & SIZE_MASK;
+
+        get(head + HEADER_SIZE, dst, 0, size);
+        mHead.lazySet(head + HEADER_SIZE + size);
+    }
+
+    @Override
+    public int drain(byte[] dst, int offset, int length) {
+
+        long head = mHead.get();
+        long tail = mTail.get();
+        long end = head;
+
+        while (end != tail) {
+
+            int recordSize = HEADER_SIZE + (getInt(end + 4) & SIZE_MASK);
+            if (end + recordSize - head > length) {
+
+                if (end == head) {
+                    return -recordSize;
+                }
+
+                break;
+            }
+
+            end += recordSize;
+        }
+
+        int size = (int)(end - head);
+
+        get(head, dst, offset, size);
+        mHead.lazySet(end);
+
+        return size;
+    }
+
+    @Override
+    public void clear() {
+
+        mHead.lazySet(mTail.get());
+    }
+
+    private void put(long position, byte[] src, int offset, int size) {
+
+        int index = (int)position & mMask;
+        int first = Math.min(size, mBuffer.length - index);
+
+        System.arraycopy(src, offset, mBuffer, index, first);
+        System.arraycopy(src, offset + first, mBuffer, 0, size - first);
+    }
+
+    private void put(long position, ByteBuffer src, int size) {
+
+        int index = (int)position & mMask;
+        int first = Math.min(size, mBuffer.length - index);
+
+        src.get(mBuffer, index, first);
+        src.get(mBuffer, 0, size - first);
+    }
+
+    private void get(long position, byte[] dst, int offset, int size) {
+
+        int index = (int)position & mMask;
+        int first = Math.min(size, mBuffer.length - index);
+
+        System.arraycopy(mBuffer, index, dst, offset, first);
+        System.arraycopy(mBuffer, 0, dst, offset + first, size - first);
+    }
+
+    private void putInt(long position, int value) {
+
+        for (int i = 0; i < 4; i++) {
+            mBuffer[(int)(position + i) & mMask] = (byte)(value >>> (i * 8));
+        }
+    }
+
+    private int getInt(long position) {
+
+        int value = 0;
+
+        for (int i = 0; i < 4; i++) {
+            value |= (mBuffer[(int)(position + i) & mMask] & 0xff) << (i * 8);
+        }
+
+        return value;
+    }
+}
@@ -0,0 +1,233 @@
+package xflag.plugins.bleSock;
+
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+
+// 送信待ちのバイト列
+// ヘッダや小さなメッセージは内部のリングバッファにコピーし、大きなペイロードは共有するBufferへの参照として持つ
+// 参照しているペイロードも容量に数えるので、水位の判定はコピーした場合と変わらない
+// 参照先がまだ書き込み途中（長さが足りない）の場合は、書き込まれたところまでしか読み出さない
+final class SendQueue {
+
+    private static final int INITIAL_ENTRIES = 16;
+
+    private final RingBuffer mInline;
+    private int mSize = 0;
+
+    // 連続してコピーしたバイト列は一つのエントリ（segmentがnull）にまとめる
+    private Buffer[] mSegments = new Buffer[INITIAL_ENTRIES];
+    private int[] mOffsets = new int[INITIAL_ENTRIES];
+    private int[] mLengths = new int[INITIAL_ENTRIES];
+    private boolean[] mGrowing = new boolean[INITIAL_ENTRIES];
+    private int mHead = 0;
+    private int mCount = 0;
+    private int mGrowingCount = 0;
+
+    public SendQueue(int capacity) {
+
+        mInline = new RingBuffer(capacity);
+    }
+
+    public int capacity() {
+
+        return mInline.capacity();
+    }
+
+    public int size() {
+
+        return mSize;
+    }
+
+    public int remaining() {
+
+        return mInline.capacity() - mSize;
+    }
+
+    public boolean isEmpty() {
+
+        return mSize == 0;
+    }
+
+    // 今すぐ読み出せるバイト数（書き込み途中の参照があればその手前まで）
+    public int readable() {
+
+        if (mGrowingCount == 0) {
+            return mSize;
+        }
+
+        int readable = 0;
+
+        for (int i = 0; i < mCount; i++) {
+
+            int index = (mHead + i) & (mSegments.length - 1);
+            int available = available(index);
+
+            if (available < mLengths[index]) {
+                return readable + available;
+            }
+
+            readable += mLengths[index];
+        }
+
+        return readable;
+    }
+
+    public void clear() {
+
+        while (mCount > 0) {
+            removeHead();
+        }
+
+        mInline.clear();
+        mHead = 0;
+        mSize = 0;
+    }
+
+    // Write
+
+    public void put(byte[] src, int offset, int length) {
+
+        if (length > remaining()) {
+            throw new BufferOverflowException();
+        }
+
+        if (length == 0) {
+            return;
+        }
+
+        mInline.put(src, offset, length);
+
+        int tail = (mHead + mCount - 1) & (mSegments.length - 1);
+        if ((mCount > 0) && (mSegments[tail] == null)) {
+            mLengths[tail] += length;
+        }
+        else {
+            addEntry(null, 0, length);
+        }
+
+        mSize += length;
+    }
+
+    // segmentの参照を一つ増やし、送り終えた時点で手放す
+    // segmentの長さがoffset + lengthに満たなければ、残りは後から書き込まれるものとして扱う
+    public void put(Buffer segment, int offset, int length) {
+
+        if (length > remaining()) {
+            throw new BufferOverflowException();
+        }
+
+        if (length == 0) {
+            return;
+        }
+
+        segment.retain();
+        addEntry(segment, segment.getOffset() + offset, length);
+        mSize += length;
+
+        if (segment.getLength() < offset + length) {
+
+            mGrowing[(mHead + mCount - 1) & (mSegments.length - 1)] = true;
+            mGrowingCount++;
+        }
+    }
+
+    // Read
+
+    public void get(byte[] dst, int offset, int length) {
+
+        if ((length < 0) || (length > readable())) {
+            throw new BufferUnderflowException();
+        }
+
+        while (length > 0) {
+
+            int n = Math.min(length, Math.min(mLengths[mHead], available(mHead)));
+            Buffer segment = mSegments[mHead];
+
+            if (segment == null) {
+                mInline.get(dst, offset, n);
+            }
+            else {
+                System.arraycopy(segment.getBytes(), mOffsets[mHead], dst, offset, n);
+            }
+
+            mOffsets[mHead] += n;
+            mLengths[mHead] -= n;
+            mSize -= n;
+            offset += n;
+            length -= n;
+
+            if (mLengths[mHead] == 0) {
+                removeHead();
+            }
+        }
+    }
+
+    private int available(int index) {
+
+        Buffer segment = mSegments[index];
+        if (segment == null) {
+            return mLengths[index];
+        }
+
+        return Math.max(segment.getOffset() + segment.getLength() - mOffsets[index], 0);
+    }
+
+    private void addEntry(Buffer segment, int offset, int length) {
+
+        if (mCount == mSegments.length) {
+            grow();
+        }
+
+        int tail = (mHead + mCount) & (mSegments.length - 1);
+        mSegments[tail] = segment;
+        mOffsets[tail] = offset;
+        mLengths[tail] = length;
+        mCount++;
+    }
+
+    private void removeHead() {
+
+        Buffer segment = mSegments[mHead];
+        if (segment != null) {
+            segment.recycle();
+            mSegments[mHead] = null;
+        }
+
+        if (mGrowing[mHead]) {
+            mGrowing[mHead] = false;
+            mGrowingCount--;
+        }
+
+        mHead = (mHead + 1) & (mSegments.length - 1);
+        mCount--;
+
+        if (mCount == 0) {
+            mHead = 0;
+        }
+    }
+
+    private void grow() {
+
+        int capacity = mSegments.length * 2;
+        Buffer[] segments = new Buffer[capacity];
+        int[] offsets = new int[capacity];
+        int[] lengths = new int[capacity];
+        boolean[] growing = new boolean[capacity];
+
+        for (int i = 0; i < mCount; i++) {
+
+            int index = (mHead + i) & (mSegments.length - 1);
+            segments[i] = mSegments[index];
+            offsets[i] = mOffsets[index];
+            lengths[i] = mLengths[index];
+            growing[i] = mGrowing[index];
+        }
+
+        mSegments = segments;
+        mOffsets = offsets;
+        mLengths = lengths;
+        mGrowing = growing;
+        mHead = 0;
+    }
+}
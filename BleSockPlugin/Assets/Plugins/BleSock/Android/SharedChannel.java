@@ -0,0 +1,314 @@
+package xflag.plugins.bleSock;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+// Unityとダイレクトバッファを共有するMessageChannel
+// Unityはバッファのアドレスから直接読み書きするので、メッセージごとにJNIで配列をコピーしなくて済む
+// 先頭に[head:4][tail:4][waiting:4]をキャッシュラインを分けて置き、その後ろにレコードが続く（全てリトルエンディアン）
+// headとtailは0から増え続けて2^32で折り返し、差が使用中のバイト数になる
+// waitingは読み出す側が空だと見て止まる前に1にする。書き込む側は位置を公開した後にこれを読み、1なら読み出す側を起こす
+// 送信のリングではwaitingの後ろに[blocked:4][queued:4][limit:4]を置き、Unityが自分で書き込んでよいかを判断できるようにする
+// blockedは受け取れない宛先のビット、queuedは送信キューに積まれているバイト数、limitはqueuedとリングの使用量の合計の上限（0なら制限なし）
+final class SharedChannel implements MessageChannel {
+
+    public static final int HEAD_OFFSET = 0;
+    public static final int TAIL_OFFSET = 64;
+    public static final int WAITING_OFFSET = 128;
+    public static final int BLOCKED_OFFSET = WAITING_OFFSET + 4;
+    public static final int QUEUED_OFFSET = WAITING_OFFSET + 8;
+    public static final int LIMIT_OFFSET = WAITING_OFFSET + 12;
+    public static final int DATA_OFFSET = 192;
+
+    private final ByteBuffer mBuffer;
+    private final ByteBuffer mWriter; // 位置を動かす一括コピー用（書き込む側だけが使う）
+    private final ByteBuffer mReader; // 同じく読み出す側だけが使う
+    private final int mCapacity;
+    private final int mMask;
+    private volatile int mFence = 0;
+
+    // capacityは2のべき乗
+    public SharedChannel(int capacity) {
+
+        mBuffer = ByteBuffer.allocateDirect(DATA_OFFSET + capacity).order(ByteOrder.LITTLE_ENDIAN);
+        mWriter = mBuffer.duplicate();
+        mReader = mBuffer.duplicate();
+        mCapacity = capacity;
+        mMask = capacity - 1;
+    }
+
+    public ByteBuffer getBuffer() {
+
+        return mBuffer;
+    }
+
+    @Override
+    public int size() {
+
+        return mBuffer.getInt(TAIL_OFFSET) - mBuffer.getInt(HEAD_OFFSET);
+    }
+
+    @Override
+    public boolean isEmpty() {
+
+        return size() == 0;
+    }
+
+    // Producer
+
+    @Override
+    public boolean offer(byte[] message, int offset, int size, int receiver) {
+
+        return offer(message, offset, size, receiver, 0);
+    }
+
+    @Override
+    public boolean offer(byte[] message, int offset, int size, int receiver, int kind) {
+
+        int head = mBuffer.getInt(HEAD_OFFSET);
+        int tail = mBuffer.getInt(TAIL_OFFSET);
+        int recordSize = HEADER_SIZE + size;
+
+        if (mCapacity - (tail - head) < recordSize) {
+            return false;
+        }
+
+        // 読み出す側が読み終えてから上書きし、書き終えてから位置を公開する
+        fence();
+
+        putInt(tail, receiver);
+        putInt(tail + 4, (kind << KIND_SHIFT) | size);
+        put(tail + HEADER_SIZE, message, offset, size);
+
+        fence();
+        mBuffer.putInt(TAIL_OFFSET, tail + recordSize);
+
+        return true;
+    }
+
+    @Override
+    public boolean offer(ByteBuffer src, int receiver) {
+
+        int head = mBuffer.getInt(HEAD_OFFSET);
+        int tail = mBuffer.getInt(TAIL_OFFSET);
+        int size = src.remaining();
+        int recordSize = HEADER_SIZE + size;
+
+        if (mCapacity - (tail - head) < recordSize) {
+            return false;
+        }
+
+        fence();
+
+        putInt(tail, receiver);
+        putInt(tail + 4, size);
+        put(tail + HEADER_SIZE, src, size);
+
+        fence();
+        mBuffer.putInt(TAIL_OFFSET, tail + recordSize);
+
+        return true;
+    }
+
+    @Override
+    public boolean offer(ByteBuffer[] segments, int receiver) {
+
+        return offer(segments, receiver, 0);
+    }
+
+    @Override
+    public boolean offer(ByteBuffer[] segments, int receiver, int kind) {
+
+        int head = mBuffer.getInt(HEAD_OFFSET);
+        int tail = mBuffer.getInt(TAIL_OFFSET);
+        int size = Segments.remaining(segments);
+        int recordSize = HEADER_SIZE + size;
+
+        if (mCapacity - (tail - head) < recordSize) {
+            return false;
+        }
+
+        fence();
+
+        putInt(tail, receiver);
+        putInt(tail + 4, (kind << KIND_SHIFT) | size);
+
+        int position = tail + HEADER_SIZE;
+
+        for (ByteBuffer segment : segments) {
+
+            int segmentSize = segment.remaining();
+            put(position, segment, segmentSize);
+            position += segmentSize;
+        }
+
+        fence();
+        mBuffer.putInt(TAIL_OFFSET, tail + recordSize);
+
+        return true;
+    }
+
+    // 送信の状態を公開する（読み出す側のスレッドから呼ぶ）
+    public void publishSendState(int blocked, int queued, int limit) {
+
+        mBuffer.putInt(BLOCKED_OFFSET, blocked);
+        mBuffer.putInt(QUEUED_OFFSET, queued);
+        mBuffer.putInt(LIMIT_OFFSET, limit);
+        fence();
+    }
+
+    // Consumer
+
+    @Override
+    public int peekSize() {
+
+        int head = mBuffer.getInt(HEAD_OFFSET);
+
+        if (mBuffer.getInt(TAIL_OFFSET) == head) {
+
+            // 止まる前にwaitingを立て、その間に書き込まれていないか見直す
+            mBuffer.putInt(WAITING_OFFSET, 1);
+            fence();
+
+            if (mBuffer.getInt(TAIL_OFFSET) == head) {
+                return -1;
+            }
+        }
+
+        mBuffer.putInt(WAITING_OFFSET, 0);
+        fence();
+
+        return getInt(head + 4) & SIZE_MASK;
+    }
+
+    @Override
+    public int peekReceiver() {
+
+        return getInt(mBuffer.getInt(HEAD_OFFSET));
+    }
+
+    @Override
+    public int peekKind() {
+
+        return getInt(mBuffer.getInt(HEAD_OFFSET) + 4) >>> KIND_SHIFT;
+    }
+
+    @Override
+    public void poll(byte[] dst) {
+
+        int head = mBuffer.getInt(HEAD_OFFSET);
+        int size = getInt(head + 4) & SIZE_MASK;
+
+        get(head + HEADER_SIZE, dst, 0, size);
+
+        fence();
+        mBuffer.putInt(HEAD_OFFSET, head + HEADER_SIZE + size);
+    }
+
+    @Override
+    public int drain(byte[] dst, int offset, int length) {
+
+        int head = mBuffer.getInt(HEAD_OFFSET);
+        int tail = mBuffer.getInt(TAIL_OFFSET);
+        int end = head;
+
+        fence();
+
+        while (end != tail) {
+
+            int recordSize = HEADER_SIZE + (getInt(end + 4) & SIZE_MASK);
+            if (end + recordSize - head > length) {
+
+                if (end == head) {
+                    return -recordSize;
+                }
+
+                break;
+            }
+
+            end += recordSize;
+        }
+
+        int size = end - head;
+
+        get(head, dst, offset, size);
+
+        fence();
+        mBuffer.putInt(HEAD_OFFSET, end);
+
+        return size;
+    }
+
+    @Override
+    public void clear() {
+
+        fence();
+        mBuffer.putInt(HEAD_OFFSET, mBuffer.getInt(TAIL_OFFSET));
+    }
+
+    // ダイレクトバッファの読み書きには順序の保証がないので、volatileの書き込みと続く読み出しで前後の読み書きを入れ替えさせない
+    // （Unity側ではThread.MemoryBarrierを使う）
+    private int fence() {
+
+        mFence = 1;
+        return mFence;
+    }
+
+    private void put(int position, byte[] src, int offset, int size) {
+
+        int index = position & mMask;
+        int first = Math.min(size, mCapacity - index);
+
+        mWriter.position(DATA_OFFSET + index);
+        mWriter.put(src, offset, first);
+        mWriter.position(DATA_OFFSET);
+        mWriter.put(src, offset + first, size - first);
+    }
+
+    // srcのlimitを一時的に縮めて、折り返す前後に分けてコピーする
+    private void put(int position, ByteBuffer src, int size) {
+
+        int index = position & mMask;
+        int first = Math.min(size, mCapacity - index);
+        int limit = src.limit();
+
+        src.limit(src.position() + first);
+        mWriter.position(DATA_OFFSET + index);
+        mWriter.put(src);
+
+        src.limit(src.position() + size - first);
+        mWriter.position(DATA_OFFSET);
+        mWriter.put(src);
+
+        src.limit(limit);
+    }
+
+    private void get(int position, byte[] dst, int offset, int size) {
+
+        int index = position & mMask;
+        int first = Math.min(size, mCapacity - index);
+
+        mReader.position(DATA_OFFSET + index);
+        mReader.get(dst, offset, first);
+        mReader.position(DATA_OFFSET);
+        mReader.get(dst, offset + first, size - first);
+    }
+
+    private void putInt(int position, int value) {
+
+        for (int i = 0; i < 4; i++) {
+            mBuffer.put(DATA_OFFSET + ((position + i) & mMask), (byte)(value >>> (i * 8)));
+        }
+    }
+
+    private int getInt(int position) {
+
+        int value = 0;
+
+        for (int i = 0; i < 4; i++) {
+            value |= (mBuffer.get(DATA_OFFSET + ((position + i) & mMask)) & 0xff) << (i * 8);
+        }
+
+        return value;
+    }
+}
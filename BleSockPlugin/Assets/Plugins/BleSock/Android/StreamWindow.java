@@ -0,0 +1,120 @@
+package xflag.plugins.bleSock;
+
+// 下りのストリーミングで確認を待っているフラグメントの窓
+// フラグメントは[A|seq:7][payload]。Aが立っていればセントラルはすぐにSTREAM_ACKを返す
+// セントラルは次に期待するseqをSTREAM_ACKで返し、抜けを見つけた場合は再送も要求する
+// STREAM_ACKは上りのフレームに混ぜずCCCDへの書き込みで送る。上りのクレジットを使い切っていても確認が止まらない
+final class StreamWindow {
+
+    public static final int SIZE = 16;
+    public static final int SEQUENCE_MASK = 0x7f;
+    public static final int ACK_REQUEST = 0x80;
+
+    // ストリーミングではCCCDにindicationとnotificationの両方を有効にする値を書く（0x0003）
+    public static final byte[] ENABLE_STREAM_VALUE = { 0x03, 0x00 };
+
+    // STREAM_ACKは[0x03][次に期待するseq:u8][再送要求:u8]
+    public static final int ACK_VALUE_SIZE = 3;
+
+    public static byte[] createAckValue(int next, boolean retransmit) {
+
+        return new byte[] { ENABLE_STREAM_VALUE[0], (byte)next, (byte)(retransmit ? 1 : 0) };
+    }
+
+    public static boolean isAckValue(byte[] value) {
+
+        return (value != null) && (value.length == ACK_VALUE_SIZE) && (value[0] == ENABLE_STREAM_VALUE[0]);
+    }
+
+    private final byte[][] mSlots = new byte[SIZE][];
+    private final int[] mLengths = new int[SIZE];
+    private int mBase = 0; // 確認されていない最古のseq
+    private int mNext = 0; // 次に積むフラグメントのseq
+    private int mSend = 0; // 次に送るフラグメントのseq（再送中はmNextより前）
+    private long mLastProgress = 0;
+
+    public boolean isEmpty() {
+
+        return mBase == mNext;
+    }
+
+    public boolean isRetransmitting() {
+
+        return mSend != mNext;
+    }
+
+    // 新しいフラグメントを積めるか
+    public boolean canPush() {
+
+        return ((mNext - mBase) & SEQUENCE_MASK) < SIZE;
+    }
+
+    // srcからsizeバイトを取り出して次のseqのフラグメントとして積む
+    public void push(SendQueue src, int size, long now) {
+
+        int slot = mNext & (SIZE - 1);
+
+        if ((mSlots[slot] == null) || (mSlots[slot].length < size + 1)) {
+            mSlots[slot] = new byte[size + 1];
+        }
+
+        mSlots[slot][0] = (byte)mNext;
+        src.get(mSlots[slot], 1, size);
+        mLengths[slot] = size + 1;
+
+        if (isEmpty()) {
+            mLastProgress = now;
+        }
+
+        mNext = (mNext + 1) & SEQUENCE_MASK;
+    }
+
+    // 次に送るフラグメントを返す（GATTの呼び出し時点でコピーされるので値はcacheの配列を使い回す）
+    public byte[] transmit(FragmentCache cache) {
+
+        int slot = mSend & (SIZE - 1);
+        byte[] value = cache.obtain(mLengths[slot]);
+
+        System.arraycopy(mSlots[slot], 0, value, 0, mLengths[slot]);
+        mSend = (mSend + 1) & SEQUENCE_MASK;
+
+        return value;
+    }
+
+    // nextより前のフラグメントを手放す。retransmitなら残りを先頭から送り直す
+    // 積んでいないフラグメントまで確認された場合はfalseを返す
+    public boolean acknowledge(int next, boolean retransmit, long now) {
+
+        int acknowledged = (next - mBase) & SEQUENCE_MASK;
+        if (acknowledged > ((mNext - mBase) & SEQUENCE_MASK)) {
+            return false;
+        }
+
+        // 再送中に遅れて届いた確認で、送り直そうとしていたフラグメントが確認済みになることもある
+        boolean sendAcknowledged = ((mSend - mBase) & SEQUENCE_MASK) < acknowledged;
+
+        mBase = next & SEQUENCE_MASK;
+
+        if (retransmit || sendAcknowledged) {
+            mSend = mBase;
+        }
+
+        if ((acknowledged > 0) || retransmit) {
+            mLastProgress = now;
+        }
+
+        return true;
+    }
+
+    // 最後に進んでからtimeout経っても確認されなければ未確認の先頭から送り直す
+    public boolean checkTimeout(long now, long timeout) {
+
+        if (isEmpty() || isRetransmitting() || (now - mLastProgress < timeout)) {
+            return false;
+        }
+
+        mSend = mBase;
+        mLastProgress = now;
+        return true;
+    }
+}
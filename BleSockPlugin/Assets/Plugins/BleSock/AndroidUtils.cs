@@ -1,4 +1,6 @@
 ﻿using System;
+using System.Runtime.InteropServices;
+using System.Threading;
 
 using UnityEngine;
 
@@ -51,11 +53,319 @@ namespace BleSock
             }
         }
 
+        public static byte[] GetBytes(AndroidJavaObject buffer)
+        {
+            return buffer.Call<byte[]>("toByteArray");
+        }
+
+        // AndroidJavaObject.Callは配列全体をJavaにコピーするので、送る範囲だけの配列にしてから渡す
+        // 範囲が配列全体ならそのまま返す
+        public static byte[] Slice(byte[] message, int offset, int length)
+        {
+            if ((offset == 0) && (length == message.Length))
+            {
+                return message;
+            }
+
+            var slice = new byte[length];
+            Buffer.BlockCopy(message, offset, slice, 0, length);
+            return slice;
+        }
+
         // Internal
 
         private const string NAME_PREFIX = "xflag.plugins.bleSock.";
     }
 
+    // drainReceivedRecordsで溜まっている受信メッセージをまとめて取り出す
+    // Javaは詰めたバイト数ちょうどの配列を返すので、FromByteArrayでコピーするのは取り出した分だけになる
+    internal sealed class AndroidReceiveDrain : IDisposable
+    {
+        // Constants
+
+        // ReceiveQueue.KIND_*と同じ
+        public const int KIND_MESSAGE = 0;
+        public const int KIND_DIRECT = 1;
+        public const int KIND_CHUNK = 2;
+        public const int KIND_LAST_CHUNK = 3;
+
+        // Constructor
+
+        public AndroidReceiveDrain(AndroidJavaObject instance)
+        {
+            mInstance = instance;
+            mMethod = AndroidJNIHelper.GetMethodID(instance.GetRawClass(), "drainReceivedRecords", "()[B");
+        }
+
+        // Methods
+
+        // 取り出したメッセージごとにonMessage(kind, id, message)を呼ぶ
+        public void Drain(Action<int, int, byte[]> onMessage)
+        {
+            while (true)
+            {
+                var array = AndroidJNI.CallObjectMethod(mInstance.GetRawObject(), mMethod, mArgs);
+                if (array == IntPtr.Zero)
+                {
+                    return;
+                }
+
+                var bytes = AndroidJNI.FromByteArray(array);
+                AndroidJNI.DeleteLocalRef(array);
+
+                int size = bytes.Length;
+                int offset = 0;
+
+                while (offset < size)
+                {
+                    int id = ReadInt32(bytes, offset);
+                    int header = ReadInt32(bytes, offset + 4);
+                    int length = header & 0xffffff;
+
+                    var message = new byte[length];
+                    Buffer.BlockCopy(bytes, offset + HEADER_SIZE, message, 0, length);
+                    offset += HEADER_SIZE + length;
+
+                    onMessage((header >> 24) & 0xff, id, message);
+                }
+
+                // どのレコードでも収まる空きが残っていれば取り出し切っている
+                if (BUFFER_SIZE - size >= HEADER_SIZE + MESSAGE_SIZE_MAX)
+                {
+                    return;
+                }
+            }
+        }
+
+        public void Dispose()
+        {
+            mInstance = null;
+        }
+
+        // Internal
+
+        private const int HEADER_SIZE = 8;
+        private const int MESSAGE_SIZE_MAX = 4096;
+        private const int BUFFER_SIZE = 16384; // ReceiveQueue.DRAIN_SIZEと同じ
+
+        private static int ReadInt32(byte[] bytes, int offset)
+        {
+            return bytes[offset] | (bytes[offset + 1] << 8) | (bytes[offset + 2] << 16) | (bytes[offset + 3] << 24);
+        }
+
+        private AndroidJavaObject mInstance;
+        private IntPtr mMethod;
+        private jvalue[] mArgs = new jvalue[0];
+    }
+
+    // enableSharedChannelsでJavaと共有したダイレクトバッファのリング（配置はSharedChannelを参照）
+    // アドレスから直接読み書きするので、メッセージごとにJNIで配列をコピーしない
+    // アドレスの取得にAndroidJNI.GetDirectBufferAddress（Unity 2019.1以降）とunsafeを使うので、BLESOCK_SHARED_CHANNELSを定義して有効にする
+    internal sealed class AndroidSharedRing : IDisposable
+    {
+        // Constants
+
+#if BLESOCK_SHARED_CHANNELS
+        public const bool IS_SUPPORTED = true;
+#else
+        public const bool IS_SUPPORTED = false;
+#endif
+
+        public const int MESSAGE_SIZE_MAX = 4096;
+
+        // MessageChannel.KIND_UNTHROTTLEDと同じ
+        public const int KIND_UNTHROTTLED = 1;
+
+        // Constructor
+
+        public AndroidSharedRing(AndroidJavaObject buffer)
+        {
+#if BLESOCK_SHARED_CHANNELS
+            unsafe
+            {
+                mAddress = (IntPtr)AndroidJNI.GetDirectBufferAddress(buffer.GetRawObject());
+            }
+#else
+            throw new NotSupportedException("BLESOCK_SHARED_CHANNELS is not defined");
+#endif
+
+            mBuffer = buffer;
+            mCapacity = (int)AndroidJNI.GetDirectBufferCapacity(buffer.GetRawObject()) - DATA_OFFSET;
+            mMask = mCapacity - 1;
+        }
+
+        // Properties
+
+        public int Size
+        {
+            get
+            {
+                return Marshal.ReadInt32(mAddress, TAIL_OFFSET) - Marshal.ReadInt32(mAddress, HEAD_OFFSET);
+            }
+        }
+
+        // Javaの送信キューとリングに積まれているバイト数（Javaのsendが返す値と同じ）
+        public int QueuedSize
+        {
+            get
+            {
+                return Marshal.ReadInt32(mAddress, QUEUED_OFFSET) + Size;
+            }
+        }
+
+        // Methods
+
+        // Javaが公開した送信の状態を見て、receiver宛てをJavaのsendを通さずに書き込んでよいかを返す
+        // 宛先がブロックしているか上限に達していればfalse。JavaのsendがSEND_WOULD_BLOCKを返し、空いたらonWritableで知らせる
+        public bool CanWrite(int receiver)
+        {
+            Thread.MemoryBarrier();
+
+            if ((receiver & Marshal.ReadInt32(mAddress, BLOCKED_OFFSET)) != 0)
+            {
+                return false;
+            }
+
+            int limit = Marshal.ReadInt32(mAddress, LIMIT_OFFSET);
+            return (limit == 0) || (QueuedSize < limit);
+        }
+
+        // 空きが足りなければfalseを返す。wakeがtrueならJavaの読み出す側が止まっているので起こす
+        public bool Write(byte[] message, int offset, int messageSize, int receiver, out bool wake)
+        {
+            return Write(message, offset, messageSize, receiver, 0, out wake);
+        }
+
+        // kindはMessageChannel.KIND_*
+        public bool Write(byte[] message, int offset, int messageSize, int receiver, int kind, out bool wake)
+        {
+            wake = false;
+
+            if ((message == null) || (offset < 0) || (messageSize < 0) || (offset > message.Length - messageSize) || (messageSize > MESSAGE_SIZE_MAX))
+            {
+                return false;
+            }
+
+            int head = Marshal.ReadInt32(mAddress, HEAD_OFFSET);
+            int tail = Marshal.ReadInt32(mAddress, TAIL_OFFSET);
+            int recordSize = HEADER_SIZE + messageSize;
+
+            if (mCapacity - (tail - head) < recordSize)
+            {
+                return false;
+            }
+
+            // 読み出す側が読み終えてから上書きし、書き終えてから位置を公開する
+            Thread.MemoryBarrier();
+
+            WriteInt32(tail, receiver);
+            WriteInt32(tail + 4, (kind << 24) | messageSize);
+            Write(tail + HEADER_SIZE, message, offset, messageSize);
+
+            Thread.MemoryBarrier();
+            Marshal.WriteInt32(mAddress, TAIL_OFFSET, tail + recordSize);
+
+            Thread.MemoryBarrier();
+            wake = Marshal.ReadInt32(mAddress, WAITING_OFFSET) != 0;
+
+            return true;
+        }
+
+        // 取り出したメッセージごとにonMessage(kind, id, message)を呼ぶ
+        public void Read(Action<int, int, byte[]> onMessage)
+        {
+            int head = Marshal.ReadInt32(mAddress, HEAD_OFFSET);
+            int tail = Marshal.ReadInt32(mAddress, TAIL_OFFSET);
+
+            Thread.MemoryBarrier();
+
+            while (head != tail)
+            {
+                int id = ReadInt32(head);
+                int header = ReadInt32(head + 4);
+                int length = header & 0xffffff;
+
+                var message = new byte[length];
+                Read(head + HEADER_SIZE, message, length);
+                head += HEADER_SIZE + length;
+
+                // コールバックを待たずに空きを返す
+                Thread.MemoryBarrier();
+                Marshal.WriteInt32(mAddress, HEAD_OFFSET, head);
+
+                onMessage((header >> 24) & 0xff, id, message);
+            }
+        }
+
+        public void Dispose()
+        {
+            if (mBuffer != null)
+            {
+                mBuffer.Dispose();
+                mBuffer = null;
+            }
+
+            mAddress = IntPtr.Zero;
+        }
+
+        // Internal
+
+        private const int HEAD_OFFSET = 0;
+        private const int TAIL_OFFSET = 64;
+        private const int WAITING_OFFSET = 128;
+        private const int BLOCKED_OFFSET = 132;
+        private const int QUEUED_OFFSET = 136;
+        private const int LIMIT_OFFSET = 140;
+        private const int DATA_OFFSET = 192;
+        private const int HEADER_SIZE = 8;
+
+        private IntPtr DataAddress(int position)
+        {
+            return new IntPtr(mAddress.ToInt64() + DATA_OFFSET + (position & mMask));
+        }
+
+        private void Write(int position, byte[] src, int offset, int size)
+        {
+            int first = Math.Min(size, mCapacity - (position & mMask));
+
+            Marshal.Copy(src, offset, DataAddress(position), first);
+            Marshal.Copy(src, offset + first, DataAddress(0), size - first);
+        }
+
+        private void Read(int position, byte[] dst, int size)
+        {
+            int first = Math.Min(size, mCapacity - (position & mMask));
+
+            Marshal.Copy(DataAddress(position), dst, 0, first);
+            Marshal.Copy(DataAddress(0), dst, first, size - first);
+        }
+
+        private void WriteInt32(int position, int value)
+        {
+            for (int i = 0; i < 4; i++)
+            {
+                Marshal.WriteByte(DataAddress(position + i), (byte)(value >> (i * 8)));
+            }
+        }
+
+        private int ReadInt32(int position)
+        {
+            int value = 0;
+
+            for (int i = 0; i < 4; i++)
+            {
+                value |= Marshal.ReadByte(DataAddress(position + i)) << (i * 8);
+            }
+
+            return value;
+        }
+
+        private AndroidJavaObject mBuffer;
+        private IntPtr mAddress;
+        private int mCapacity;
+        private int mMask;
+    }
+
 #endif
 
 }
@@ -13,6 +13,12 @@ namespace BleSock
 {
     internal abstract class CentralBase : IDisposable
     {
+        // Constants
+
+        public const int SEND_FAILED = -1;
+        public const int SEND_WOULD_BLOCK = -2;
+        public const int SEND_BATCH_HEADER_SIZE = 8;
+
         // Events
 
         public event Action onBluetoothRequire;         // Bluetoothの有効化が要求された
@@ -24,6 +30,8 @@ namespace BleSock
         public event Action onDisconnect;               // ペリフェラルから切断された
 
         public event Action<byte[], int> onReceive;     // メッセージを受信した
+        public event Action<byte[], int, bool> onReceiveChunk;  // 大きなメッセージの一部を受信した
+        public event Action onWritable;                 // 送信バッファが低水位まで空いた
 
         // Properties
 
@@ -64,6 +72,93 @@ namespace BleSock
             return false;
         }
 
+        // 送信バッファに残っているバイト数を返す。SEND_WOULD_BLOCKならonWritableを待って送り直す
+        public virtual int SendLarge(byte[] message, int messageSize, int receiver)
+        {
+            return SEND_FAILED;
+        }
+
+        // 送信バッファに残っているバイト数を返す。SEND_WOULD_BLOCKならonWritableを待って送り直す
+        public virtual int TrySend(byte[] message, int messageSize, int receiver)
+        {
+            return Send(message, messageSize, receiver) ? 0 : SEND_FAILED;
+        }
+
+        // messageのoffsetから送る（MessageBufferに続けて組み立てたメッセージを切り出さずに済む）
+        public virtual int TrySend(byte[] message, int offset, int length, int receiver)
+        {
+            if (offset == 0)
+            {
+                return TrySend(message, length, receiver);
+            }
+
+            var copy = new byte[length];
+            Buffer.BlockCopy(message, offset, copy, 0, length);
+            return TrySend(copy, length, receiver);
+        }
+
+        // [length:4][receiver:4][payload]（MessageBuffer.Write(int)と同じリトルエンディアン）をcount個詰めたpackedを先頭から送り、送れたメッセージの数を返す
+        // countより少なければonWritableを待って残りを送り直す
+        public int SendBatch(byte[] packed, int count)
+        {
+            return SendBatch(packed, 0, count);
+        }
+
+        // packedのstartから始まるcount個を送る
+        public virtual int SendBatch(byte[] packed, int start, int count)
+        {
+            int sent = 0;
+            int offset = start;
+
+            while (sent < count)
+            {
+                int length = BitConverter.ToInt32(packed, offset);
+                int receiver = BitConverter.ToInt32(packed, offset + 4);
+
+                if (TrySend(packed, offset + SEND_BATCH_HEADER_SIZE, length, receiver) < 0)
+                {
+                    break;
+                }
+
+                offset += SEND_BATCH_HEADER_SIZE + length;
+                sent++;
+            }
+
+            return sent;
+        }
+
+        public virtual bool SetWatermarks(int lowWatermark, int highWatermark)
+        {
+            return false;
+        }
+
+        public virtual void SetCoalescingWindow(int microseconds) { }
+
+        public virtual void SetLinkMode(int mode) { }
+
+        public virtual int GetPayloadSize()
+        {
+            return 0;
+        }
+
+        public virtual void Flush() { }
+
+        // trueにすると受信したメッセージをonReceive、onReceiveChunkで知らせずに溜めておき、PollReceivedで知らせる（現状Androidのみ）
+        public virtual bool SetReceivePolling(bool enabled)
+        {
+            return false;
+        }
+
+        // 溜まっている受信メッセージをまとめて取り出して知らせる。毎フレーム呼ぶ
+        public virtual void PollReceived() { }
+
+        // 送受信のリングをJavaと共有するダイレクトバッファに切り替え、メッセージごとに配列をJNIでコピーしない（接続する前に呼ぶ、現状Androidのみ）
+        // 受信はポーリングになるので、PollReceivedを毎フレーム呼ぶ
+        public virtual bool EnableSharedChannels()
+        {
+            return false;
+        }
+
         public virtual void Cleanup()
         {
             onBluetoothRequire = null;
@@ -75,6 +170,8 @@ namespace BleSock
             onDisconnect = null;
 
             onReceive = null;
+            onReceiveChunk = null;
+            onWritable = null;
         }
 
         public virtual void Dispose()
@@ -188,6 +285,36 @@ namespace BleSock
                 }
             }
         }
+
+        protected void InvokeOnReceiveChunk(byte[] chunk, int sender, bool last)
+        {
+            if (onReceiveChunk != null)
+            {
+                try
+                {
+                    onReceiveChunk(chunk, sender, last);
+                }
+                catch (Exception e)
+                {
+                    Debug.LogException(e);
+                }
+            }
+        }
+
+        protected void InvokeOnWritable()
+        {
+            if (onWritable != null)
+            {
+                try
+                {
+                    onWritable();
+                }
+                catch (Exception e)
+                {
+                    Debug.LogException(e);
+                }
+            }
+        }
     }
 
 #if UNITY_ANDROID && !UNITY_EDITOR
@@ -199,6 +326,7 @@ namespace BleSock
         public Central()
         {
             mInstance = new AndroidJavaObject(NAME_PREFIX + "CentralImpl");
+            mOnDrain = OnDrain;
         }
 
         // Properties
@@ -309,13 +437,206 @@ namespace BleSock
             }
         }
 
+        // 水位に関係なく送る（システムメッセージと、水位を使わないGuestPeer.Send）
         public override bool Send(byte[] message, int messageSize, int receiver)
         {
+            return SendInternal(message, 0, messageSize, receiver, true) >= 0;
+        }
+
+        public override int SendLarge(byte[] message, int messageSize, int receiver)
+        {
+            lock (mSendLock)
+            {
+                if (mInstance != null)
+                {
+                    try
+                    {
+                        return mInstance.Call<int>("sendLarge", message, messageSize, receiver);
+                    }
+                    catch (Exception e)
+                    {
+                        Debug.LogException(e);
+                    }
+                }
+            }
+
+            return SEND_FAILED;
+        }
+
+        public override int TrySend(byte[] message, int messageSize, int receiver)
+        {
+            return TrySend(message, 0, messageSize, receiver);
+        }
+
+        public override int TrySend(byte[] message, int offset, int length, int receiver)
+        {
+            return SendInternal(message, offset, length, receiver, false);
+        }
+
+        public override int SendBatch(byte[] packed, int start, int count)
+        {
+            lock (mSendLock)
+            {
+                if (mInstance != null)
+                {
+                    try
+                    {
+                        if (mSendRing == null)
+                        {
+                            return mInstance.Call<int>("sendBatch", packed, start, count);
+                        }
+
+                        // 共有のリングに書き込み、止まっていたJavaを起こすのは最後に一回だけ
+                        int sent = 0;
+                        int offset = start;
+                        bool wake = false;
+
+                        while (sent < count)
+                        {
+                            int length = BitConverter.ToInt32(packed, offset);
+                            int receiver = BitConverter.ToInt32(packed, offset + 4);
+
+                            bool waiting;
+                            if (!mSendRing.CanWrite(receiver) || !mSendRing.Write(packed, offset + SEND_BATCH_HEADER_SIZE, length, receiver, out waiting))
+                            {
+                                break;
+                            }
+
+                            wake |= waiting;
+                            offset += SEND_BATCH_HEADER_SIZE + length;
+                            sent++;
+                        }
+
+                        if (wake)
+                        {
+                            mInstance.Call("wakeSendChannel");
+                        }
+
+                        // 宛先がブロックしているか収まらなかった残りは、続きの位置を渡してJavaのsendBatchに任せる（SEND_WOULD_BLOCKとonWritableはそちらで扱う）
+                        if (sent < count)
+                        {
+                            int restSent = mInstance.Call<int>("sendBatch", packed, offset, count - sent);
+                            if (restSent > 0)
+                            {
+                                sent += restSent;
+                            }
+                        }
+
+                        return sent;
+                    }
+                    catch (Exception e)
+                    {
+                        Debug.LogException(e);
+                    }
+                }
+            }
+
+            return SEND_FAILED;
+        }
+
+        public override bool SetWatermarks(int lowWatermark, int highWatermark)
+        {
+            if (mInstance != null)
+            {
+                try
+                {
+                    return mInstance.Call<bool>("setWatermarks", lowWatermark, highWatermark);
+                }
+                catch (Exception e)
+                {
+                    Debug.LogException(e);
+                }
+            }
+
+            return false;
+        }
+
+        public override int GetPayloadSize()
+        {
+            if (mInstance != null)
+            {
+                try
+                {
+                    return mInstance.Call<int>("getPayloadSize");
+                }
+                catch (Exception e)
+                {
+                    Debug.LogException(e);
+                }
+            }
+
+            return 0;
+        }
+
+        public override void SetCoalescingWindow(int microseconds)
+        {
+            if (mInstance != null)
+            {
+                try
+                {
+                    mInstance.Call("setCoalescingWindow", microseconds);
+                }
+                catch (Exception e)
+                {
+                    Debug.LogException(e);
+                }
+            }
+        }
+
+        public override void SetLinkMode(int mode)
+        {
+            if (mInstance != null)
+            {
+                try
+                {
+                    mInstance.Call<bool>("setLinkMode", mode);
+                }
+                catch (Exception e)
+                {
+                    Debug.LogException(e);
+                }
+            }
+        }
+
+        public override void Flush()
+        {
+            if (mInstance != null)
+            {
+                try
+                {
+                    mInstance.Call("flush");
+                }
+                catch (Exception e)
+                {
+                    Debug.LogException(e);
+                }
+            }
+        }
+
+        public override bool EnableSharedChannels()
+        {
+            if (!AndroidSharedRing.IS_SUPPORTED)
+            {
+                Debug.LogError("BLESOCK_SHARED_CHANNELS is not defined");
+                return false;
+            }
+
             if (mInstance != null)
             {
                 try
                 {
-                    return mInstance.Call<bool>("send", message, messageSize, receiver);
+                    if (!mInstance.Call<bool>("enableSharedChannels"))
+                    {
+                        return false;
+                    }
+
+                    if (mSendRing == null)
+                    {
+                        mSendRing = new AndroidSharedRing(mInstance.Call<AndroidJavaObject>("getSendSharedBuffer"));
+                        mReceiveRing = new AndroidSharedRing(mInstance.Call<AndroidJavaObject>("getReceiveSharedBuffer"));
+                    }
+
+                    return true;
                 }
                 catch (Exception e)
                 {
@@ -326,6 +647,62 @@ namespace BleSock
             return false;
         }
 
+        public override bool SetReceivePolling(bool enabled)
+        {
+            if (mInstance != null)
+            {
+                try
+                {
+                    if (!mInstance.Call<bool>("setReceivePolling", enabled))
+                    {
+                        return false;
+                    }
+
+                    if (enabled && (mReceiveDrain == null))
+                    {
+                        mReceiveDrain = new AndroidReceiveDrain(mInstance);
+                    }
+
+                    return true;
+                }
+                catch (Exception e)
+                {
+                    Debug.LogException(e);
+                }
+            }
+
+            return false;
+        }
+
+        public override void PollReceived()
+        {
+            if (mReceiveRing != null)
+            {
+                try
+                {
+                    mReceiveRing.Read(mOnDrain);
+                }
+                catch (Exception e)
+                {
+                    Debug.LogException(e);
+                }
+
+                return;
+            }
+
+            if (mReceiveDrain != null)
+            {
+                try
+                {
+                    mReceiveDrain.Drain(mOnDrain);
+                }
+                catch (Exception e)
+                {
+                    Debug.LogException(e);
+                }
+            }
+        }
+
         public override void Cleanup()
         {
             if (mInstance != null)
@@ -347,6 +724,24 @@ namespace BleSock
         {
             base.Dispose();
 
+            if (mReceiveDrain != null)
+            {
+                mReceiveDrain.Dispose();
+                mReceiveDrain = null;
+            }
+
+            if (mSendRing != null)
+            {
+                mSendRing.Dispose();
+                mSendRing = null;
+            }
+
+            if (mReceiveRing != null)
+            {
+                mReceiveRing.Dispose();
+                mReceiveRing = null;
+            }
+
             if (mInstance != null)
             {
                 mInstance.Dispose();
@@ -358,6 +753,55 @@ namespace BleSock
 
         private const string NAME_PREFIX = "xflag.plugins.bleSock.";
 
+        private int SendInternal(byte[] message, int offset, int length, int receiver, bool unthrottled)
+        {
+            lock (mSendLock)
+            {
+                if (mInstance != null)
+                {
+                    try
+                    {
+                        // 宛先がブロックしているか共有のリングに収まらなければJavaのsendに任せる（SEND_WOULD_BLOCKとonWritableはそちらで扱う）
+                        int kind = unthrottled ? AndroidSharedRing.KIND_UNTHROTTLED : 0;
+                        bool wake;
+
+                        if ((mSendRing != null) && (unthrottled || mSendRing.CanWrite(receiver)) && mSendRing.Write(message, offset, length, receiver, kind, out wake))
+                        {
+                            if (wake)
+                            {
+                                mInstance.Call("wakeSendChannel");
+                            }
+
+                            return mSendRing.QueuedSize;
+                        }
+
+                        return mInstance.Call<int>("send", AndroidUtils.Slice(message, offset, length), 0, length, receiver, unthrottled);
+                    }
+                    catch (Exception e)
+                    {
+                        Debug.LogException(e);
+                    }
+                }
+            }
+
+            return SEND_FAILED;
+        }
+
+        private void OnDrain(int kind, int sender, byte[] message)
+        {
+            switch (kind)
+            {
+                case AndroidReceiveDrain.KIND_MESSAGE:
+                    InvokeOnReceive(message, sender);
+                    break;
+
+                case AndroidReceiveDrain.KIND_CHUNK:
+                case AndroidReceiveDrain.KIND_LAST_CHUNK:
+                    InvokeOnReceiveChunk(message, sender, kind == AndroidReceiveDrain.KIND_LAST_CHUNK);
+                    break;
+            }
+        }
+
         private class CentralCallback : AndroidJavaProxy
         {
             private Central mOwner;
@@ -403,7 +847,7 @@ namespace BleSock
 
                 try
                 {
-                    bytes = message.Call<byte[]>("getBytes");
+                    bytes = AndroidUtils.GetBytes(message);
                 }
                 catch (Exception e)
                 {
@@ -412,9 +856,35 @@ namespace BleSock
 
                 mOwner.InvokeOnReceive(bytes, sender);
             }
+
+            public void onReceiveChunk(AndroidJavaObject chunk, int sender, bool last)
+            {
+                byte[] bytes = null;
+
+                try
+                {
+                    bytes = AndroidUtils.GetBytes(chunk);
+                }
+                catch (Exception e)
+                {
+                    Debug.LogException(e);
+                }
+
+                mOwner.InvokeOnReceiveChunk(bytes, sender, last);
+            }
+
+            public void onWritable()
+            {
+                mOwner.InvokeOnWritable();
+            }
         }
 
         private AndroidJavaObject mInstance = null;
+        private AndroidReceiveDrain mReceiveDrain = null;
+        private AndroidSharedRing mSendRing = null;
+        private readonly object mSendLock = new object(); // 送信チャンネルは書き込むスレッドが一つの前提なので、送信は一つずつ行う
+        private AndroidSharedRing mReceiveRing = null;
+        private Action<int, int, byte[]> mOnDrain;
     }
 
 #elif UNITY_IOS && !UNITY_EDITOR
@@ -57,6 +57,8 @@ namespace BleSock
             mImplementation.onConnect += OnConnect;
             mImplementation.onDisconnect += OnDisconnect;
             mImplementation.onReceive += OnReceive;
+            mImplementation.onReceiveChunk += OnReceiveChunk;
+            mImplementation.onWritable += OnWritable;
 
             if (!mImplementation.Initialize(mServiceUUID, mUploadUUID, mDownloadUUID))
             {
@@ -153,6 +155,172 @@ namespace BleSock
             }
         }
 
+        public override SendResult TrySend(byte[] message, int messageSize, int receiver)
+        {
+            return TrySend(message, 0, messageSize, receiver);
+        }
+
+        public override SendResult TrySend(byte[] message, int offset, int messageSize, int receiver)
+        {
+            int address = PrepareSend(message, offset, messageSize, receiver, MESSAGE_SIZE_MAX);
+            if ((address & ~LocalPlayerId) != 0)
+            {
+                int result = mImplementation.TrySend(message, offset, messageSize, address & ~LocalPlayerId);
+                if (result == CentralBase.SEND_WOULD_BLOCK)
+                {
+                    return SendResult.WouldBlock;
+                }
+
+                if (result < 0)
+                {
+                    throw new Exception("Failed to send user message");
+                }
+            }
+
+            if ((address & LocalPlayerId) != 0)
+            {
+                if (offset == 0)
+                {
+                    InvokeOnReceive(message, messageSize, LocalPlayerId);
+                }
+                else
+                {
+                    var copy = new byte[messageSize];
+                    Buffer.BlockCopy(message, offset, copy, 0, messageSize);
+                    InvokeOnReceive(copy, messageSize, LocalPlayerId);
+                }
+            }
+
+            return SendResult.Sent;
+        }
+
+        public override SendResult SendLarge(byte[] message, int messageSize, int receiver)
+        {
+            if (messageSize <= MESSAGE_SIZE_MAX)
+            {
+                return TrySend(message, messageSize, receiver);
+            }
+
+            int address = PrepareSend(message, messageSize, receiver, int.MaxValue);
+            if ((address & ~LocalPlayerId) != 0)
+            {
+                int result = mImplementation.SendLarge(message, messageSize, address & ~LocalPlayerId);
+                if (result == CentralBase.SEND_WOULD_BLOCK)
+                {
+                    return SendResult.WouldBlock;
+                }
+
+                if (result < 0)
+                {
+                    throw new Exception("Failed to send large message");
+                }
+            }
+
+            if ((address & LocalPlayerId) != 0)
+            {
+                var chunk = new byte[messageSize];
+                Buffer.BlockCopy(message, 0, chunk, 0, messageSize);
+                InvokeOnReceiveChunk(chunk, LocalPlayerId, true);
+            }
+
+            return SendResult.Sent;
+        }
+
+        public override void SetWatermarks(int lowWatermark, int highWatermark)
+        {
+            if (!IsReady)
+            {
+                throw new Exception("Not ready");
+            }
+
+            if (!mImplementation.SetWatermarks(lowWatermark, highWatermark))
+            {
+                throw new Exception("Failed to set watermarks");
+            }
+        }
+
+        // 上りの1フラグメントあたりのペイロードのバイト数（現状Androidのみ、それ以外は0）
+        public int GetPayloadSize()
+        {
+            if (!IsReady)
+            {
+                throw new Exception("Not ready");
+            }
+
+            return mImplementation.GetPayloadSize();
+        }
+
+        // 0より大きければ小さなメッセージをまとめて送信する（マイクロ秒、現状Androidのみ）
+        public void SetCoalescingWindow(int microseconds)
+        {
+            if (!IsReady)
+            {
+                throw new Exception("Not ready");
+            }
+
+            mImplementation.SetCoalescingWindow(microseconds);
+        }
+
+        // 接続パラメータとPHYの選び方を切り替える（現状Androidのみ）
+        public void SetLinkMode(LinkMode mode)
+        {
+            if (!IsReady)
+            {
+                throw new Exception("Not ready");
+            }
+
+            mImplementation.SetLinkMode((int)mode);
+        }
+
+        // trueにすると受信したメッセージを溜めておき、PollReceivedを呼んだときにまとめて取り出す（現状Androidのみ）
+        // メッセージごとにJavaから呼び出されなくなるので、頻繁に受信するときの負荷が減る
+        public void SetReceivePolling(bool enabled)
+        {
+            if (!IsReady)
+            {
+                throw new Exception("Not ready");
+            }
+
+            if (!mImplementation.SetReceivePolling(enabled))
+            {
+                throw new Exception("Failed to set receive polling");
+            }
+        }
+
+        // 送受信のリングをJavaと共有し、メッセージごとに配列をJNIでコピーしない（接続する前に呼ぶ、現状Androidのみ）
+        // BLESOCK_SHARED_CHANNELSを定義し、unsafeなコードを許可しておく必要がある。受信はPollReceivedで取り出すようになる
+        public void EnableSharedChannels()
+        {
+            if (!IsReady)
+            {
+                throw new Exception("Not ready");
+            }
+
+            if (!mImplementation.EnableSharedChannels())
+            {
+                throw new Exception("Failed to enable shared channels");
+            }
+        }
+
+        // SetReceivePolling(true)かEnableSharedChannelsの後は毎フレーム呼ぶ
+        public void PollReceived()
+        {
+            if (mImplementation != null)
+            {
+                mImplementation.PollReceived();
+            }
+        }
+
+        public void Flush()
+        {
+            if (!IsReady)
+            {
+                throw new Exception("Not ready");
+            }
+
+            mImplementation.Flush();
+        }
+
         public override void Cleanup()
         {
             onDiscover = null;
@@ -189,6 +357,11 @@ namespace BleSock
         private int mLocalPlayerId = 0;
 
 
+        protected override int SendBatchInternal(byte[] packed, int offset, int count)
+        {
+            return mImplementation.SendBatch(packed, offset, count);
+        }
+
         private void OnBluetoothRequire()
         {
             Post(() =>
@@ -341,6 +514,32 @@ namespace BleSock
             });
         }
 
+        private void OnReceiveChunk(byte[] chunk, int sender, bool last)
+        {
+            Post(() =>
+            {
+                if (mState != State.Online)
+                {
+                    return;
+                }
+
+                InvokeOnReceiveChunk(chunk, sender, last);
+            });
+        }
+
+        private void OnWritable()
+        {
+            Post(() =>
+            {
+                if (mState != State.Online)
+                {
+                    return;
+                }
+
+                InvokeOnWritable();
+            });
+        }
+
         private void OnReceive_RequestAuthentication()
         {
             if (mState != State.Authenticate)
@@ -79,6 +79,8 @@ namespace BleSock
             mImplementation.onDisconnect += OnDisconnect;
             mImplementation.onReceiveDirect += OnReceiveDirect;
             mImplementation.onReceive += OnReceive;
+            mImplementation.onReceiveChunk += OnReceiveChunk;
+            mImplementation.onWritable += OnWritable;
 
             if (!mImplementation.Initialize(mServiceUUID, mUploadUUID, mDownloadUUID))
             {
@@ -134,6 +136,95 @@ namespace BleSock
             }
         }
 
+        // そのゲストへの1フラグメントあたりのペイロードのバイト数（現状Androidのみ、それ以外は0）
+        public int GetPayloadSize(int playerId)
+        {
+            if (!IsReady)
+            {
+                throw new Exception("Not ready");
+            }
+
+            var context = mCentralContexts.Where(c => c.playerId == playerId).FirstOrDefault();
+            if (context == null)
+            {
+                return 0;
+            }
+
+            return mImplementation.GetPayloadSize(context.connectionId);
+        }
+
+        // trueなら複数のゲストへの通知を同時に行う（現状Androidのみ）
+        public void SetConcurrentNotifications(bool enabled)
+        {
+            if (!IsReady)
+            {
+                throw new Exception("Not ready");
+            }
+
+            mImplementation.SetConcurrentNotifications(enabled);
+        }
+
+        // trueならゲスト間のメッセージを受信しきる前から中継し始める（現状Androidのみ）
+        public void SetCutThroughRelay(bool enabled)
+        {
+            if (!IsReady)
+            {
+                throw new Exception("Not ready");
+            }
+
+            mImplementation.SetCutThroughRelay(enabled);
+        }
+
+        // 各ゲストとのPHYの選び方を切り替える（現状Androidのみ、接続パラメータはゲスト側で選ぶ）
+        public void SetLinkMode(LinkMode mode)
+        {
+            if (!IsReady)
+            {
+                throw new Exception("Not ready");
+            }
+
+            mImplementation.SetLinkMode((int)mode);
+        }
+
+        // trueにすると受信したメッセージを溜めておき、PollReceivedを呼んだときにまとめて取り出す（現状Androidのみ）
+        // メッセージごとにJavaから呼び出されなくなるので、頻繁に受信するときの負荷が減る
+        public void SetReceivePolling(bool enabled)
+        {
+            if (!IsReady)
+            {
+                throw new Exception("Not ready");
+            }
+
+            if (!mImplementation.SetReceivePolling(enabled))
+            {
+                throw new Exception("Failed to set receive polling");
+            }
+        }
+
+        // 送受信のリングをJavaと共有し、メッセージごとに配列をJNIでコピーしない（接続する前に呼ぶ、現状Androidのみ）
+        // BLESOCK_SHARED_CHANNELSを定義し、unsafeなコードを許可しておく必要がある。受信はPollReceivedで取り出すようになる
+        public void EnableSharedChannels()
+        {
+            if (!IsReady)
+            {
+                throw new Exception("Not ready");
+            }
+
+            if (!mImplementation.EnableSharedChannels())
+            {
+                throw new Exception("Failed to enable shared channels");
+            }
+        }
+
+        // SetReceivePolling(true)かEnableSharedChannelsの後は毎フレーム呼ぶ
+        public void PollReceived()
+        {
+            if (mImplementation != null)
+            {
+                mImplementation.PollReceived();
+            }
+        }
+
         public override void Send(byte[] message, int messageSize, int receiver)
         {
             int address = PrepareSend(message, messageSize, receiver);
@@ -151,6 +242,90 @@ namespace BleSock
             }
         }
 
+        public override SendResult TrySend(byte[] message, int messageSize, int receiver)
+        {
+            return TrySend(message, 0, messageSize, receiver);
+        }
+
+        public override SendResult TrySend(byte[] message, int offset, int messageSize, int receiver)
+        {
+            int address = PrepareSend(message, offset, messageSize, receiver, MESSAGE_SIZE_MAX);
+            if ((address & ~LocalPlayerId) != 0)
+            {
+                int result = mImplementation.TrySend(message, offset, messageSize, address & ~LocalPlayerId);
+                if (result == PeripheralBase.SEND_WOULD_BLOCK)
+                {
+                    return SendResult.WouldBlock;
+                }
+
+                if (result < 0)
+                {
+                    throw new Exception("Failed to send user message");
+                }
+            }
+
+            if ((address & LocalPlayerId) != 0)
+            {
+                if (offset == 0)
+                {
+                    InvokeOnReceive(message, messageSize, LocalPlayerId);
+                }
+                else
+                {
+                    var copy = new byte[messageSize];
+                    Buffer.BlockCopy(message, offset, copy, 0, messageSize);
+                    InvokeOnReceive(copy, messageSize, LocalPlayerId);
+                }
+            }
+
+            return SendResult.Sent;
+        }
+
+        public override SendResult SendLarge(byte[] message, int messageSize, int receiver)
+        {
+            if (messageSize <= MESSAGE_SIZE_MAX)
+            {
+                return TrySend(message, messageSize, receiver);
+            }
+
+            int address = PrepareSend(message, messageSize, receiver, int.MaxValue);
+            if ((address & ~LocalPlayerId) != 0)
+            {
+                int result = mImplementation.SendLarge(message, messageSize, address & ~LocalPlayerId);
+                if (result == PeripheralBase.SEND_WOULD_BLOCK)
+                {
+                    return SendResult.WouldBlock;
+                }
+
+                if (result < 0)
+                {
+                    throw new Exception("Failed to send large message");
+                }
+            }
+
+            if ((address & LocalPlayerId) != 0)
+            {
+                var chunk = new byte[messageSize];
+                Buffer.BlockCopy(message, 0, chunk, 0, messageSize);
+                InvokeOnReceiveChunk(chunk, LocalPlayerId, true);
+            }
+
+            return SendResult.Sent;
+        }
+
+        public override void SetWatermarks(int lowWatermark, int highWatermark)
+        {
+            if (!IsReady)
+            {
+                throw new Exception("Not ready");
+            }
+
+            if (!mImplementation.SetWatermarks(0, lowWatermark, highWatermark))
+            {
+                throw new Exception("Failed to set watermarks");
+            }
+        }
+
         public override void Cleanup()
         {
             if (mImplementation != null)
@@ -187,6 +362,11 @@ namespace BleSock
         private List<int> mUnusedPlayerIds = new List<int>();
 
 
+        protected override int SendBatchInternal(byte[] packed, int offset, int count)
+        {
+            return mImplementation.SendBatch(packed, offset, count);
+        }
+
         private void OnBluetoothRequire()
         {
             Post(() =>
@@ -433,5 +613,31 @@ namespace BleSock
                 InvokeOnReceive(message, message.Length, playerId);
             });
         }
+
+        private void OnReceiveChunk(byte[] chunk, int playerId, bool last)
+        {
+            Post(() =>
+            {
+                if (!IsReady)
+                {
+                    return;
+                }
+
+                InvokeOnReceiveChunk(chunk, playerId, last);
+            });
+        }
+
+        private void OnWritable(int connectionId)
+        {
+            Post(() =>
+            {
+                if (!IsReady)
+                {
+                    return;
+                }
+
+                InvokeOnWritable();
+            });
+        }
     }
 }
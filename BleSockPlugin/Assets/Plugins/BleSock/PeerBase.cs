@@ -17,6 +17,22 @@ namespace BleSock
         public const int Others = 0x10000;
     }
 
+    // 接続パラメータとPHYの選び方
+    public enum LinkMode
+    {
+        Adaptive,   // 通信量に合わせて切り替える
+        LowLatency, // 遅延を優先する（ゲームプレイ中など）
+        Balanced,
+        LowPower,   // 電池を優先する（ロビーなど）
+    }
+
+    // TrySendの結果
+    public enum SendResult
+    {
+        Sent,
+        WouldBlock, // 送信バッファが高水位に達している。onWritableを待って送り直す
+    }
+
     public abstract class PeerBase : IDisposable
     {
         // Events
@@ -29,6 +45,8 @@ namespace BleSock
         public event Action<Player> onPlayerLeave;
 
         public event Action<byte[], int, Player> onReceive;
+        public event Action<byte[], bool, Player> onReceiveChunk; // SendLargeで送られたメッセージの一部を受信した（trueなら最後の一部）
+        public event Action onWritable; // TrySendがWouldBlockを返した後、送信バッファが低水位まで空いた
 
         // Properties
 
@@ -62,8 +80,93 @@ namespace BleSock
 
         // Methods
 
+        // 水位に関係なく送信バッファに積む。積めなければ例外を投げる
         public abstract void Send(byte[] message, int messageSize, int receiver);
 
+        // 送信バッファが高水位に達していればWouldBlockを返して何も送らない（現状Androidのみ、それ以外はSendと同じ）
+        public abstract SendResult TrySend(byte[] message, int messageSize, int receiver);
+
+        // messageのoffsetから送る（MessageBufferに続けて組み立てたメッセージを切り出さずに済む）
+        public abstract SendResult TrySend(byte[] message, int offset, int messageSize, int receiver);
+
+        // [messageSize:4][receiver:4][message]（MessageBuffer.Write(int)と同じリトルエンディアン）をcount個詰めたpackedを先頭から送り、送れたメッセージの数を返す
+        // 宛先がそのまま渡せるメッセージが続く間はまとめて一度に積む（現状Androidのみ、それ以外はTrySendを繰り返すのと同じ）
+        // countより少なければonWritableを待って残りを送り直す
+        public int SendBatch(byte[] packed, int count)
+        {
+            if (packed == null)
+            {
+                throw new Exception("Packed is null");
+            }
+
+            int sent = 0;
+            int offset = 0;
+
+            while (sent < count)
+            {
+                // 自分宛てとAddress.Othersを含まないメッセージが続く所まで確かめる
+                int run = 0;
+                int end = offset;
+
+                while (sent + run < count)
+                {
+                    int messageSize = ReadBatchInt32(packed, end);
+                    int receiver = ReadBatchInt32(packed, end + 4);
+
+                    int address = PrepareSend(packed, end + BATCH_HEADER_SIZE, messageSize, receiver, MESSAGE_SIZE_MAX);
+                    if ((address != receiver) || ((address & LocalPlayerId) != 0) || (address == 0))
+                    {
+                        break;
+                    }
+
+                    end += BATCH_HEADER_SIZE + messageSize;
+                    run++;
+                }
+
+                if (run > 0)
+                {
+                    int result = SendBatchInternal(packed, offset, run);
+                    if (result < 0)
+                    {
+                        throw new Exception("Failed to send user message");
+                    }
+
+                    for (int i = 0; i < result; i++)
+                    {
+                        offset += BATCH_HEADER_SIZE + ReadBatchInt32(packed, offset);
+                    }
+
+                    sent += result;
+
+                    if (result < run)
+                    {
+                        break;
+                    }
+
+                    continue;
+                }
+
+                // 宛先を解決する必要があるメッセージは一つずつ送る
+                int size = ReadBatchInt32(packed, offset);
+                if (TrySend(packed, offset + BATCH_HEADER_SIZE, size, ReadBatchInt32(packed, offset + 4)) == SendResult.WouldBlock)
+                {
+                    break;
+                }
+
+                offset += BATCH_HEADER_SIZE + size;
+                sent++;
+            }
+
+            return sent;
+        }
+
+        // MESSAGE_SIZE_MAXを超えるメッセージを分けて送る（現状Androidのみ）
+        // 受け取る側にはonReceiveChunkで順番に届く。MESSAGE_SIZE_MAX以下ならTrySendと同じくonReceiveで届く
+        public abstract SendResult SendLarge(byte[] message, int messageSize, int receiver);
+
+        // TrySendがWouldBlockを返し始める高水位と、onWritableで知らせる低水位（バイト数、現状Androidのみ）
+        public abstract void SetWatermarks(int lowWatermark, int highWatermark);
+
         public virtual void Cleanup()
         {
             onBluetoothRequire = null;
@@ -72,6 +175,8 @@ namespace BleSock
             onPlayerJoin = null;
             onPlayerLeave = null;
             onReceive = null;
+            onReceiveChunk = null;
+            onWritable = null;
 
             mReady = false;
             mSynchronizationContext = null;
@@ -95,6 +200,8 @@ namespace BleSock
         protected const int MESSAGE_SIZE_MAX = 4096;
         protected const int PLAYER_NAME_LENGTH_MAX = 32;
 
+        private const int BATCH_HEADER_SIZE = 8; // CentralBase.SEND_BATCH_HEADER_SIZEと同じ
+
         // protected const byte SYSMSG_REQUEST_PING            = 0;
         // protected const byte SYSMSG_RESPOND_PING            = 1;
 
@@ -159,7 +266,20 @@ namespace BleSock
             mReceiveBuffer = new MessageBuffer();
         }
 
+        // 宛先を解決済みのメッセージをpackedのoffsetからcount個まとめて送り、送れた数（失敗なら負の値）を返す
+        protected abstract int SendBatchInternal(byte[] packed, int offset, int count);
+
         protected int PrepareSend(byte[] message, int messageSize, int receiver)
+        {
+            return PrepareSend(message, messageSize, receiver, MESSAGE_SIZE_MAX);
+        }
+
+        protected int PrepareSend(byte[] message, int messageSize, int receiver, int messageSizeMax)
+        {
+            return PrepareSend(message, 0, messageSize, receiver, messageSizeMax);
+        }
+
+        protected int PrepareSend(byte[] message, int offset, int messageSize, int receiver, int messageSizeMax)
         {
             if (!IsReady)
             {
@@ -176,7 +296,12 @@ namespace BleSock
                 throw new Exception("Invalid message-size");
             }
 
-            if ((messageSize > message.Length) || (messageSize > MESSAGE_SIZE_MAX))
+            if ((offset < 0) || (offset > message.Length))
+            {
+                throw new Exception("Invalid offset");
+            }
+
+            if ((messageSize > message.Length - offset) || (messageSize > messageSizeMax))
             {
                 throw new Exception("Message-size too large");
             }
@@ -191,6 +316,16 @@ namespace BleSock
             return result & 0xffff;
         }
 
+        private static int ReadBatchInt32(byte[] packed, int offset)
+        {
+            if ((offset < 0) || (offset > packed.Length - 4))
+            {
+                throw new Exception("Invalid batch");
+            }
+
+            return BitConverter.ToInt32(packed, offset);
+        }
+
         protected void Post(Action action)
         {
             if ((mSynchronizationContext == null) || (action == null))
@@ -279,6 +414,43 @@ namespace BleSock
             }
         }
 
+        protected void InvokeOnReceiveChunk(byte[] chunk, int playerId, bool last)
+        {
+            var player = mPlayers.Where(p => p.PlayerId == playerId).FirstOrDefault();
+            if (player == null)
+            {
+                Debug.LogWarningFormat("Invalid playerId: {0}", playerId);
+                return;
+            }
+
+            if (onReceiveChunk != null)
+            {
+                try
+                {
+                    onReceiveChunk(chunk, last, player);
+                }
+                catch (Exception e)
+                {
+                    Debug.LogException(e);
+                }
+            }
+        }
+
+        protected void InvokeOnWritable()
+        {
+            if (onWritable != null)
+            {
+                try
+                {
+                    onWritable();
+                }
+                catch (Exception e)
+                {
+                    Debug.LogException(e);
+                }
+            }
+        }
+
         protected void InvokeOnReceive(byte[] message, int messageSize, int playerId)
         {
             var player = mPlayers.Where(p => p.PlayerId == playerId).FirstOrDefault();
@@ -0,0 +1,216 @@
+package xflag.plugins.bleSock;
+
+import android.bluetooth.BluetoothGatt;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// LinkTunerとLinkPolicyを端末の外で確かめる
+// GATTの代わりに反映された設定を記録するRecordingLinkを渡し、通信量を与えて選ばれた設定を調べる
+// Unityに取り込まれてアプリに入らないようにAssetsの外に置く
+// 使い方（BleSockPluginで）: javac -encoding UTF-8 -cp android.jar -d out Assets/Plugins/BleSock/Android/*.java Tests/Android/LinkTunerCheck.java
+//                           && java -cp out xflag.plugins.bleSock.LinkTunerCheck（実行にandroid.jarは要らない）
+final class LinkTunerCheck {
+
+    private static final int INTERVAL = 1000;
+
+    // 反映された接続パラメータとPHYを順に記録する
+    static final class RecordingLink implements LinkTuner.Link, LinkTuner.Environment {
+
+        public final List<Integer> priorities = new ArrayList<>();
+        public final List<Integer> phys = new ArrayList<>();
+        public final List<String> log = new ArrayList<>();
+        public boolean phy2MSupported = true;
+        public boolean accept = true; // falseならGATTの呼び出しが失敗したものとして扱う
+
+        @Override
+        public boolean requestConnectionPriority(int priority) {
+
+            if (accept) {
+                priorities.add(priority);
+            }
+
+            return accept;
+        }
+
+        @Override
+        public boolean setPreferredPhy(int phy) {
+
+            if (accept) {
+                phys.add(phy);
+            }
+
+            return accept;
+        }
+
+        @Override
+        public boolean isPhy2MSupported() {
+
+            return phy2MSupported;
+        }
+
+        @Override
+        public void info(String format, Object... args) {
+
+            log.add(String.format(format, args));
+        }
+
+        @Override
+        public void error(String format, Object... args) {
+
+            log.add("error: " + String.format(format, args));
+        }
+
+        public int lastPriority() {
+
+            return priorities.isEmpty() ? -1 : priorities.get(priorities.size() - 1);
+        }
+    }
+
+    private LinkTunerCheck() {
+    }
+
+    public static void main(String[] args) {
+
+        checkAdaptivePriority();
+        checkAdaptivePhy();
+        checkPhyNotSupported();
+        checkFixedPolicy();
+        checkRetryAfterFailure();
+
+        System.out.println("LinkTunerCheck: ok");
+    }
+
+    // 接続直後はHIGH、通信が止めばBALANCED、長く止めばLOW_POWER、詰まればHIGHに戻る
+    private static void checkAdaptivePriority() {
+
+        RecordingLink link = new RecordingLink();
+        LinkTuner tuner = new LinkTuner(link, link, true, LinkTuner.createPolicy(LinkTuner.MODE_ADAPTIVE));
+        long now = 1000000;
+
+        tuner.start(BluetoothGatt.CONNECTION_PRIORITY_HIGH, now);
+        expect(link.lastPriority() == BluetoothGatt.CONNECTION_PRIORITY_HIGH, "start with HIGH");
+
+        now = idle(tuner, now, 2);
+        expect(link.lastPriority() == BluetoothGatt.CONNECTION_PRIORITY_BALANCED, "BALANCED when quiet");
+
+        now = idle(tuner, now, 10);
+        expect(link.lastPriority() == BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER, "LOW_POWER after 10 s idle");
+
+        now = traffic(tuner, now, 3, 20, 100);
+        expect(link.lastPriority() == BluetoothGatt.CONNECTION_PRIORITY_HIGH, "HIGH during bursts");
+
+        // 変更は2秒以上空けるので、連続する評価で行ったり来たりしない
+        int count = link.priorities.size();
+        traffic(tuner, now, 1, 20, 100);
+        expect(link.priorities.size() == count, "no change without new traffic pattern");
+    }
+
+    // 平均の通信量が多い間だけ2Mを要求し、onPhyUpdateが届くまでは次を要求しない
+    private static void checkAdaptivePhy() {
+
+        RecordingLink link = new RecordingLink();
+        LinkTuner tuner = new LinkTuner(link, link, true, LinkTuner.createPolicy(LinkTuner.MODE_ADAPTIVE));
+        long now = 1000000;
+
+        tuner.start(BluetoothGatt.CONNECTION_PRIORITY_HIGH, now);
+
+        now = traffic(tuner, now, 6, 30, 100);
+        expect(link.phys.size() == 1 && link.phys.get(0) == LinkTuner.PHY_2M, "request 2M under load");
+        expect(tuner.getPhy() == LinkTuner.PHY_1M, "keep 1M until onPhyUpdate");
+
+        tuner.onPhyUpdate(LinkTuner.PHY_2M, true);
+        expect(tuner.getPhy() == LinkTuner.PHY_2M, "2M after onPhyUpdate");
+
+        now = idle(tuner, now, 10);
+        expect(link.phys.size() == 2 && link.phys.get(1) == LinkTuner.PHY_1M, "back to 1M when quiet");
+
+        // 要求が通らなければ以後PHYは変えない
+        tuner.onPhyUpdate(LinkTuner.PHY_2M, false);
+        traffic(tuner, now, 6, 30, 100);
+        expect(link.phys.size() == 2, "no phy request after failure");
+    }
+
+    private static void checkPhyNotSupported() {
+
+        RecordingLink link = new RecordingLink();
+        link.phy2MSupported = false;
+
+        LinkTuner tuner = new LinkTuner(link, link, false, LinkTuner.createPolicy(LinkTuner.MODE_ADAPTIVE));
+        long now = 1000000;
+
+        tuner.start(BluetoothGatt.CONNECTION_PRIORITY_HIGH, now);
+        traffic(tuner, now, 6, 30, 100);
+
+        expect(link.phys.isEmpty(), "no phy request without 2M support");
+        expect(link.priorities.isEmpty(), "no priority request without support");
+    }
+
+    // 方針を差し替えたら間隔を待たずに反映する
+    private static void checkFixedPolicy() {
+
+        RecordingLink link = new RecordingLink();
+        LinkTuner tuner = new LinkTuner(link, link, true, LinkTuner.createPolicy(LinkTuner.MODE_ADAPTIVE));
+        long now = 1000000;
+
+        tuner.start(BluetoothGatt.CONNECTION_PRIORITY_HIGH, now);
+        tuner.setPolicy(LinkTuner.createPolicy(LinkTuner.MODE_LOW_POWER));
+
+        traffic(tuner, now, 1, 20, 100);
+        expect(link.lastPriority() == BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER, "LOW_POWER right after setPolicy");
+        expect(link.phys.isEmpty(), "LOW_POWER stays on 1M");
+    }
+
+    // 接続パラメータの要求が失敗しても切断せず、間隔を空けて選び直す
+    private static void checkRetryAfterFailure() {
+
+        RecordingLink link = new RecordingLink();
+        LinkTuner tuner = new LinkTuner(link, link, true, LinkTuner.createPolicy(LinkTuner.MODE_LOW_LATENCY));
+        long now = 1000000;
+
+        link.accept = false;
+        tuner.start(BluetoothGatt.CONNECTION_PRIORITY_BALANCED, now);
+        expect(tuner.getConnectionPriority() == -1, "priority unset after failure");
+
+        link.accept = true;
+        now = idle(tuner, now, 1);
+        expect(link.priorities.isEmpty(), "wait for the interval before retrying");
+
+        idle(tuner, now, 1);
+        expect(link.lastPriority() == BluetoothGatt.CONNECTION_PRIORITY_HIGH, "retry after the interval");
+    }
+
+    // seconds秒の間、毎秒packets個のbytesバイトのフラグメントを送受信する
+    private static long traffic(LinkTuner tuner, long now, int seconds, int packets, int bytes) {
+
+        for (int i = 0; i < seconds; i++) {
+
+            for (int j = 0; j < packets; j++) {
+                tuner.record(bytes, now + (long)INTERVAL * j / packets);
+            }
+
+            now += INTERVAL;
+            tuner.evaluate(now);
+        }
+
+        return now;
+    }
+
+    private static long idle(LinkTuner tuner, long now, int seconds) {
+
+        for (int i = 0; i < seconds; i++) {
+
+            now += INTERVAL;
+            tuner.evaluate(now);
+        }
+
+        return now;
+    }
+
+    private static void expect(boolean condition, String message) {
+
+        if (!condition) {
+            throw new IllegalStateException("LinkTunerCheck failed: " + message);
+        }
+    }
+}